@@ -31,10 +31,12 @@ import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.CancellationSignal;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Parcelable;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.provider.ContactsContract;
 import android.provider.ContactsContract.AggregationExceptions;
 import android.provider.ContactsContract.CommonDataKinds.GroupMembership;
@@ -48,7 +50,6 @@ import android.provider.ContactsContract.RawContactsEntity;
 import android.text.TextUtils;
 import android.telephony.PhoneNumberUtils;
 import android.telephony.SubscriptionManager;
-import android.telephony.SubscriptionInfo;
 import android.util.Log;
 import android.widget.Toast;
 
@@ -69,16 +70,25 @@ import com.android.contacts.common.model.account.AccountWithDataSet;
 import com.android.contacts.common.util.PermissionsUtil;
 import com.android.contacts.compat.PinnedPositionsCompat;
 import com.android.contacts.activities.ContactEditorBaseActivity.ContactEditor.SaveMode;
+import com.android.contacts.util.ApplyBatchSplitter;
+import com.android.contacts.util.BulkDeleter;
 import com.android.contacts.util.ContactPhotoUtils;
+import com.android.contacts.util.SimCapacityCache;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.UUID;
 import java.util.concurrent.CopyOnWriteArrayList;
 
-import org.codeaurora.wrapper.UiccPhoneBookController_Wrapper;
 
 /**
  * A service responsible for saving changes to the content provider.
@@ -113,13 +123,24 @@ public class ContactSaveService extends IntentService {
     public static final String EXTRA_GROUP_LABEL = "groupLabel";
     public static final String EXTRA_RAW_CONTACTS_TO_ADD = "rawContactsToAdd";
     public static final String EXTRA_RAW_CONTACTS_TO_REMOVE = "rawContactsToRemove";
+    // Member counts put on the callback intent of group changes.
+    public static final String EXTRA_GROUP_MEMBERS_ADDED = "groupMembersAdded";
+    public static final String EXTRA_GROUP_MEMBERS_SKIPPED = "groupMembersSkipped";
+    public static final String EXTRA_GROUP_MEMBERS_REMOVED = "groupMembersRemoved";
 
     public static final String ACTION_SET_STARRED = "setStarred";
     public static final String ACTION_DELETE_CONTACT = "delete";
     public static final String ACTION_DELETE_MULTIPLE_CONTACTS = "deleteMultipleContacts";
+    public static final String ACTION_CANCEL_DELETE_MULTIPLE_CONTACTS =
+            "cancelDeleteMultipleContacts";
     public static final String EXTRA_CONTACT_URI = "contactUri";
     public static final String EXTRA_CONTACT_IDS = "contactIds";
     public static final String EXTRA_STARRED_FLAG = "starred";
+    // Summary put on the callback intent of deleteMultipleContacts.
+    public static final String EXTRA_DELETE_TOTAL_COUNT = "deleteTotalCount";
+    public static final String EXTRA_DELETED_COUNT = "deletedCount";
+    public static final String EXTRA_DELETE_FAILED_COUNT = "deleteFailedCount";
+    public static final String EXTRA_DELETE_CANCELED = "deleteCanceled";
 
     public static final String ACTION_SET_SUPER_PRIMARY = "setSuperPrimary";
     public static final String ACTION_CLEAR_PRIMARY = "clearPrimary";
@@ -178,9 +199,29 @@ public class ContactSaveService extends IntentService {
     private final int MAX_CH_LENGTH = 6;
 
     private static SimContactsOperation mSimContactsOperation;
-    private SubscriptionManager mSubscriptionManager;
     private static final int MAX_CONTACTS_PROVIDER_BATCH_SIZE = 499;
 
+    // How long the first small command of a run waits for more to apply in the same batch.
+    private static final long COALESCE_WINDOW_MILLIS = 100;
+
+    private final SaveCommandQueue mCommandQueue = new SaveCommandQueue();
+
+    // Sizes the batches of saveContact, kept across saves to learn the provider's latency.
+    private final ApplyBatchSplitter mDiffSplitter = new ApplyBatchSplitter();
+
+    // Cancels the running deleteMultipleContacts, set from the main thread.
+    private volatile CancellationSignal mDeleteCancellationSignal;
+
+    // Id of the journal entry of a journaled command, see SaveJournal.
+    private static final String EXTRA_JOURNAL_ID = "journalId";
+    // Unique token of a journaled command, set when its intent is created.
+    private static final String EXTRA_JOURNAL_TOKEN = "journalToken";
+
+    private SaveJournal mJournal;
+
+    // Whether the commands left in the journal by a killed process were started again.
+    private boolean mJournalReplayed;
+
     public interface Listener {
         public void onServiceCompleted(Intent callbackIntent);
     }
@@ -188,6 +229,17 @@ public class ContactSaveService extends IntentService {
     private static final CopyOnWriteArrayList<Listener> sListeners =
             new CopyOnWriteArrayList<Listener>();
 
+    /**
+     * Receives the progress of a multiple contacts deletion, on the UI thread. Kept apart from
+     * {@link Listener}, whose callback ends the operation of the activity.
+     */
+    public interface DeleteProgressListener {
+        public void onDeleteProgress(int handled, int total);
+    }
+
+    private static final CopyOnWriteArrayList<DeleteProgressListener> sDeleteProgressListeners =
+            new CopyOnWriteArrayList<DeleteProgressListener>();
+
     private Handler mMainHandler;
 
     public ContactSaveService() {
@@ -199,7 +251,59 @@ public class ContactSaveService extends IntentService {
     @Override
     public void onCreate() {
         super.onCreate();
-        mSubscriptionManager = SubscriptionManager.from(this);
+        mJournal = SaveJournal.getInstance(this);
+        SaveTrace.init(this);
+    }
+
+    /**
+     * Starts again the journaled commands left unfinished by a killed process. They resume
+     * from the progress they recorded. Called on the worker thread, before the first command.
+     */
+    private void replayJournal() {
+        for (SaveJournal.Command command : mJournal.takeOrphans()) {
+            final Intent intent = new Intent(this, ContactSaveService.class);
+            intent.setAction(command.action);
+            if (!SaveJournal.putPayloadExtras(intent, command.payload)) {
+                mJournal.finish(command.id);
+                continue;
+            }
+            Log.i(TAG, "Replaying unfinished " + command.action);
+            if (ACTION_DELETE_MULTIPLE_CONTACTS.equals(command.action)) {
+                showToast(R.string.resuming_delete_contacts);
+            }
+            intent.putExtra(EXTRA_JOURNAL_ID, command.id);
+            startService(intent);
+        }
+    }
+
+    /**
+     * Records the journaled command in the journal.
+     *
+     * @return the id of its journal entry, 0 if it has none, or {@link SaveJournal#SKIP} if
+     *         its work is done or it was dropped.
+     */
+    private long journal(Intent intent) {
+        if (intent.hasExtra(EXTRA_JOURNAL_ID)) {
+            final long journalId = intent.getLongExtra(EXTRA_JOURNAL_ID, SaveJournal.SKIP);
+            mJournal.claim(journalId);
+            return journalId;
+        }
+        final String token = intent.getStringExtra(EXTRA_JOURNAL_TOKEN);
+        return token != null ? mJournal.accept(intent, token) : 0;
+    }
+
+    private static Intent putJournalToken(Intent intent) {
+        return intent.putExtra(EXTRA_JOURNAL_TOKEN, UUID.randomUUID().toString());
+    }
+
+    /**
+     * Returns true for the heavy commands recorded in the journal, whose extras are plain ids
+     * and labels, and whose work is safe to run again.
+     */
+    private static boolean isJournaled(String action) {
+        return ACTION_DELETE_MULTIPLE_CONTACTS.equals(action)
+                || ACTION_JOIN_SEVERAL_CONTACTS.equals(action)
+                || ACTION_UPDATE_GROUP.equals(action);
     }
 
     public static void registerListener(Listener listener) {
@@ -214,6 +318,14 @@ public class ContactSaveService extends IntentService {
         sListeners.remove(listener);
     }
 
+    public static void registerDeleteProgressListener(DeleteProgressListener listener) {
+        sDeleteProgressListeners.add(listener);
+    }
+
+    public static void unregisterDeleteProgressListener(DeleteProgressListener listener) {
+        sDeleteProgressListeners.remove(listener);
+    }
+
     /**
      * Returns true if the ContactSaveService was started successfully and false if an exception
      * was thrown and a Toast error message was displayed.
@@ -263,12 +375,44 @@ public class ContactSaveService extends IntentService {
         return getApplicationContext().getSystemService(name);
     }
 
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        if (intent != null) {
+            if (ACTION_CANCEL_DELETE_MULTIPLE_CONTACTS.equals(intent.getAction())) {
+                // Handled here, as the delete it cancels is blocking the queue.
+                final CancellationSignal signal = mDeleteCancellationSignal;
+                if (signal != null) {
+                    signal.cancel();
+                }
+            }
+            mCommandQueue.add(intent, isCoalescable(intent.getAction()));
+        }
+        return super.onStartCommand(intent, flags, startId);
+    }
+
+    /**
+     * Returns true for the small commands that only update a few columns, and can be applied
+     * in one batch with the ones queued right behind them.
+     */
+    private static boolean isCoalescable(String action) {
+        return ACTION_SET_STARRED.equals(action)
+                || ACTION_CLEAR_PRIMARY.equals(action)
+                || ACTION_SET_SEND_TO_VOICEMAIL.equals(action)
+                || ACTION_SET_RINGTONE.equals(action);
+    }
+
     @Override
     protected void onHandleIntent(Intent intent) {
         if (intent == null) {
             Log.d(TAG, "onHandleIntent: could not handle null intent");
             return;
         }
+        final SaveCommandQueue.Command command = mCommandQueue.remove(intent);
+        if (command != null && command.applied) {
+            // Already applied in the batch of an earlier command.
+            deliverCommandCallback(intent);
+            return;
+        }
         if (!PermissionsUtil.hasPermission(this, WRITE_CONTACTS)) {
             Log.w(TAG, "No WRITE_CONTACTS permission, unable to write to CP2");
             // TODO: add more specific error string such as "Turn on Contacts
@@ -277,10 +421,49 @@ public class ContactSaveService extends IntentService {
             return;
         }
 
+        if (!mJournalReplayed) {
+            mJournalReplayed = true;
+            replayJournal();
+        }
+
         // Call an appropriate method. If we're sure it affects how incoming phone calls are
         // handled, then notify the fact to in-call screen.
         String action = intent.getAction();
-        if (ACTION_NEW_RAW_CONTACT.equals(action)) {
+        final long journalId = isJournaled(action) ? journal(intent) : 0;
+        if (journalId == SaveJournal.SKIP
+                || (journalId > 0 && mJournal.getProgress(journalId) < 0)) {
+            Log.d(TAG, "Skipping " + action + ", its work is already done");
+            return;
+        }
+        if (journalId > 0) {
+            intent.putExtra(EXTRA_JOURNAL_ID, journalId);
+        }
+        final SaveTrace trace = isTraced(action) ? SaveTrace.begin(describe(intent)) : null;
+        int result = RESULT_FAILURE;
+        try {
+            handleIntent(intent, action, command);
+            result = RESULT_SUCCESS;
+        } catch (RuntimeException e) {
+            if (trace != null) {
+                trace.fail(e.toString());
+            }
+            throw e;
+        } finally {
+            if (trace != null) {
+                trace.end(result);
+            }
+        }
+        if (journalId > 0) {
+            mJournal.finish(journalId);
+        }
+    }
+
+    private void handleIntent(Intent intent, String action, SaveCommandQueue.Command command) {
+        if (isCoalescable(action)) {
+            applyCommands(intent, command);
+        } else if (ACTION_SET_SUPER_PRIMARY.equals(action)) {
+            setSuperPrimary(intent);
+        } else if (ACTION_NEW_RAW_CONTACT.equals(action)) {
             createRawContact(intent);
         } else if (ACTION_SAVE_CONTACT.equals(action)) {
             saveContact(intent);
@@ -292,12 +475,6 @@ public class ContactSaveService extends IntentService {
             deleteGroup(intent);
         } else if (ACTION_UPDATE_GROUP.equals(action)) {
             updateGroup(intent);
-        } else if (ACTION_SET_STARRED.equals(action)) {
-            setStarred(intent);
-        } else if (ACTION_SET_SUPER_PRIMARY.equals(action)) {
-            setSuperPrimary(intent);
-        } else if (ACTION_CLEAR_PRIMARY.equals(action)) {
-            clearPrimary(intent);
         } else if (ACTION_DELETE_MULTIPLE_CONTACTS.equals(action)) {
             deleteMultipleContacts(intent);
         } else if (ACTION_DELETE_CONTACT.equals(action)) {
@@ -306,10 +483,133 @@ public class ContactSaveService extends IntentService {
             joinContacts(intent);
         } else if (ACTION_JOIN_SEVERAL_CONTACTS.equals(action)) {
             joinSeveralContacts(intent);
-        } else if (ACTION_SET_SEND_TO_VOICEMAIL.equals(action)) {
-            setSendToVoicemail(intent);
-        } else if (ACTION_SET_RINGTONE.equals(action)) {
-            setRingtone(intent);
+        }
+    }
+
+    /**
+     * Returns true for the heavy commands traced as a whole. saveContact traces its own
+     * phases.
+     */
+    private static boolean isTraced(String action) {
+        return ACTION_CREATE_GROUP.equals(action)
+                || ACTION_UPDATE_GROUP.equals(action)
+                || ACTION_DELETE_GROUP.equals(action)
+                || ACTION_DELETE_CONTACT.equals(action)
+                || ACTION_DELETE_MULTIPLE_CONTACTS.equals(action)
+                || ACTION_JOIN_CONTACTS.equals(action)
+                || ACTION_JOIN_SEVERAL_CONTACTS.equals(action);
+    }
+
+    // the action of a traced command with the number of items it changes.
+    private static String describe(Intent intent) {
+        final StringBuilder description = new StringBuilder(intent.getAction());
+        for (String extra : new String[] {EXTRA_CONTACT_IDS, EXTRA_RAW_CONTACTS_TO_ADD,
+                EXTRA_RAW_CONTACTS_TO_REMOVE}) {
+            final long[] ids = intent.getLongArrayExtra(extra);
+            if (ids != null) {
+                description.append(' ').append(extra).append('=').append(ids.length);
+            }
+        }
+        return description.toString();
+    }
+
+    /**
+     * Applies the small command, together with the ones queued within
+     * {@link #COALESCE_WINDOW_MILLIS}, in one batch. Commands on the same row collapse into
+     * the last one. The window is only waited when another command is already queued, so a
+     * lone command is applied right away.
+     */
+    private void applyCommands(Intent intent, SaveCommandQueue.Command command) {
+        if (command != null && mCommandQueue.hasQueued()) {
+            final long wait = command.arrivalMillis + COALESCE_WINDOW_MILLIS
+                    - SystemClock.elapsedRealtime();
+            if (wait > 0) {
+                SystemClock.sleep(wait);
+            }
+        }
+        final List<Intent> intents = new ArrayList<>();
+        intents.add(intent);
+        intents.addAll(mCommandQueue.takeRun());
+
+        // A later command on a row replaces the earlier one and moves to the end of the batch,
+        // so the batch keeps the order of the last commands.
+        final LinkedHashMap<String, ContentProviderOperation> operations = new LinkedHashMap<>();
+        final LinkedHashSet<Uri> starredContacts = new LinkedHashSet<>();
+        for (Intent queued : intents) {
+            final String action = queued.getAction();
+            if (ACTION_SET_STARRED.equals(action)) {
+                setStarred(queued, operations, starredContacts);
+            } else if (ACTION_CLEAR_PRIMARY.equals(action)) {
+                clearPrimary(queued, operations);
+            } else if (ACTION_SET_SEND_TO_VOICEMAIL.equals(action)) {
+                setSendToVoicemail(queued, operations);
+            } else if (ACTION_SET_RINGTONE.equals(action)) {
+                setRingtone(queued, operations);
+            }
+        }
+        if (DEBUG) {
+            Log.v(TAG, "Applying " + intents.size() + " commands as " + operations.size()
+                    + " operations");
+        }
+
+        final ContentResolver resolver = getContentResolver();
+        final ArrayList<ContentProviderOperation> batch =
+                new ArrayList<>(Math.min(operations.size(), MAX_CONTACTS_PROVIDER_BATCH_SIZE));
+        for (ContentProviderOperation operation : operations.values()) {
+            batch.add(operation);
+            if (batch.size() == MAX_CONTACTS_PROVIDER_BATCH_SIZE) {
+                applyCommandOperations(resolver, batch);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            applyCommandOperations(resolver, batch);
+        }
+
+        for (Uri contactUri : starredContacts) {
+            undemote(contactUri);
+        }
+        deliverCommandCallback(intent);
+    }
+
+    /**
+     * Applies the operations in one batch. If the batch fails, as a row of one command was
+     * deleted meanwhile, the operations are applied one by one so the other commands still
+     * go through.
+     */
+    private void applyCommandOperations(ContentResolver resolver,
+            ArrayList<ContentProviderOperation> operations) {
+        try {
+            resolver.applyBatch(ContactsContract.AUTHORITY, operations);
+            return;
+        } catch (RemoteException | OperationApplicationException e) {
+            Log.w(TAG, "Failed to apply command batch, retrying commands one by one", e);
+        }
+        final ArrayList<ContentProviderOperation> single = new ArrayList<>(1);
+        for (ContentProviderOperation operation : operations) {
+            single.clear();
+            single.add(operation);
+            try {
+                resolver.applyBatch(ContactsContract.AUTHORITY, single);
+            } catch (RemoteException | OperationApplicationException e) {
+                Log.e(TAG, "Failed to apply command on " + operation.getUri(), e);
+            }
+        }
+    }
+
+    private static void putOperation(LinkedHashMap<String, ContentProviderOperation> operations,
+            String key, ContentProviderOperation operation) {
+        operations.remove(key);
+        operations.put(key, operation);
+    }
+
+    /**
+     * Delivers the callback of a small command, if it has one.
+     */
+    private void deliverCommandCallback(Intent intent) {
+        final Intent callbackIntent = intent.getParcelableExtra(EXTRA_CALLBACK_INTENT);
+        if (callbackIntent != null) {
+            deliverCallback(callbackIntent);
         }
     }
 
@@ -439,8 +739,6 @@ public class ContactSaveService extends IntentService {
 
     private void saveContact(Intent intent) {
         RawContactDeltaList state = intent.getParcelableExtra(EXTRA_CONTACT_STATE);
-        boolean isProfile = intent.getBooleanExtra(EXTRA_SAVE_IS_PROFILE, false);
-        Bundle updatedPhotos = intent.getParcelableExtra(EXTRA_UPDATED_PHOTOS);
 
         if (state == null) {
             Log.e(TAG, "Invalid arguments for saveContact request");
@@ -448,6 +746,29 @@ public class ContactSaveService extends IntentService {
         }
 
         int saveMode = intent.getIntExtra(EXTRA_SAVE_MODE, -1);
+        final SaveTrace trace = SaveTrace.begin(ACTION_SAVE_CONTACT + " mode=" + saveMode
+                + " rawContacts=" + state.size());
+        int result = RESULT_FAILURE;
+        try {
+            result = saveContact(intent, state, saveMode, trace);
+        } catch (RuntimeException e) {
+            trace.fail(e.toString());
+            throw e;
+        } finally {
+            trace.end(result);
+        }
+    }
+
+    /**
+     * Persists the state of a saveContact request, and saves its photos.
+     *
+     * @return the result code recorded in the trace.
+     */
+    private int saveContact(Intent intent, RawContactDeltaList state, int saveMode,
+            SaveTrace trace) {
+        boolean isProfile = intent.getBooleanExtra(EXTRA_SAVE_IS_PROFILE, false);
+        Bundle updatedPhotos = intent.getParcelableExtra(EXTRA_UPDATED_PHOTOS);
+
         // Trim any empty fields, and RawContacts, before persisting
         final AccountTypeManager accountTypes = AccountTypeManager.getInstance(this);
         RawContactModifier.trimEmpty(state, accountTypes);
@@ -479,155 +800,145 @@ public class ContactSaveService extends IntentService {
             isCardOperation = (subscription != SubscriptionManager.INVALID_SUBSCRIPTION_ID) ?
                     true : false;
             if (isCardOperation) {
+                final long simStart = SystemClock.elapsedRealtime();
                 result = doSaveToSimCard(entity, resolver, subscription);
+                trace.phase("sim", simStart, 1);
                 Log.d(TAG, "doSaveToSimCard result is  " + result);
             }
         }
         int tries = 0;
         while (tries++ < PERSIST_TRIES) {
             if (result == RESULT_SUCCESS || result == RESULT_FAILURE) {
-            try {
-                // Build operations and try applying
-                final ArrayList<CPOWrapper> diffWrapper = state.buildDiffWrapper();
-
-                final ArrayList<ContentProviderOperation> diff = Lists.newArrayList();
-
-                for (CPOWrapper cpoWrapper : diffWrapper) {
-                    diff.add(cpoWrapper.getOperation());
-                }
-
-                if (DEBUG) {
-                    Log.v(TAG, "Content Provider Operations:");
-                    for (ContentProviderOperation operation : diff) {
-                        Log.v(TAG, operation.toString());
+                try {
+                    // Build operations and try applying. After a version conflict the diff
+                    // is rebuilt from the whole state: only the stale raw contacts were read
+                    // again, but the operations of the others can't be reused as they are,
+                    // since the back references and aggregation exceptions of the state are
+                    // indexes into the whole list.
+                    final long diffStart = SystemClock.elapsedRealtime();
+                    final ArrayList<CPOWrapper> diffWrapper = state.buildDiffWrapper();
+
+                    final ArrayList<ContentProviderOperation> diff = Lists.newArrayList();
+
+                    for (CPOWrapper cpoWrapper : diffWrapper) {
+                        diff.add(cpoWrapper.getOperation());
                     }
-                }
+                    trace.phase("diff try=" + tries, diffStart, diff.size());
 
-                int numberProcessed = 0;
-                boolean batchFailed = false;
-                final ContentProviderResult[] results = new ContentProviderResult[diff.size()];
-                while (numberProcessed < diff.size()) {
-                    final int subsetCount = applyDiffSubset(diff, numberProcessed, results, resolver);
-                    if (subsetCount == -1) {
-                        Log.w(TAG, "Resolver.applyBatch failed in saveContacts");
-                        batchFailed = true;
-                        break;
-                    } else {
-                        numberProcessed += subsetCount;
+                    if (DEBUG) {
+                        Log.v(TAG, "Content Provider Operations:");
+                        for (ContentProviderOperation operation : diff) {
+                            Log.v(TAG, operation.toString());
+                        }
                     }
-                }
 
-                if (batchFailed) {
-                    // Retry save
-                    continue;
-                }
+                    int numberProcessed = 0;
+                    boolean batchFailed = false;
+                    final ContentProviderResult[] results = new ContentProviderResult[diff.size()];
+                    while (numberProcessed < diff.size()) {
+                        final long batchStart = SystemClock.elapsedRealtime();
+                        final int subsetCount =
+                                applyDiffSubset(diffWrapper, numberProcessed, results, resolver);
+                        trace.phase("applyBatch offset=" + numberProcessed, batchStart,
+                                subsetCount);
+                        if (subsetCount == -1) {
+                            Log.w(TAG, "Resolver.applyBatch failed in saveContacts");
+                            trace.fail("applyBatch returned no results");
+                            batchFailed = true;
+                            break;
+                        } else {
+                            numberProcessed += subsetCount;
+                        }
+                    }
 
-                final long rawContactId = getRawContactId(state, diffWrapper, results);
-                if (rawContactId == -1) {
-                    throw new IllegalStateException("Could not determine RawContact ID after save");
-                }
-                // We don't have to check to see if the value is still -1.  If we reach here,
-                // the previous loop iteration didn't succeed, so any ID that we obtained is bogus.
-                insertedRawContactId = getInsertedRawContactId(diffWrapper, results);
-                if (isProfile) {
-                    // Since the profile supports local raw contacts, which may have been completely
-                    // removed if all information was removed, we need to do a special query to
-                    // get the lookup URI for the profile contact (if it still exists).
-                    Cursor c = resolver.query(Profile.CONTENT_URI,
-                            new String[] {Contacts._ID, Contacts.LOOKUP_KEY},
-                            null, null, null);
-                    if (c == null) {
+                    if (batchFailed) {
+                        // Retry save
                         continue;
                     }
-                    try {
-                        if (c.moveToFirst()) {
-                            final long contactId = c.getLong(0);
-                            final String lookupKey = c.getString(1);
-                            lookupUri = Contacts.getLookupUri(contactId, lookupKey);
+
+                    final long rawContactId = getRawContactId(state, diffWrapper, results);
+                    if (rawContactId == -1) {
+                        throw new IllegalStateException(
+                                "Could not determine RawContact ID after save");
+                    }
+                    // We don't have to check to see if the value is still -1.  If we reach
+                    // here, the previous loop iteration didn't succeed, so any ID that we
+                    // obtained is bogus.
+                    insertedRawContactId = getInsertedRawContactId(diffWrapper, results);
+                    if (isProfile) {
+                        // Since the profile supports local raw contacts, which may have been
+                        // completely removed if all information was removed, we need to do a
+                        // special query to get the lookup URI for the profile contact (if it
+                        // still exists).
+                        Cursor c = resolver.query(Profile.CONTENT_URI,
+                                new String[] {Contacts._ID, Contacts.LOOKUP_KEY},
+                                null, null, null);
+                        if (c == null) {
+                            continue;
+                        }
+                        try {
+                            if (c.moveToFirst()) {
+                                final long contactId = c.getLong(0);
+                                final String lookupKey = c.getString(1);
+                                lookupUri = Contacts.getLookupUri(contactId, lookupKey);
+                            }
+                        } finally {
+                            c.close();
                         }
-                    } finally {
-                        c.close();
+                    } else {
+                        final Uri rawContactUri = ContentUris.withAppendedId(
+                                RawContacts.CONTENT_URI, rawContactId);
+                        lookupUri = RawContacts.getContactLookupUri(resolver, rawContactUri);
+                    }
+                    if (lookupUri != null) {
+                        Log.v(TAG, "Saved contact. New URI: " + lookupUri);
                     }
-                } else {
-                    final Uri rawContactUri = ContentUris.withAppendedId(RawContacts.CONTENT_URI,
-                                    rawContactId);
-                    lookupUri = RawContacts.getContactLookupUri(resolver, rawContactUri);
-                }
-                if (lookupUri != null) {
-                    Log.v(TAG, "Saved contact. New URI: " + lookupUri);
-                }
 
-                // We can change this back to false later, if we fail to save the contact photo.
-                succeeded = true;
-                break;
+                    // We can change this back to false later, if we fail to save the contact photo.
+                    succeeded = true;
+                    break;
 
-            } catch (RemoteException e) {
-                // Something went wrong, bail without success
-                Log.e(TAG, "Problem persisting user edits", e);
-                break;
+                } catch (RemoteException e) {
+                    // Something went wrong, bail without success
+                    Log.e(TAG, "Problem persisting user edits", e);
+                    trace.fail(e.toString());
+                    break;
 
-            } catch (IllegalArgumentException e) {
-                // This is thrown by applyBatch on malformed requests
-                Log.e(TAG, "Problem persisting user edits", e);
-                showToast(R.string.contactSavedErrorToast);
-                break;
+                } catch (IllegalArgumentException e) {
+                    // This is thrown by applyBatch on malformed requests
+                    Log.e(TAG, "Problem persisting user edits", e);
+                    trace.fail(e.toString());
+                    showToast(R.string.contactSavedErrorToast);
+                    break;
 
-            } catch (OperationApplicationException e) {
-                // Version consistency failed, re-parent change and try again
-                Log.w(TAG, "Version consistency failed, re-parenting: " + e.toString());
-                final StringBuilder sb = new StringBuilder(RawContacts._ID + " IN(");
-                boolean first = true;
-                final int count = state.size();
-                for (int i = 0; i < count; i++) {
-                    Long rawContactId = state.getRawContactId(i);
-                    if (rawContactId != null && rawContactId != -1) {
-                        if (!first) {
-                            sb.append(',');
+                } catch (OperationApplicationException e) {
+                    // Version consistency failed, re-parent change and try again
+                    Log.w(TAG, "Version consistency failed, re-parenting: " + e.toString());
+                    trace.fail("version conflict, retrying: " + e.getMessage());
+                    final ArrayList<Long> rawContactIds = new ArrayList<>();
+                    final int count = state.size();
+                    for (int i = 0; i < count; i++) {
+                        Long rawContactId = state.getRawContactId(i);
+                        if (rawContactId != null && rawContactId != -1) {
+                            rawContactIds.add(rawContactId);
                         }
-                        sb.append(rawContactId);
-                        first = false;
                     }
-                }
-                sb.append(")");
-
-                if (first) {
-                    throw new IllegalStateException(
-                            "Version consistency failed for a new contact", e);
-                }
 
-                final RawContactDeltaList newState = RawContactDeltaList.fromQuery(
-                        isProfile
-                                ? RawContactsEntity.PROFILE_CONTENT_URI
-                                : RawContactsEntity.CONTENT_URI,
-                        resolver, sb.toString(), null, null);
-                state = RawContactDeltaList.mergeAfter(newState, state);
-
-                // Update the new state to use profile URIs if appropriate.
-                if (isProfile) {
-                    for (RawContactDelta delta : state) {
-                        delta.setProfileQueryUri();
-                        }
+                    if (rawContactIds.isEmpty()) {
+                        throw new IllegalStateException(
+                                "Version consistency failed for a new contact", e);
                     }
-                }
-            }
-        }
 
-        // Now save any updated photos.  We do this at the end to ensure that
-        // the ContactProvider already knows about newly-created contacts.
-        if (updatedPhotos != null) {
-            for (String key : updatedPhotos.keySet()) {
-                Uri photoUri = updatedPhotos.getParcelable(key);
-                long rawContactId = Long.parseLong(key);
-
-                // If the raw-contact ID is negative, we are saving a new raw-contact;
-                // replace the bogus ID with the new one that we actually saved the contact at.
-                if (rawContactId < 0) {
-                    rawContactId = insertedRawContactId;
-                }
+                    final long reparentStart = SystemClock.elapsedRealtime();
+                    reparentStaleRawContacts(state, rawContactIds, resolver, isProfile);
+                    trace.phase("reparent", reparentStart, rawContactIds.size());
 
-                // If the save failed, insertedRawContactId will be -1
-                if (rawContactId < 0 || !saveUpdatedPhoto(rawContactId, photoUri, saveMode)) {
-                    succeeded = false;
+                    // Update the new state to use profile URIs if appropriate.
+                    if (isProfile) {
+                        for (RawContactDelta delta : state) {
+                            delta.setProfileQueryUri();
+                        }
+                    }
                 }
             }
         }
@@ -641,7 +952,108 @@ public class ContactSaveService extends IntentService {
                 callbackIntent.putExtra(EXTRA_SAVE_SUCCEEDED, true);
             }
             callbackIntent.setData(lookupUri);
-            deliverCallback(callbackIntent);
+            deliverCallback(callbackIntent, trace);
+        }
+
+        // Now save any updated photos.  We do this at the end to ensure that
+        // the ContactProvider already knows about newly-created contacts. The callback is
+        // already on its way, so the editor doesn't wait for the photos to be written.
+        if (updatedPhotos != null) {
+            final long photoStart = SystemClock.elapsedRealtime();
+            if (!saveUpdatedPhotos(updatedPhotos, insertedRawContactId, saveMode)) {
+                trace.fail("photo not saved");
+            }
+            trace.phase("photo", photoStart, updatedPhotos.size());
+        }
+        return succeeded ? RESULT_SUCCESS : result;
+    }
+
+    /**
+     * The photo stage of saveContact. Shows a toast if a photo can't be saved, since the save
+     * callback has been delivered already.
+     */
+    private boolean saveUpdatedPhotos(Bundle updatedPhotos, long insertedRawContactId,
+            int saveMode) {
+        boolean succeeded = true;
+        for (String key : updatedPhotos.keySet()) {
+            Uri photoUri = updatedPhotos.getParcelable(key);
+            long rawContactId = Long.parseLong(key);
+
+            // If the raw-contact ID is negative, we are saving a new raw-contact;
+            // replace the bogus ID with the new one that we actually saved the contact at.
+            if (rawContactId < 0) {
+                rawContactId = insertedRawContactId;
+            }
+
+            // If the save failed, insertedRawContactId will be -1
+            if (rawContactId < 0 || !saveUpdatedPhoto(rawContactId, photoUri, saveMode)) {
+                succeeded = false;
+            }
+        }
+        if (!succeeded) {
+            showToast(R.string.contactPhotoSavedErrorToast);
+        }
+        return succeeded;
+    }
+
+    /**
+     * Re-reads only the raw contacts whose version no longer matches the one their delta was
+     * built against, and rebases their changes on the new values. The deltas of the other raw
+     * contacts are kept as they are. If no version changed, all of them are re-read.
+     */
+    private void reparentStaleRawContacts(RawContactDeltaList state,
+            ArrayList<Long> rawContactIds, ContentResolver resolver, boolean isProfile) {
+        final String selection = RawContacts._ID + " IN("
+                + TextUtils.join(",", rawContactIds) + ")";
+        final HashMap<Long, Long> versions = new HashMap<>();
+        final Cursor c = resolver.query(
+                isProfile ? Profile.CONTENT_RAW_CONTACTS_URI : RawContacts.CONTENT_URI,
+                new String[] {RawContacts._ID, RawContacts.VERSION}, selection, null, null);
+        if (c != null) {
+            try {
+                while (c.moveToNext()) {
+                    versions.put(c.getLong(0), c.getLong(1));
+                }
+            } finally {
+                c.close();
+            }
+        }
+
+        final HashSet<Long> stale = new HashSet<>();
+        for (RawContactDelta delta : state) {
+            final Long rawContactId = delta.getRawContactId();
+            if (rawContactId == null || !rawContactIds.contains(rawContactId)) {
+                continue;
+            }
+            final Long version = delta.getValues().getAsLong(RawContacts.VERSION);
+            if (version == null || !version.equals(versions.get(rawContactId))) {
+                stale.add(rawContactId);
+            }
+        }
+        if (stale.isEmpty()) {
+            stale.addAll(rawContactIds);
+        }
+        Log.d(TAG, "Re-parenting " + stale.size() + " of " + rawContactIds.size()
+                + " raw contacts");
+
+        final RawContactDeltaList newState = RawContactDeltaList.fromQuery(
+                isProfile
+                        ? RawContactsEntity.PROFILE_CONTENT_URI
+                        : RawContactsEntity.CONTENT_URI,
+                resolver, RawContacts._ID + " IN(" + TextUtils.join(",", stale) + ")",
+                null, null);
+        for (int i = state.size() - 1; i >= 0; i--) {
+            final Long rawContactId = state.getRawContactId(i);
+            if (rawContactId == null || !stale.contains(rawContactId)) {
+                continue;
+            }
+            final RawContactDelta merged = RawContactDelta.mergeAfter(
+                    newState.getByRawContactId(rawContactId), state.get(i));
+            if (merged != null) {
+                state.set(i, merged);
+            } else {
+                state.remove(i);
+            }
         }
     }
 
@@ -682,8 +1094,12 @@ public class ContactSaveService extends IntentService {
                 return RESULT_NO_NUMBER_AND_EMAIL;
             }
 
+            // Checked in memory, the card is only asked once per sim.
+            final SimCapacityCache simCapacities = SimCapacityCache.getInstance(this);
+            final SimCapacityCache.Capacity capacity = simCapacities.get(subscription);
+
             if (!TextUtils.isEmpty(number)) {
-                if (number.length() > MoreContactUtils.MAX_LENGTH_NUMBER_IN_SIM) {
+                if (number.length() > capacity.maxNumberLength) {
                     return RESULT_NUMBER_ANR_FAILURE;
                 } else if (number.contains(SimContactsConstants.STR_ANRS)) {
                     return RESULT_NUMBER_TYPE_FAILURE;
@@ -693,12 +1109,11 @@ public class ContactSaveService extends IntentService {
             if (!TextUtils.isEmpty(anr)) {
                 String[] anrs = anr.split(SimContactsConstants.ANR_SEP);
                 if (anrs != null) {
-                    if (anrs.length > MoreContactUtils
-                            .getOneSimAnrCount(this, subscription)) {
+                    if (anrs.length > capacity.anrCount) {
                         return RESULT_NUMBER_TYPE_FAILURE;
                     }
                     for (String mAnr : anrs) {
-                        if (mAnr.length() > MoreContactUtils.MAX_LENGTH_NUMBER_IN_SIM) {
+                        if (mAnr.length() > capacity.maxNumberLength) {
                             return RESULT_NUMBER_ANR_FAILURE;
                         }
                     }
@@ -719,32 +1134,17 @@ public class ContactSaveService extends IntentService {
                 }
             }
 
-        if (entity.isContactInsert()) {
-            int count = 0;
-            SubscriptionInfo subInfoRecord = null;
-            try {
-                subInfoRecord = mSubscriptionManager
-                        .getActiveSubscriptionInfoForSimSlotIndex(subscription);
-            } catch (SecurityException e) {
-                Log.w(TAG, "SecurityException thrown, lack permission for"
-                        + " getActiveSubscriptionInfoList", e);
-            }
-            if (subInfoRecord != null) {
-                int[] adnCount = UiccPhoneBookController_Wrapper
-                        .getAdnRecordsCapacityForSubscriber(subInfoRecord.getSubscriptionId());
-                if(adnCount!=null)
-                    count= adnCount[MoreContactUtils.ADN_USED_POS];
-            }
-            if (count >0 && count == MoreContactUtils.getAdnCount(this, subscription)) {
-                return RESULT_SIM_FULL_FAILURE;
-            }
+        if (entity.isContactInsert() && simCapacities.isFull(subscription)) {
+            return RESULT_SIM_FULL_FAILURE;
         }
 
             if (isInsert) {
                 Uri resultUri = mSimContactsOperation.insert(values,
                         subscription);
-                if (resultUri != null)
+                if (resultUri != null) {
                     result = RESULT_SUCCESS;
+                    simCapacities.onRecordInserted(subscription);
+                }
             } else {
                 int resultInt = mSimContactsOperation.update(values,
                         subscription);
@@ -755,19 +1155,20 @@ public class ContactSaveService extends IntentService {
         }
 
     /**
-     * Splits "diff" into subsets based on "MAX_CONTACTS_PROVIDER_BATCH_SIZE", applies each of the
+     * Splits "diffWrapper" into subsets sized by {@link ApplyBatchSplitter}, applies each of the
      * subsets, adds the returned array to "results".
      *
      * @return the size of the array, if not null; -1 when the array is null.
      */
-    private int applyDiffSubset(ArrayList<ContentProviderOperation> diff, int offset,
+    private int applyDiffSubset(ArrayList<CPOWrapper> diffWrapper, int offset,
             ContentProviderResult[] results, ContentResolver resolver)
             throws RemoteException, OperationApplicationException {
-        final int subsetCount = Math.min(diff.size() - offset, MAX_CONTACTS_PROVIDER_BATCH_SIZE);
-        final ArrayList<ContentProviderOperation> subset = new ArrayList<>();
-        subset.addAll(diff.subList(offset, offset + subsetCount));
+        final ArrayList<ContentProviderOperation> subset =
+                mDiffSplitter.nextBatch(diffWrapper, offset, results);
+        final long start = SystemClock.elapsedRealtime();
         final ContentProviderResult[] subsetResult = resolver.applyBatch(ContactsContract
                 .AUTHORITY, subset);
+        mDiffSplitter.onBatchApplied(SystemClock.elapsedRealtime() - start);
         if (subsetResult == null || (offset + subsetResult.length) > results.length) {
             return -1;
         }
@@ -786,7 +1187,9 @@ public class ContactSaveService extends IntentService {
                 ContentUris.withAppendedId(RawContacts.CONTENT_URI, rawContactId),
                 RawContacts.DisplayPhoto.CONTENT_DIRECTORY);
 
-        return ContactPhotoUtils.savePhotoFromUriToUri(this, photoUri, outputUri, (saveMode == 0));
+        // Downscale large photos before writing them, the provider would shrink them anyway.
+        return ContactPhotoUtils.saveScaledPhotoFromUriToUri(this, photoUri, outputUri,
+                ContactPhotoUtils.getDisplayPhotoMaxDimension(this), (saveMode == 0));
     }
 
     /**
@@ -881,8 +1284,9 @@ public class ContactSaveService extends IntentService {
             return;
         }
 
-        // Add new group members
-        addMembersToGroup(resolver, rawContactsToAdd, ContentUris.parseId(groupUri));
+        // Add new group members, the group has none yet
+        final int added = addMembersToGroup(resolver, rawContactsToAdd,
+                ContentUris.parseId(groupUri), new HashSet<Long>());
 
         // TODO: Move this into the contact editor where it belongs. This needs to be integrated
         // with the way other intent extras that are passed to the {@link ContactEditorActivity}.
@@ -894,6 +1298,7 @@ public class ContactSaveService extends IntentService {
         callbackIntent.setData(groupUri);
         // TODO: This can be taken out when the above TODO is addressed
         callbackIntent.putExtra(ContactsContract.Intents.Insert.DATA, Lists.newArrayList(values));
+        putGroupMemberCounts(callbackIntent, rawContactsToAdd, added, 0);
         deliverCallback(callbackIntent);
     }
 
@@ -980,6 +1385,7 @@ public class ContactSaveService extends IntentService {
         serviceIntent.putExtra(ContactSaveService.EXTRA_RAW_CONTACTS_TO_ADD, rawContactsToAdd);
         serviceIntent.putExtra(ContactSaveService.EXTRA_RAW_CONTACTS_TO_REMOVE,
                 rawContactsToRemove);
+        putJournalToken(serviceIntent);
 
         // Callback intent will be invoked by the service once the group is updated
         Intent callbackIntent = new Intent(context, callbackActivity);
@@ -1010,81 +1416,175 @@ public class ContactSaveService extends IntentService {
             resolver.update(groupUri, values, null, null);
         }
 
-        // Add and remove members if necessary
-        addMembersToGroup(resolver, rawContactsToAdd, groupId);
-        removeMembersFromGroup(resolver, rawContactsToRemove, groupId);
+        // Add and remove members if necessary, against the members read once
+        int added = 0;
+        int removed = 0;
+        if (rawContactsToAdd != null || rawContactsToRemove != null) {
+            final HashSet<Long> members = getGroupMembers(resolver, groupId);
+            added = addMembersToGroup(resolver, rawContactsToAdd, groupId, members);
+            removed = removeMembersFromGroup(resolver, rawContactsToRemove, groupId, members);
+        }
 
         Intent callbackIntent = intent.getParcelableExtra(EXTRA_CALLBACK_INTENT);
+        if (callbackIntent == null) {
+            // Replayed from the journal, the activity waiting for it is gone.
+            return;
+        }
         callbackIntent.setData(groupUri);
+        putGroupMemberCounts(callbackIntent, rawContactsToAdd, added, removed);
         deliverCallback(callbackIntent);
     }
 
-    private static void addMembersToGroup(ContentResolver resolver, long[] rawContactsToAdd,
-            long groupId) {
+    private static void putGroupMemberCounts(Intent callbackIntent, long[] rawContactsToAdd,
+            int added, int removed) {
+        final int requested = rawContactsToAdd == null ? 0 : rawContactsToAdd.length;
+        callbackIntent.putExtra(EXTRA_GROUP_MEMBERS_ADDED, added);
+        callbackIntent.putExtra(EXTRA_GROUP_MEMBERS_SKIPPED, requested - added);
+        callbackIntent.putExtra(EXTRA_GROUP_MEMBERS_REMOVED, removed);
+    }
+
+    /**
+     * Returns the ids of the raw contacts in the group.
+     */
+    private static HashSet<Long> getGroupMembers(ContentResolver resolver, long groupId) {
+        final HashSet<Long> members = new HashSet<>();
+        final Cursor c = resolver.query(Data.CONTENT_URI, new String[] {Data.RAW_CONTACT_ID},
+                Data.MIMETYPE + "=? AND " + GroupMembership.GROUP_ROW_ID + "=?",
+                new String[] {GroupMembership.CONTENT_ITEM_TYPE, String.valueOf(groupId)},
+                null);
+        if (c == null) {
+            return members;
+        }
+        try {
+            while (c.moveToNext()) {
+                members.add(c.getLong(0));
+            }
+        } finally {
+            c.close();
+        }
+        return members;
+    }
+
+    /**
+     * Adds the raw contacts that are not members yet, in chunked batches.
+     *
+     * @param members the current members of the group, updated with the ones added.
+     * @return the number of members added.
+     */
+    private static int addMembersToGroup(ContentResolver resolver, long[] rawContactsToAdd,
+            long groupId, HashSet<Long> members) {
         if (rawContactsToAdd == null) {
-            return;
+            return 0;
         }
+        final ArrayList<Long> toAdd = new ArrayList<>();
         for (long rawContactId : rawContactsToAdd) {
-            try {
-                final ArrayList<ContentProviderOperation> rawContactOperations =
-                        new ArrayList<ContentProviderOperation>();
-
-                // Build an assert operation to ensure the contact is not already in the group
-                final ContentProviderOperation.Builder assertBuilder = ContentProviderOperation
-                        .newAssertQuery(Data.CONTENT_URI);
-                assertBuilder.withSelection(Data.RAW_CONTACT_ID + "=? AND " +
-                        Data.MIMETYPE + "=? AND " + GroupMembership.GROUP_ROW_ID + "=?",
-                        new String[] { String.valueOf(rawContactId),
-                        GroupMembership.CONTENT_ITEM_TYPE, String.valueOf(groupId)});
-                assertBuilder.withExpectedCount(0);
-                rawContactOperations.add(assertBuilder.build());
+            if (members.add(rawContactId)) {
+                toAdd.add(rawContactId);
+            }
+        }
 
+        int added = 0;
+        final ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        for (int start = 0; start < toAdd.size(); start += MAX_CONTACTS_PROVIDER_BATCH_SIZE) {
+            final List<Long> chunk = toAdd.subList(start,
+                    Math.min(start + MAX_CONTACTS_PROVIDER_BATCH_SIZE, toAdd.size()));
+            operations.clear();
+            for (long rawContactId : chunk) {
                 // Build an insert operation to add the contact to the group
-                final ContentProviderOperation.Builder insertBuilder = ContentProviderOperation
-                        .newInsert(Data.CONTENT_URI);
-                insertBuilder.withValue(Data.RAW_CONTACT_ID, rawContactId);
-                insertBuilder.withValue(Data.MIMETYPE, GroupMembership.CONTENT_ITEM_TYPE);
-                insertBuilder.withValue(GroupMembership.GROUP_ROW_ID, groupId);
-                rawContactOperations.add(insertBuilder.build());
-
-                if (DEBUG) {
-                    for (ContentProviderOperation operation : rawContactOperations) {
-                        Log.v(TAG, operation.toString());
-                    }
-                }
+                operations.add(newGroupMembershipInsert(rawContactId, groupId));
+            }
 
-                // Apply batch
-                if (!rawContactOperations.isEmpty()) {
-                    resolver.applyBatch(ContactsContract.AUTHORITY, rawContactOperations);
+            if (DEBUG) {
+                for (ContentProviderOperation operation : operations) {
+                    Log.v(TAG, operation.toString());
                 }
-            } catch (RemoteException e) {
-                // Something went wrong, bail without success
-                Log.e(TAG, "Problem persisting user edits for raw contact ID " +
-                        String.valueOf(rawContactId), e);
-            } catch (OperationApplicationException e) {
-                // The assert could have failed because the contact is already in the group,
-                // just continue to the next contact
-                Log.w(TAG, "Assert failed in adding raw contact ID " +
-                        String.valueOf(rawContactId) + ". Already exists in group " +
-                        String.valueOf(groupId), e);
+            }
+
+            try {
+                resolver.applyBatch(ContactsContract.AUTHORITY, operations);
+                added += chunk.size();
+            } catch (RemoteException | OperationApplicationException e) {
+                // Something went wrong, retry the members of the chunk one by one so that
+                // only the bad ones are lost
+                Log.e(TAG, "Problem adding " + chunk.size() + " members to group "
+                        + groupId + ", retrying them one by one", e);
+                added += addMembersToGroupOneByOne(resolver, chunk, groupId, members);
             }
         }
+        return added;
     }
 
-    private static void removeMembersFromGroup(ContentResolver resolver, long[] rawContactsToRemove,
+    /**
+     * Adds the raw contacts of a failed chunk one at a time.
+     *
+     * @param members the current members of the group, the ones that failed are removed.
+     * @return the number of members added.
+     */
+    private static int addMembersToGroupOneByOne(ContentResolver resolver, List<Long> chunk,
+            long groupId, HashSet<Long> members) {
+        // The yield points of the failed batch may have committed part of it.
+        final HashSet<Long> current = getGroupMembers(resolver, groupId);
+        int added = 0;
+        final ArrayList<ContentProviderOperation> operations = new ArrayList<>(1);
+        for (long rawContactId : chunk) {
+            if (current.contains(rawContactId)) {
+                added++;
+                continue;
+            }
+            operations.clear();
+            operations.add(newGroupMembershipInsert(rawContactId, groupId));
+            try {
+                resolver.applyBatch(ContactsContract.AUTHORITY, operations);
+                added++;
+            } catch (RemoteException | OperationApplicationException e) {
+                Log.e(TAG, "Problem adding raw contact " + rawContactId + " to group "
+                        + groupId, e);
+                members.remove(rawContactId);
+            }
+        }
+        return added;
+    }
+
+    private static ContentProviderOperation newGroupMembershipInsert(long rawContactId,
             long groupId) {
+        return ContentProviderOperation.newInsert(Data.CONTENT_URI)
+                .withValue(Data.RAW_CONTACT_ID, rawContactId)
+                .withValue(Data.MIMETYPE, GroupMembership.CONTENT_ITEM_TYPE)
+                .withValue(GroupMembership.GROUP_ROW_ID, groupId)
+                .withYieldAllowed(true)
+                .build();
+    }
+
+    /**
+     * Removes the raw contacts that are members, with one delete per chunk.
+     *
+     * @param members the current members of the group, updated with the ones removed.
+     * @return the number of members removed.
+     */
+    private static int removeMembersFromGroup(ContentResolver resolver,
+            long[] rawContactsToRemove, long groupId, HashSet<Long> members) {
         if (rawContactsToRemove == null) {
-            return;
+            return 0;
         }
+        final ArrayList<Long> toRemove = new ArrayList<>();
         for (long rawContactId : rawContactsToRemove) {
-            // Apply the delete operation on the data row for the given raw contact's
-            // membership in the given group. If no contact matches the provided selection, then
-            // nothing will be done. Just continue to the next contact.
-            resolver.delete(Data.CONTENT_URI, Data.RAW_CONTACT_ID + "=? AND " +
-                    Data.MIMETYPE + "=? AND " + GroupMembership.GROUP_ROW_ID + "=?",
-                    new String[] { String.valueOf(rawContactId),
-                    GroupMembership.CONTENT_ITEM_TYPE, String.valueOf(groupId)});
+            // Raw contacts not in the group have nothing to delete.
+            if (members.remove(rawContactId)) {
+                toRemove.add(rawContactId);
+            }
         }
+
+        int removed = 0;
+        for (int start = 0; start < toRemove.size();
+                start += MAX_CONTACTS_PROVIDER_BATCH_SIZE) {
+            final List<Long> chunk = toRemove.subList(start,
+                    Math.min(start + MAX_CONTACTS_PROVIDER_BATCH_SIZE, toRemove.size()));
+            removed += resolver.delete(Data.CONTENT_URI,
+                    Data.RAW_CONTACT_ID + " IN (" + TextUtils.join(",", chunk) + ") AND "
+                    + Data.MIMETYPE + "=? AND " + GroupMembership.GROUP_ROW_ID + "=?",
+                    new String[] {GroupMembership.CONTENT_ITEM_TYPE, String.valueOf(groupId)});
+        }
+        return removed;
     }
 
     /**
@@ -1099,7 +1599,8 @@ public class ContactSaveService extends IntentService {
         return serviceIntent;
     }
 
-    private void setStarred(Intent intent) {
+    private void setStarred(Intent intent,
+            LinkedHashMap<String, ContentProviderOperation> operations, Set<Uri> starred) {
         Uri contactUri = intent.getParcelableExtra(EXTRA_CONTACT_URI);
         boolean value = intent.getBooleanExtra(EXTRA_STARRED_FLAG, false);
         if (contactUri == null) {
@@ -1107,11 +1608,17 @@ public class ContactSaveService extends IntentService {
             return;
         }
 
-        final ContentValues values = new ContentValues(1);
-        values.put(Contacts.STARRED, value);
-        getContentResolver().update(contactUri, values, null, null);
+        putOperation(operations, ACTION_SET_STARRED + contactUri,
+                ContentProviderOperation.newUpdate(contactUri)
+                        .withValue(Contacts.STARRED, value ? 1 : 0)
+                        .build());
+        starred.add(contactUri);
+    }
 
-        // Undemote the contact if necessary
+    /**
+     * Undemote the contact if necessary
+     */
+    private void undemote(Uri contactUri) {
         final Cursor c = getContentResolver().query(contactUri, new String[] {Contacts._ID},
                 null, null, null);
         if (c == null) {
@@ -1144,7 +1651,8 @@ public class ContactSaveService extends IntentService {
         return serviceIntent;
     }
 
-    private void setSendToVoicemail(Intent intent) {
+    private void setSendToVoicemail(Intent intent,
+            LinkedHashMap<String, ContentProviderOperation> operations) {
         Uri contactUri = intent.getParcelableExtra(EXTRA_CONTACT_URI);
         boolean value = intent.getBooleanExtra(EXTRA_SEND_TO_VOICEMAIL_FLAG, false);
         if (contactUri == null) {
@@ -1152,9 +1660,10 @@ public class ContactSaveService extends IntentService {
             return;
         }
 
-        final ContentValues values = new ContentValues(1);
-        values.put(Contacts.SEND_TO_VOICEMAIL, value);
-        getContentResolver().update(contactUri, values, null, null);
+        putOperation(operations, ACTION_SET_SEND_TO_VOICEMAIL + contactUri,
+                ContentProviderOperation.newUpdate(contactUri)
+                        .withValue(Contacts.SEND_TO_VOICEMAIL, value ? 1 : 0)
+                        .build());
     }
 
     /**
@@ -1170,16 +1679,18 @@ public class ContactSaveService extends IntentService {
         return serviceIntent;
     }
 
-    private void setRingtone(Intent intent) {
+    private void setRingtone(Intent intent,
+            LinkedHashMap<String, ContentProviderOperation> operations) {
         Uri contactUri = intent.getParcelableExtra(EXTRA_CONTACT_URI);
         String value = intent.getStringExtra(EXTRA_CUSTOM_RINGTONE);
         if (contactUri == null) {
             Log.e(TAG, "Invalid arguments for setRingtone");
             return;
         }
-        ContentValues values = new ContentValues(1);
-        values.put(Contacts.CUSTOM_RINGTONE, value);
-        getContentResolver().update(contactUri, values, null, null);
+        putOperation(operations, ACTION_SET_RINGTONE + contactUri,
+                ContentProviderOperation.newUpdate(contactUri)
+                        .withValue(Contacts.CUSTOM_RINGTONE, value)
+                        .build());
     }
 
     /**
@@ -1214,7 +1725,8 @@ public class ContactSaveService extends IntentService {
         return serviceIntent;
     }
 
-    private void clearPrimary(Intent intent) {
+    private void clearPrimary(Intent intent,
+            LinkedHashMap<String, ContentProviderOperation> operations) {
         long dataId = intent.getLongExtra(EXTRA_DATA_ID, -1);
         if (dataId == -1) {
             Log.e(TAG, "Invalid arguments for clearPrimary request");
@@ -1222,12 +1734,11 @@ public class ContactSaveService extends IntentService {
         }
 
         // Update the primary values in the data record.
-        ContentValues values = new ContentValues(1);
-        values.put(Data.IS_SUPER_PRIMARY, 0);
-        values.put(Data.IS_PRIMARY, 0);
-
-        getContentResolver().update(ContentUris.withAppendedId(Data.CONTENT_URI, dataId),
-                values, null, null);
+        putOperation(operations, "primary" + dataId, ContentProviderOperation
+                .newUpdate(ContentUris.withAppendedId(Data.CONTENT_URI, dataId))
+                .withValue(Data.IS_SUPER_PRIMARY, 0)
+                .withValue(Data.IS_PRIMARY, 0)
+                .build());
     }
 
     /**
@@ -1248,6 +1759,34 @@ public class ContactSaveService extends IntentService {
         Intent serviceIntent = new Intent(context, ContactSaveService.class);
         serviceIntent.setAction(ContactSaveService.ACTION_DELETE_MULTIPLE_CONTACTS);
         serviceIntent.putExtra(ContactSaveService.EXTRA_CONTACT_IDS, contactIds);
+        return putJournalToken(serviceIntent);
+    }
+
+    /**
+     * Creates an intent that can be sent to this service to delete multiple contacts, and
+     * report a final summary to the callback activity. The progress goes to the
+     * {@link DeleteProgressListener}s.
+     *
+     * @param callbackActivity is the activity to send the summary callback intent to
+     * @param callbackAction is the intent action for the callback intent
+     */
+    public static Intent createDeleteMultipleContactsIntent(Context context,
+            long[] contactIds, Class<? extends Activity> callbackActivity,
+            String callbackAction) {
+        Intent serviceIntent = createDeleteMultipleContactsIntent(context, contactIds);
+        Intent callbackIntent = new Intent(context, callbackActivity);
+        callbackIntent.setAction(callbackAction);
+        serviceIntent.putExtra(ContactSaveService.EXTRA_CALLBACK_INTENT, callbackIntent);
+        return serviceIntent;
+    }
+
+    /**
+     * Creates an intent that cancels the multiple contacts deletion in progress. The
+     * contacts deleted so far stay deleted.
+     */
+    public static Intent createCancelDeleteMultipleContactsIntent(Context context) {
+        Intent serviceIntent = new Intent(context, ContactSaveService.class);
+        serviceIntent.setAction(ContactSaveService.ACTION_CANCEL_DELETE_MULTIPLE_CONTACTS);
         return serviceIntent;
     }
 
@@ -1269,6 +1808,7 @@ public class ContactSaveService extends IntentService {
                     .getSimAccountValues(uriContactId);
             int result = mSimContactsOperation.delete(values, subscription);
             if (result == RESULT_SUCCESS) {
+                SimCapacityCache.getInstance(this).onRecordDeleted(subscription);
                 getContentResolver().delete(contactUri, null, null);
             }
         } else {
@@ -1282,12 +1822,60 @@ public class ContactSaveService extends IntentService {
             Log.e(TAG, "Invalid arguments for deleteMultipleContacts request");
             return;
         }
-        for (long contactId : contactIds) {
-            final Uri contactUri = ContentUris.withAppendedId(Contacts.CONTENT_URI, contactId);
-            getContentResolver().delete(contactUri, null, null);
+        final Intent callbackIntent = intent.getParcelableExtra(EXTRA_CALLBACK_INTENT);
+        final long journalId = intent.getLongExtra(EXTRA_JOURNAL_ID, 0);
+        // Roll forward from the last chunk recorded before the process was killed.
+        final int start = journalId > 0 ? Math.max(0, mJournal.getProgress(journalId)) : 0;
+        final ArrayList<Long> ids = new ArrayList<>(contactIds.length - start);
+        for (int i = start; i < contactIds.length; i++) {
+            ids.add(contactIds[i]);
+        }
+
+        // The provider can't delete from Contacts by selection, delete the raw contacts of
+        // each chunk of contacts instead.
+        final CancellationSignal signal = new CancellationSignal();
+        mDeleteCancellationSignal = signal;
+        final List<BulkDeleter.ChunkResult> results;
+        try {
+            results = new BulkDeleter(getContentResolver(), RawContacts.CONTENT_URI,
+                    RawContacts.CONTACT_ID).delete(ids, new BulkDeleter.Listener() {
+                        @Override
+                        public void onProgress(int handled, int total) {
+                            if (journalId > 0) {
+                                mJournal.setProgress(journalId, start + handled);
+                            }
+                            if (handled < total) {
+                                deliverDeleteProgress(start + handled, start + total);
+                            }
+                        }
+                    }, signal);
+        } finally {
+            mDeleteCancellationSignal = null;
+        }
+
+        final int failed = BulkDeleter.countFailed(results);
+        int handled = 0;
+        for (BulkDeleter.ChunkResult result : results) {
+            handled += result.requested;
+        }
+        final int deleted = start + handled - failed;
+        if (failed > 0 || signal.isCanceled()) {
+            Log.w(TAG, "Deleted " + deleted + " of " + contactIds.length + " contacts, "
+                    + failed + " failed" + (signal.isCanceled() ? ", canceled" : ""));
+        }
+
+        if (callbackIntent != null) {
+            callbackIntent.putExtra(EXTRA_DELETE_TOTAL_COUNT, contactIds.length);
+            callbackIntent.putExtra(EXTRA_DELETED_COUNT, deleted);
+            callbackIntent.putExtra(EXTRA_DELETE_FAILED_COUNT, failed);
+            callbackIntent.putExtra(EXTRA_DELETE_CANCELED, signal.isCanceled());
+            deliverCallback(callbackIntent);
+        }
+        if (deleted == 0) {
+            return;
         }
         final String deleteToastMessage = getResources().getQuantityString(R.plurals
-                .contacts_deleted_toast, contactIds.length);
+                .contacts_deleted_toast, deleted);
         mMainHandler.post(new Runnable() {
             @Override
             public void run() {
@@ -1324,7 +1912,7 @@ public class ContactSaveService extends IntentService {
         Intent serviceIntent = new Intent(context, ContactSaveService.class);
         serviceIntent.setAction(ContactSaveService.ACTION_JOIN_SEVERAL_CONTACTS);
         serviceIntent.putExtra(ContactSaveService.EXTRA_CONTACT_IDS, contactIds);
-        return serviceIntent;
+        return putJournalToken(serviceIntent);
     }
 
 
@@ -1366,31 +1954,81 @@ public class ContactSaveService extends IntentService {
             return;
         }
 
-        // For each pair of raw contacts, insert an aggregation exception
         final ContentResolver resolver = getContentResolver();
         // The maximum number of operations per batch (aka yield point) is 500. See b/22480225
         final int batchSize = MAX_CONTACTS_PROVIDER_BATCH_SIZE;
         final ArrayList<ContentProviderOperation> operations = new ArrayList<>(batchSize);
-        for (int i = 0; i < rawContactIds.length; i++) {
-            for (int j = 0; j < rawContactIds.length; j++) {
-                if (i != j) {
-                    buildJoinContactDiff(operations, rawContactIds[i], rawContactIds[j]);
-                }
-                // Before we get to 500 we need to flush the operations list
-                if (operations.size() > 0 && operations.size() % batchSize == 0) {
-                    if (!applyJoinOperations(resolver, operations)) {
-                        return;
-                    }
-                    operations.clear();
+
+        // Link every raw contact to the first one, in both directions. The aggregator keeps
+        // all the raw contacts linked together in one contact, so 2(n-1) exceptions are
+        // enough instead of one for every pair.
+        for (int i = 1; i < rawContactIds.length; i++) {
+            buildJoinContactDiff(operations, rawContactIds[0], rawContactIds[i]);
+            buildJoinContactDiff(operations, rawContactIds[i], rawContactIds[0]);
+            if (operations.size() >= batchSize - 1) {
+                if (!applyJoinOperations(resolver, operations)) {
+                    return;
                 }
+                operations.clear();
             }
         }
         if (operations.size() > 0 && !applyJoinOperations(resolver, operations)) {
             return;
         }
+        operations.clear();
+
+        if (!isAggregatedTogether(resolver, rawContactIds)) {
+            // For each pair of raw contacts, insert an aggregation exception
+            Log.w(TAG, "Raw contacts not aggregated together, linking every pair");
+            for (int i = 0; i < rawContactIds.length; i++) {
+                for (int j = 0; j < rawContactIds.length; j++) {
+                    if (i != j) {
+                        buildJoinContactDiff(operations, rawContactIds[i], rawContactIds[j]);
+                    }
+                    // Before we get to 500 we need to flush the operations list
+                    if (operations.size() > 0 && operations.size() % batchSize == 0) {
+                        if (!applyJoinOperations(resolver, operations)) {
+                            return;
+                        }
+                        operations.clear();
+                    }
+                }
+            }
+            if (operations.size() > 0 && !applyJoinOperations(resolver, operations)) {
+                return;
+            }
+        }
         showToast(R.string.contactsJoinedMessage);
     }
 
+    /**
+     * Returns true if all the raw contacts belong to the same contact, with one query.
+     */
+    private static boolean isAggregatedTogether(ContentResolver resolver, long[] rawContactIds) {
+        final StringBuilder selection = new StringBuilder(RawContacts._ID + " IN (");
+        for (int i = 0; i < rawContactIds.length; i++) {
+            if (i > 0) {
+                selection.append(',');
+            }
+            selection.append(rawContactIds[i]);
+        }
+        selection.append(')');
+        final Cursor c = resolver.query(RawContacts.CONTENT_URI,
+                new String[] {RawContacts.CONTACT_ID}, selection.toString(), null, null);
+        if (c == null) {
+            return false;
+        }
+        try {
+            final HashSet<Long> contactIds = new HashSet<>();
+            while (c.moveToNext()) {
+                contactIds.add(c.getLong(0));
+            }
+            return c.getCount() == rawContactIds.length && contactIds.size() == 1;
+        } finally {
+            c.close();
+        }
+    }
+
     /** Returns true if the batch was successfully applied and false otherwise. */
     private boolean applyJoinOperations(ContentResolver resolver,
             ArrayList<ContentProviderOperation> operations) {
@@ -1571,6 +2209,42 @@ public class ContactSaveService extends IntentService {
         });
     }
 
+    private void deliverDeleteProgress(final int handled, final int total) {
+        if (sDeleteProgressListeners.isEmpty()) {
+            return;
+        }
+        mMainHandler.post(new Runnable() {
+
+            @Override
+            public void run() {
+                for (DeleteProgressListener listener : sDeleteProgressListeners) {
+                    listener.onDeleteProgress(handled, total);
+                }
+            }
+        });
+    }
+
+    /**
+     * Same as {@link #deliverCallback(Intent)}, recording how long the callback waited for
+     * the UI thread and took there.
+     */
+    private void deliverCallback(final Intent callbackIntent, final SaveTrace trace) {
+        final long postMillis = SystemClock.elapsedRealtime();
+        mMainHandler.post(new Runnable() {
+
+            @Override
+            public void run() {
+                deliverCallbackOnUiThread(callbackIntent);
+                trace.phase("callback", postMillis, -1);
+            }
+        });
+    }
+
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        SaveTrace.dumpAll(writer);
+    }
+
     void deliverCallbackOnUiThread(final Intent callbackIntent) {
         // TODO: this assumes that if there are multiple instances of the same
         // activity registered, the last one registered is the one waiting for
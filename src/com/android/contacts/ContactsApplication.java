@@ -31,7 +31,9 @@ import android.util.Log;
 
 import com.android.contacts.common.testing.InjectedServices;
 import com.android.contacts.common.util.Constants;
+import com.android.contacts.common.util.PermissionsUtil;
 import com.android.contacts.commonbind.analytics.AnalyticsUtil;
+import com.android.contacts.util.DuplicatesIndex;
 
 import com.android.contacts.common.testing.NeededForTesting;
 import com.google.common.annotations.VisibleForTesting;
@@ -133,6 +135,12 @@ public class ContactsApplication extends Application {
             PreferenceManager.getDefaultSharedPreferences(context);
             getContentResolver().getType(ContentUris.withAppendedId(Contacts.CONTENT_URI, 1));
 
+            // the process is restarted once the permission is revoked, the copy of the
+            // contacts kept for the duplicates search has to go.
+            if (!PermissionsUtil.hasContactsPermissions(context)) {
+                DuplicatesIndex.purge(context);
+            }
+
             return null;
         }
 
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts;
+
+import android.content.Intent;
+import android.os.SystemClock;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Mirrors the intents queued on {@link ContactSaveService}, in order, so that a run of small
+ * commands waiting behind each other can be applied in a single batch. The intents of such a
+ * run still go through the service one by one, and are skipped once applied.
+ */
+class SaveCommandQueue {
+
+    /**
+     * An intent started on the service.
+     */
+    static class Command {
+        final Intent intent;
+        final boolean coalescable;
+        final long arrivalMillis;
+        boolean applied;
+
+        Command(Intent intent, boolean coalescable, long arrivalMillis) {
+            this.intent = intent;
+            this.coalescable = coalescable;
+            this.arrivalMillis = arrivalMillis;
+        }
+    }
+
+    private final ArrayDeque<Command> mCommands = new ArrayDeque<>();
+
+    /**
+     * Called when the intent is started, before the service queues it.
+     */
+    synchronized void add(Intent intent, boolean coalescable) {
+        mCommands.add(new Command(intent, coalescable, SystemClock.elapsedRealtime()));
+    }
+
+    /**
+     * Called when the service handles the intent.
+     *
+     * @return the command of the intent, or null if it was not added.
+     */
+    synchronized Command remove(Intent intent) {
+        Iterator<Command> iterator = mCommands.iterator();
+        while (iterator.hasNext()) {
+            Command command = iterator.next();
+            if (command.intent == intent) {
+                iterator.remove();
+                return command;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns true if a command is queued behind the one being handled.
+     */
+    synchronized boolean hasQueued() {
+        return !mCommands.isEmpty();
+    }
+
+    /**
+     * Marks the coalescable commands now at the head of the queue as applied, stopping at the
+     * first one that is not, so that no command is applied ahead of an earlier one.
+     *
+     * @return the intents of the commands marked.
+     */
+    synchronized List<Intent> takeRun() {
+        ArrayList<Intent> intents = new ArrayList<>();
+        for (Command command : mCommands) {
+            if (!command.coalescable) {
+                break;
+            }
+            if (!command.applied) {
+                command.applied = true;
+                intents.add(command.intent);
+            }
+        }
+        return intents;
+    }
+}
@@ -0,0 +1,336 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.Intent;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * On-disk journal of the heavy commands accepted by {@link ContactSaveService} and of how far
+ * each one got, so that the work of a killed process can be rolled forward when the service
+ * restarts instead of being lost or left half applied.
+ *
+ * Only commands whose extras are plain ids and labels are journaled, they are rebuilt from
+ * those extras on replay, without their callback. A command is keyed on the token its intent
+ * was created with, so that only its own redelivery takes it over.
+ *
+ * The journal is read and written from the worker thread of the service.
+ */
+class SaveJournal extends SQLiteOpenHelper {
+    private static final String TAG = "SaveJournal";
+
+    private static final String DATABASE_NAME = "save_journal.db";
+    private static final int DATABASE_VERSION = 2;
+
+    private static final String TABLE_COMMANDS = "commands";
+
+    private static final String ID = "_id";
+    private static final String TOKEN = "token";
+    private static final String ACTION = "action";
+    private static final String PAYLOAD = "payload";
+    private static final String PROGRESS = "progress";
+    private static final String STATE = "state";
+    // the run of the process that accepted the command, the command is orphaned once the
+    // process is dead.
+    private static final String RUN = "run";
+    private static final String UPDATED = "updated";
+    // how many processes died with the command unfinished.
+    private static final String ATTEMPTS = "attempts";
+
+    private static final int STATE_ACCEPTED = 0;
+    private static final int STATE_DONE = 1;
+
+    // How long a done command is kept to recognize its redelivered intent.
+    private static final long DONE_RETENTION_MILLIS = 60 * 60 * 1000;
+
+    // How long an unfinished command may wait for its replay, after which it is dropped. The
+    // system restarts the service right away to redeliver the intents of a killed process,
+    // an older command was not redelivered and is not run again long after it failed.
+    private static final long UNFINISHED_RETENTION_MILLIS = 10 * 60 * 1000;
+
+    // How many times a command is replayed before it is dropped, so that a command which
+    // kills the process does not do so on every start.
+    private static final int MAX_ATTEMPTS = 3;
+
+    // Identifies the run of this process. Unlike its pid, it is never reused by another one.
+    private static final String RUN_ID = UUID.randomUUID().toString();
+
+    /** returned by {@link #accept} for an intent whose work is already done. */
+    static final long SKIP = -2;
+
+    private static final String[] LONG_ARRAY_EXTRAS = new String[] {
+            ContactSaveService.EXTRA_CONTACT_IDS,
+            ContactSaveService.EXTRA_RAW_CONTACTS_TO_ADD,
+            ContactSaveService.EXTRA_RAW_CONTACTS_TO_REMOVE};
+    private static final String[] LONG_EXTRAS = new String[] {
+            ContactSaveService.EXTRA_GROUP_ID};
+    private static final String[] STRING_EXTRAS = new String[] {
+            ContactSaveService.EXTRA_GROUP_LABEL};
+
+    /**
+     * A command left unfinished by a killed process.
+     */
+    static class Command {
+        final long id;
+        final String action;
+        final String payload;
+
+        Command(long id, String action, String payload) {
+            this.id = id;
+            this.action = action;
+            this.payload = payload;
+        }
+    }
+
+    private static SaveJournal sInstance;
+
+    static synchronized SaveJournal getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new SaveJournal(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private SaveJournal(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_COMMANDS + " ("
+                + ID + " INTEGER PRIMARY KEY AUTOINCREMENT,"
+                + TOKEN + " TEXT NOT NULL UNIQUE,"
+                + ACTION + " TEXT NOT NULL,"
+                + PAYLOAD + " TEXT NOT NULL,"
+                + PROGRESS + " INTEGER NOT NULL DEFAULT 0,"
+                + STATE + " INTEGER NOT NULL,"
+                + RUN + " TEXT NOT NULL,"
+                + UPDATED + " INTEGER NOT NULL,"
+                + ATTEMPTS + " INTEGER NOT NULL DEFAULT 0)");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_COMMANDS);
+        onCreate(db);
+    }
+
+    /**
+     * Records an accepted command. The redelivered intent of an unfinished command takes it
+     * over with its progress.
+     *
+     * @param token the token the intent was created with.
+     * @return the id of the command, or {@link #SKIP} if the intent was redelivered after its
+     *         work was done or the command was dropped.
+     */
+    synchronized long accept(Intent intent, String token) {
+        final SQLiteDatabase db = getWritableDatabase();
+        final Cursor c = db.query(TABLE_COMMANDS, new String[] {ID, STATE},
+                TOKEN + "=?", new String[] {token}, null, null, null);
+        try {
+            if (c.moveToFirst()) {
+                final long id = c.getLong(0);
+                if (c.getInt(1) == STATE_DONE) {
+                    return SKIP;
+                }
+                claim(db, id);
+                return id;
+            }
+        } finally {
+            c.close();
+        }
+
+        final ContentValues values = new ContentValues();
+        values.put(TOKEN, token);
+        values.put(ACTION, intent.getAction());
+        values.put(PAYLOAD, toPayload(intent));
+        values.put(STATE, STATE_ACCEPTED);
+        values.put(RUN, RUN_ID);
+        values.put(UPDATED, System.currentTimeMillis());
+        return db.insert(TABLE_COMMANDS, null, values);
+    }
+
+    /**
+     * Takes over a command, for a replayed intent.
+     */
+    synchronized void claim(long id) {
+        claim(getWritableDatabase(), id);
+    }
+
+    private void claim(SQLiteDatabase db, long id) {
+        final ContentValues values = new ContentValues();
+        values.put(RUN, RUN_ID);
+        values.put(UPDATED, System.currentTimeMillis());
+        db.update(TABLE_COMMANDS, values, ID + "=?", new String[] {String.valueOf(id)});
+    }
+
+    /**
+     * @return how far the command got, 0 if it did not start, or -1 if it is done.
+     */
+    synchronized int getProgress(long id) {
+        final Cursor c = getReadableDatabase().query(TABLE_COMMANDS,
+                new String[] {PROGRESS, STATE}, ID + "=?", new String[] {String.valueOf(id)},
+                null, null, null);
+        try {
+            if (!c.moveToFirst() || c.getInt(1) == STATE_DONE) {
+                return -1;
+            }
+            return c.getInt(0);
+        } finally {
+            c.close();
+        }
+    }
+
+    synchronized void setProgress(long id, int progress) {
+        final ContentValues values = new ContentValues();
+        values.put(PROGRESS, progress);
+        values.put(UPDATED, System.currentTimeMillis());
+        getWritableDatabase().update(TABLE_COMMANDS, values, ID + "=?",
+                new String[] {String.valueOf(id)});
+    }
+
+    synchronized void finish(long id) {
+        final ContentValues values = new ContentValues();
+        values.put(STATE, STATE_DONE);
+        values.put(UPDATED, System.currentTimeMillis());
+        getWritableDatabase().update(TABLE_COMMANDS, values, ID + "=?",
+                new String[] {String.valueOf(id)});
+    }
+
+    /**
+     * Drops the old done commands and returns the unfinished ones accepted by another, now
+     * dead, process. The ones that waited too long or were replayed {@link #MAX_ATTEMPTS}
+     * times already are dropped instead. They are kept as done, so that their redelivered
+     * intents are skipped.
+     */
+    synchronized List<Command> takeOrphans() {
+        final long now = System.currentTimeMillis();
+        final SQLiteDatabase db = getWritableDatabase();
+        db.delete(TABLE_COMMANDS, STATE + "=? AND " + UPDATED + "<?", new String[] {
+                String.valueOf(STATE_DONE), String.valueOf(now - DONE_RETENTION_MILLIS)});
+
+        final ArrayList<Command> commands = new ArrayList<>();
+        final Cursor c = db.query(TABLE_COMMANDS,
+                new String[] {ID, ACTION, PAYLOAD, ATTEMPTS, UPDATED},
+                STATE + "=? AND " + RUN + "!=?", new String[] {
+                        String.valueOf(STATE_ACCEPTED), RUN_ID},
+                null, null, ID);
+        try {
+            while (c.moveToNext()) {
+                final long id = c.getLong(0);
+                final String action = c.getString(1);
+                final int attempts = c.getInt(3);
+                if (attempts >= MAX_ATTEMPTS) {
+                    Log.w(TAG, "Dropping " + action + " after " + attempts + " attempts");
+                    finish(id);
+                    continue;
+                }
+                if (c.getLong(4) < now - UNFINISHED_RETENTION_MILLIS) {
+                    Log.w(TAG, "Dropping expired " + action);
+                    finish(id);
+                    continue;
+                }
+                final ContentValues values = new ContentValues();
+                values.put(ATTEMPTS, attempts + 1);
+                db.update(TABLE_COMMANDS, values, ID + "=?", new String[] {String.valueOf(id)});
+                commands.add(new Command(id, action, c.getString(2)));
+            }
+        } finally {
+            c.close();
+        }
+        return commands;
+    }
+
+    /**
+     * Puts the journaled extras of the payload back on the intent.
+     *
+     * @return false if the payload can't be read.
+     */
+    static boolean putPayloadExtras(Intent intent, String payload) {
+        try {
+            final JSONObject json = new JSONObject(payload);
+            for (String key : LONG_ARRAY_EXTRAS) {
+                final JSONArray array = json.optJSONArray(key);
+                if (array != null) {
+                    final long[] values = new long[array.length()];
+                    for (int i = 0; i < values.length; i++) {
+                        values[i] = array.getLong(i);
+                    }
+                    intent.putExtra(key, values);
+                }
+            }
+            for (String key : LONG_EXTRAS) {
+                if (json.has(key)) {
+                    intent.putExtra(key, json.getLong(key));
+                }
+            }
+            for (String key : STRING_EXTRAS) {
+                if (json.has(key)) {
+                    intent.putExtra(key, json.getString(key));
+                }
+            }
+            return true;
+        } catch (JSONException e) {
+            Log.w(TAG, "Unreadable journal payload", e);
+            return false;
+        }
+    }
+
+    private static String toPayload(Intent intent) {
+        final JSONObject json = new JSONObject();
+        try {
+            for (String key : LONG_ARRAY_EXTRAS) {
+                final long[] values = intent.getLongArrayExtra(key);
+                if (values != null) {
+                    final JSONArray array = new JSONArray();
+                    for (long value : values) {
+                        array.put(value);
+                    }
+                    json.put(key, array);
+                }
+            }
+            for (String key : LONG_EXTRAS) {
+                if (intent.hasExtra(key)) {
+                    json.put(key, intent.getLongExtra(key, -1));
+                }
+            }
+            for (String key : STRING_EXTRAS) {
+                final String value = intent.getStringExtra(key);
+                if (value != null) {
+                    json.put(key, value);
+                }
+            }
+        } catch (JSONException e) {
+            // Only thrown for non finite doubles.
+            throw new IllegalStateException(e);
+        }
+        return json.toString();
+    }
+}
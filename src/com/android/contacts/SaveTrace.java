@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Timings of the last commands run by {@link ContactSaveService}, kept in a ring buffer.
+ *
+ * The service stops as soon as its queue is empty, so the ring is also written to a file
+ * each time a command ends, and read back by the next process. It is printed by
+ * "adb shell dumpsys activity service com.android.contacts/.ContactSaveService" while the
+ * service runs, and each command is logged under the "SaveTrace" tag as it ends.
+ */
+class SaveTrace {
+    private static final String TAG = "SaveTrace";
+
+    // Number of commands kept.
+    private static final int CAPACITY = 32;
+
+    private static final String FILE_NAME = "save_trace.txt";
+    // separates the commands in the file, the lines of a command are never empty.
+    private static final String SEPARATOR = "\n\n";
+
+    private static final SaveTrace[] sRing = new SaveTrace[CAPACITY];
+    private static int sNext;
+    private static AtomicFile sFile;
+    // the commands of earlier processes read from sFile, oldest first, null until read.
+    private static ArrayList<String> sPersisted;
+
+    private final String mAction;
+    private final long mStartWallMillis = System.currentTimeMillis();
+    private final long mStartMillis = SystemClock.elapsedRealtime();
+    private final ArrayList<String> mEvents = new ArrayList<>();
+    private long mEndMillis = -1;
+    private int mResult = -1;
+
+    private SaveTrace(String action) {
+        mAction = action;
+    }
+
+    /**
+     * Sets where the ring is kept between processes.
+     */
+    static void init(Context context) {
+        synchronized (sRing) {
+            if (sFile == null) {
+                sFile = new AtomicFile(new File(context.getFilesDir(), FILE_NAME));
+            }
+        }
+    }
+
+    /**
+     * Starts tracing a command, it shows in the dump once {@link #end} is called.
+     */
+    static SaveTrace begin(String action) {
+        return new SaveTrace(action);
+    }
+
+    /**
+     * Records a phase started at startMillis, in {@link SystemClock#elapsedRealtime}, and
+     * ending now.
+     *
+     * @param count the number of operations or items of the phase.
+     */
+    synchronized void phase(String name, long startMillis, int count) {
+        mEvents.add(name + " " + (SystemClock.elapsedRealtime() - startMillis) + "ms"
+                + (count >= 0 ? " n=" + count : ""));
+    }
+
+    /**
+     * Records a failure, or the reason of a retry.
+     */
+    synchronized void fail(String reason) {
+        mEvents.add("failed: " + reason);
+    }
+
+    /**
+     * Ends the command, records it in the ring and writes the ring to its file. Called on
+     * the worker thread of the service.
+     */
+    void end(int result) {
+        final String text;
+        synchronized (this) {
+            mEndMillis = SystemClock.elapsedRealtime();
+            mResult = result;
+            text = toText();
+        }
+        Log.d(TAG, text);
+        synchronized (sRing) {
+            sRing[sNext] = this;
+            sNext = (sNext + 1) % CAPACITY;
+            write();
+        }
+    }
+
+    private synchronized String toText() {
+        final SimpleDateFormat format = new SimpleDateFormat("MM-dd HH:mm:ss.SSS", Locale.US);
+        final StringBuilder text = new StringBuilder();
+        text.append("  ").append(format.format(new Date(mStartWallMillis))).append(' ')
+                .append(mAction).append(" result=").append(mResult)
+                .append(" total=").append(mEndMillis - mStartMillis).append("ms");
+        for (String event : mEvents) {
+            text.append("\n    ").append(event);
+        }
+        return text.toString();
+    }
+
+    /**
+     * Prints the commands kept, oldest first.
+     */
+    static void dumpAll(PrintWriter writer) {
+        writer.println("Recent saves:");
+        synchronized (sRing) {
+            for (String text : getTexts()) {
+                writer.println(text);
+            }
+        }
+    }
+
+    // the texts of the commands kept, of this process and earlier ones, oldest first.
+    private static ArrayList<String> getTexts() {
+        final ArrayList<String> texts = new ArrayList<>(read());
+        for (int i = 0; i < CAPACITY; i++) {
+            final SaveTrace trace = sRing[(sNext + i) % CAPACITY];
+            if (trace != null) {
+                texts.add(trace.toText());
+            }
+        }
+        return new ArrayList<>(texts.subList(Math.max(0, texts.size() - CAPACITY),
+                texts.size()));
+    }
+
+    private static ArrayList<String> read() {
+        if (sPersisted == null) {
+            sPersisted = new ArrayList<>();
+            if (sFile != null) {
+                try {
+                    final String content = new String(sFile.readFully(),
+                            StandardCharsets.UTF_8);
+                    for (String text : content.split(SEPARATOR)) {
+                        if (!text.isEmpty()) {
+                            sPersisted.add(text);
+                        }
+                    }
+                } catch (FileNotFoundException e) {
+                    // nothing kept yet.
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to read the saves of earlier runs", e);
+                }
+            }
+        }
+        return sPersisted;
+    }
+
+    private static void write() {
+        if (sFile == null) {
+            return;
+        }
+        final StringBuilder content = new StringBuilder();
+        for (String text : getTexts()) {
+            content.append(text).append(SEPARATOR);
+        }
+        FileOutputStream out = null;
+        try {
+            out = sFile.startWrite();
+            out.write(content.toString().getBytes(StandardCharsets.UTF_8));
+            sFile.finishWrite(out);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to keep the recent saves", e);
+            if (out != null) {
+                sFile.failWrite(out);
+            }
+        }
+    }
+}
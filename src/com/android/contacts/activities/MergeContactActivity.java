@@ -36,6 +36,7 @@ import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.DialogInterface;
+import android.content.Intent;
 import android.content.OperationApplicationException;
 import android.net.Uri;
 import android.os.Bundle;
@@ -43,8 +44,8 @@ import android.os.Looper;
 import android.os.RemoteException;
 import android.provider.ContactsContract;
 import android.provider.ContactsContract.RawContacts;
-import android.telephony.PhoneNumberUtils;
 import android.text.TextUtils;
+import android.util.Log;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
@@ -58,6 +59,8 @@ import com.android.contacts.common.MoreContactUtils;
 import com.android.contacts.common.SimContactsConstants;
 import com.android.contacts.common.SimContactsOperation;
 import com.android.contacts.util.DuplicatesUtils;
+import com.android.contacts.util.PhoneNumberKeyIndex;
+import com.android.contacts.util.SimCapacityCache;
 
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -66,7 +69,8 @@ import java.util.List;
 
 public class MergeContactActivity extends ListActivity {
     private static final String TAG = "MergeContactActivity";
-    private static final int BATCH_SIZE = 300;
+    // a set of more operations can not be committed in one transaction.
+    private static final int MAX_CONTACTS_PROVIDER_BATCH_SIZE = 499;
 
     private static ProgressDialog mProgressDialog;
     private ArrayList<DuplicatesUtils.MergeContacts> mMergeList;
@@ -84,6 +88,12 @@ public class MergeContactActivity extends ListActivity {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.merge_list);
         mMergeList = DuplicatesUtils.getMergeRawContacts();
+        if (mMergeList == null) {
+            // the process was killed, rescan from the duplicates index.
+            startActivity(new Intent(this, SearchDupActivity.class));
+            finish();
+            return;
+        }
         initData();
     }
 
@@ -154,76 +164,171 @@ public class MergeContactActivity extends ListActivity {
         }
     }
 
+    /**
+     * the sim card writes of one merged set of sim contacts.
+     */
+    private static class SimMerge {
+        final ContentValues sourceValues;
+        final boolean needUpdate;
+        final int subscription;
+        // the sim records of the merged contacts, deleted from the card.
+        final ArrayList<ContentValues> deletedValues = new ArrayList<>();
+
+        SimMerge(ContentValues sourceValues, boolean needUpdate, int subscription) {
+            this.sourceValues = sourceValues;
+            this.needUpdate = needUpdate;
+            this.subscription = subscription;
+        }
+    }
+
     private class MergeDuplicatedThread extends Thread {
 
-        ArrayList<ContentProviderOperation> dataInsertList = new ArrayList<>();
-        ArrayList<ContentProviderOperation> rawUpdateList = new ArrayList<>();
-        ArrayList<ContentProviderOperation> rawDelList = new ArrayList<>();
+        private final PhoneNumberKeyIndex mNumberIndex = new PhoneNumberKeyIndex();
 
         @Override
         public void run() {
             Looper.prepare();
             joinSetContacts(mMergeList);
-
-            rawUpdateList.clear();
-            dataInsertList.clear();
-            rawDelList.clear();
             DuplicatesUtils.mMergeState = false;
             Looper.loop();
         }
 
         /**
+         * each set is committed with its own batch, so a failure leaves the sets merged so
+         * far intact and the remaining ones can be merged again. The sim card of a set of sim
+         * contacts is only written once its batch is committed.
          * @param mergeList each item will be merged into only one contact.
          */
         private void joinSetContacts(ArrayList<DuplicatesUtils.MergeContacts> mergeList) {
             mSimContactsOperation = new SimContactsOperation(MergeContactActivity.this);
             mMergeProgress = 0;
+            final ArrayList<DuplicatesUtils.MergeContacts> mergedList = new ArrayList<>();
+            // the sets too large for one batch, dropped from the list with a notice.
+            final ArrayList<DuplicatesUtils.MergeContacts> skippedList = new ArrayList<>();
 
             for (int i = 0; i < mergeList.size() && DuplicatesUtils.mMergeState; i++) {
                 DuplicatesUtils.MergeContacts mergeContacts = mergeList.get(i);
+                ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+                boolean result;
+                SimMerge simMerge = null;
                 if (mergeContacts.getAccountType().equals(SimContactsConstants.ACCOUNT_TYPE_SIM)) {
-                    // if the set of sim contacts merged successfully.
-                    boolean result = joinSetSimContacts(mergeList.get(i));
-                    if (!result) {
-                        break;
-                    }
+                    // if the set of sim contacts can be merged.
+                    simMerge = joinSetSimContacts(mergeContacts, operations);
+                    result = simMerge != null;
                 } else {
-                    boolean result = joinSetLocalContacts(false, mergeList.get(i));
-                    if (!result) {
-                        break;
-                    }
+                    result = joinSetLocalContacts(false, mergeContacts, operations);
+                }
+                if (result && operations.size() > MAX_CONTACTS_PROVIDER_BATCH_SIZE) {
+                    // it can't be committed at once, leave it to be merged by hand.
+                    Log.w(TAG, "Skip set " + i + " of " + operations.size() + " operations");
+                    skippedList.add(mergeContacts);
+                    continue;
+                }
+                if (result) {
+                    result = applySet(operations);
+                }
+                if (!result) {
+                    Log.w(TAG, "Failed to merge set " + i + " of " + mergeList.size());
+                    break;
+                }
+                mergedList.add(mergeContacts);
+                if (simMerge != null && !commitSimMerge(simMerge)) {
+                    Log.w(TAG, "Failed to update the sim card for set " + i);
+                    break;
                 }
                 if (mProgressDialog != null) {
                     mProgressDialog.setProgress(++mMergeProgress);
                 }
             }
-            try {
-                getContentResolver().applyBatch(ContactsContract.AUTHORITY, rawUpdateList);
-                getContentResolver().applyBatch(ContactsContract.AUTHORITY, dataInsertList);
-                getContentResolver().applyBatch(ContactsContract.AUTHORITY, rawDelList);
-            } catch (RemoteException e) {
-                e.printStackTrace();
-            } catch (OperationApplicationException e) {
-                e.printStackTrace();
-            }
 
             // no matter the join process is success or not, dismiss the dialog.
             if (mProgressDialog != null && mProgressDialog.isShowing()) {
                 mProgressDialog.dismiss();
             }
-            //all set are joined successfully.
-            if (mMergeProgress == mergeList.size()) {
-                Toast.makeText(MergeContactActivity.this, R.string.merge_complete,
+            if (!skippedList.isEmpty()) {
+                final ArrayList<String> names = new ArrayList<>();
+                for (DuplicatesUtils.MergeContacts skipped : skippedList) {
+                    names.add(skipped.getContacts().get(0).getName());
+                }
+                Toast.makeText(MergeContactActivity.this, getString(
+                        R.string.merge_skipped_too_large, TextUtils.join(", ", names)),
+                        Toast.LENGTH_LONG).show();
+            }
+            //all set are joined successfully, but the ones too large.
+            if (mMergeProgress + skippedList.size() == mergeList.size()) {
+                if (skippedList.isEmpty()) {
+                    Toast.makeText(MergeContactActivity.this, R.string.merge_complete,
+                            Toast.LENGTH_SHORT).show();
+                }
+                DuplicatesUtils.clearMergeRawContacts();
+                finish();
+                return;
+            }
+            if (!DuplicatesUtils.mMergeState) {
+                // the user gave up merging, the activity is finishing.
+                return;
+            }
+            // keep the sets not merged yet, so that the merge can be resumed.
+            final int total = mergeList.size();
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    mMergeList.removeAll(mergedList);
+                    mMergeList.removeAll(skippedList);
+                    mSelectCount = mMergeList.size();
+                    adapter.notifyDataSetChanged();
+                    Toast.makeText(MergeContactActivity.this, getString(R.string.merge_partial,
+                            mergedList.size(), total), Toast.LENGTH_LONG).show();
+                }
+            });
+        }
+
+        /**
+         * commit the operations of one set in a single transaction.
+         */
+        private boolean applySet(ArrayList<ContentProviderOperation> operations) {
+            try {
+                getContentResolver().applyBatch(ContactsContract.AUTHORITY, operations);
+            } catch (RemoteException | OperationApplicationException e) {
+                Log.e(TAG, "Problem merging duplicated contacts", e);
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * write the merged sim contact to the card and delete the other ones, after the
+         * provider has been updated.
+         */
+        private boolean commitSimMerge(SimMerge simMerge) {
+            if (simMerge.needUpdate
+                    && mSimContactsOperation.update(simMerge.sourceValues,
+                            simMerge.subscription) <= 0) {
+                // the other records stay on the card, nothing of them is lost.
+                Toast.makeText(MergeContactActivity.this, R.string.merge_fail,
                         Toast.LENGTH_SHORT).show();
+                return false;
             }
-            DuplicatesUtils.clearMergeRawContacts();
-            finish();
+            for (ContentValues values : simMerge.deletedValues) {
+                if (mSimContactsOperation.delete(values, simMerge.subscription) <= 0) {
+                    // the record comes back with the next load of the sim contacts.
+                    Log.w(TAG, "Failed to delete a merged sim contact");
+                } else {
+                    SimCapacityCache.getInstance(MergeContactActivity.this)
+                            .onRecordDeleted(simMerge.subscription);
+                }
+            }
+            return true;
         }
 
         /**
          * if the set of contacts are Sim contacts.
+         *
+         * @return what to write to the sim card once the operations are applied, or null if
+         * the set can't be merged.
          */
-        private boolean joinSetSimContacts(DuplicatesUtils.MergeContacts mergeContacts) {
+        private SimMerge joinSetSimContacts(DuplicatesUtils.MergeContacts mergeContacts,
+                ArrayList<ContentProviderOperation> operations) {
             // get the rawContacts to be merged.
             ArrayList<DuplicatesUtils.ContactsInfo> contactsInfos = mergeContacts.getContacts();
             String resultName = null;
@@ -234,6 +339,8 @@ public class MergeContactActivity extends ListActivity {
             long sourceContactId;
 
             List<String> simNumberList = new ArrayList<>();
+            // the numbers of simNumberList, compared by equivalence.
+            mNumberIndex.clear();
             List<String> simEmailList = new ArrayList<>();
 
             boolean needUpdate = false;
@@ -262,11 +369,13 @@ public class MergeContactActivity extends ListActivity {
                                 .getAsString(SimContactsConstants.STR_EMAILS);
                         if (oldNumber != null) {
                             simNumberList.add(oldNumber);
+                            mNumberIndex.add(oldNumber);
                         }
                         if (oldAnrs != null) {
                             String[] split = oldAnrs.split(SimContactsConstants.ANR_SEP);
                             for (int j = 0; j < split.length; j++) {
                                 simNumberList.add(split[j]);
+                                mNumberIndex.add(split[j]);
                             }
                         }
 
@@ -301,36 +410,17 @@ public class MergeContactActivity extends ListActivity {
                 String anr = values.getAsString(SimContactsConstants.STR_ANRS);
                 String emails = values.getAsString(SimContactsConstants.STR_EMAILS);
 
-                if (!TextUtils.isEmpty(number) && !simNumberList.contains(number)) {
-                    boolean containsNumber = false;
-                    for (int j = 0; j < simNumberList.size(); j++) {
-                        if (PhoneNumberUtils.compare(number, simNumberList.get(j))) {
-                            containsNumber = true;
-                            break;
-                        }
-                    }
-                    if (!containsNumber) {
-                        needUpdate = true;
-                        simNumberList.add(number);
-                    }
+                if (!TextUtils.isEmpty(number) && mNumberIndex.add(number)) {
+                    needUpdate = true;
+                    simNumberList.add(number);
                 }
 
                 if (!TextUtils.isEmpty(anr)) {
                     String[] splitAnr = anr.split(SimContactsConstants.ANR_SEP);
                     for (int j = 0; j < splitAnr.length; j++) {
-                        if (!TextUtils.isEmpty(splitAnr[j]) && !simNumberList
-                                .contains(splitAnr[j])) {
-                            boolean containsAnr = false;
-                            for (int k = 0; k < simNumberList.size(); k++) {
-                                if (PhoneNumberUtils.compare(splitAnr[j], simNumberList.get(k))) {
-                                    containsAnr = true;
-                                    break;
-                                }
-                            }
-                            if (!containsAnr) {
-                                needUpdate = true;
-                                simNumberList.add(splitAnr[j]);
-                            }
+                        if (!TextUtils.isEmpty(splitAnr[j]) && mNumberIndex.add(splitAnr[j])) {
+                            needUpdate = true;
+                            simNumberList.add(splitAnr[j]);
                         }
                     }
                 }
@@ -361,7 +451,7 @@ public class MergeContactActivity extends ListActivity {
                 } else {
                     Toast.makeText(MergeContactActivity.this, R.string.sim_anr_full,
                             Toast.LENGTH_SHORT).show();
-                    return false;
+                    return null;
                 }
             }
 
@@ -375,65 +465,45 @@ public class MergeContactActivity extends ListActivity {
                 } else {
                     Toast.makeText(MergeContactActivity.this, R.string.sim_email_full,
                             Toast.LENGTH_SHORT).show();
-                    return false;
+                    return null;
                 }
             }
-            // update the new sim contact.
-            // we update the sim contact before delete the origin ones to avoid losing data.
+            // the new values of the source sim contact, written after the provider update.
             sourceValues.put(SimContactsConstants.STR_NEW_TAG, resultName);
             sourceValues.put(SimContactsConstants.STR_NEW_NUMBER, resultNumber);
             sourceValues.put(SimContactsConstants.STR_NEW_ANRS, resultAnrNumber.toString());
             sourceValues.put(SimContactsConstants.STR_NEW_EMAILS, resultEmails.toString());
             sourceValues.remove(SimContactsConstants.ACCOUNT_TYPE);
             sourceValues.remove(SimContactsConstants.ACCOUNT_NAME);
-            // update the contacts in sim.
-            int simResult = 1;
-            if (needUpdate)
-                mSimContactsOperation.update(sourceValues, subscription);
-
-            // if update sim contacts fail, stop merging.
-            if (simResult <= 0) {
-                Toast.makeText(MergeContactActivity.this, R.string.merge_fail,
-                        Toast.LENGTH_SHORT).show();
-                return false;
-            }
+            SimMerge simMerge = new SimMerge(sourceValues, needUpdate, subscription);
 
             // update local contact.
-            if (!joinSetLocalContacts(true, mergeContacts)) {
+            if (!joinSetLocalContacts(true, mergeContacts, operations)) {
                 Toast.makeText(MergeContactActivity.this, R.string.merge_fail,
                         Toast.LENGTH_SHORT).show();
-                return false;
+                return null;
             }
 
             for (int i = 0; i < delContactIds.size(); i++) {
                 Long contactId = delContactIds.get(i);
-                ContentValues values = mSimContactsOperation.getSimAccountValues(contactId);
-                int res = mSimContactsOperation.delete(values, subscription);
-                // if it deletes sim contact successfully, add it to local delete list.
-                if (res > 0) {
-                    ArrayList<Long> list = delRawIdsMap.get(contactId);
-
-                    if (rawDelList.size() + list.size() >= BATCH_SIZE) {
-                        applyBatch();
-                    }
-                    for (int j = 0; j < list.size(); j++) {
-                        Uri uri = Uri.withAppendedPath(RawContacts
-                                .CONTENT_URI, String.valueOf(list.get(j)));
-                        rawDelList.add(ContentProviderOperation.newDelete(uri).build());
-                    }
-                } else {
-                    Toast.makeText(MergeContactActivity.this, R.string.merge_fail,
-                            Toast.LENGTH_SHORT).show();
+                // read before the batch deletes the raw contacts.
+                simMerge.deletedValues.add(mSimContactsOperation.getSimAccountValues(contactId));
+                ArrayList<Long> list = delRawIdsMap.get(contactId);
+                for (int j = 0; j < list.size(); j++) {
+                    Uri uri = Uri.withAppendedPath(RawContacts
+                            .CONTENT_URI, String.valueOf(list.get(j)));
+                    operations.add(ContentProviderOperation.newDelete(uri).build());
                 }
             }
-            return true;
+            return simMerge;
         }
 
         /**
          * if the set of contacts are not sim contacts.
          */
         private boolean joinSetLocalContacts(boolean isSimAccount,
-            DuplicatesUtils.MergeContacts mergeContacts) {
+                DuplicatesUtils.MergeContacts mergeContacts,
+                ArrayList<ContentProviderOperation> operations) {
             ArrayList<DuplicatesUtils.ContactsInfo> contactsInfos = mergeContacts.getContacts();
             // the id of the rawContacts which will be update.
             long sourceId = -1;
@@ -450,68 +520,27 @@ public class MergeContactActivity extends ListActivity {
                 rawIds.add(rawContactId);
             }
 
-            if (rawUpdateList.size() + 1 >= BATCH_SIZE ||
-                rawDelList.size() + rawIds.size() >= BATCH_SIZE) {
-                if (!applyBatch()) {
-                    Toast.makeText(MergeContactActivity.this, R.string.merge_fail,
-                            Toast.LENGTH_SHORT).show();
-                    return false;
-                }
-            }
-
-            //for sim card, do delete itself.
-            //it should delete local only when it deletes sim successfully.
-            for (int i = 0; !isSimAccount && i < rawIds.size(); i++) {
-                Uri uri = ContentUris.withAppendedId(RawContacts.CONTENT_URI, rawIds.get(i));
-                // the delete operation list for the rawContacts.
-                rawDelList.add(ContentProviderOperation.newDelete(uri).build());
-            }
-
-            // build the source contact, which will be update later.
-            HashMap<String, List<String>> hashMap = DuplicatesUtils.buildSource(
-                    getContentResolver(), sourceId);
-            // build the differences among the source rawContact with the remaining ones.
-
-            ArrayList<ContentProviderOperation> dataInsertOps = DuplicatesUtils.diffRawEntity(
-                    isSimAccount, getContentResolver(), sourceId, hashMap, rawIds);
-            if (dataInsertList.size() + dataInsertOps.size() > BATCH_SIZE) {
-                try {
-                    getContentResolver().applyBatch(ContactsContract.AUTHORITY, rawUpdateList);
-                    getContentResolver().applyBatch(ContactsContract.AUTHORITY, dataInsertList);
-                    rawUpdateList.clear();
-                    dataInsertList.clear();
-                } catch (RemoteException e) {
-                    e.printStackTrace();
-                    return false;
-                } catch (OperationApplicationException e) {
-                    e.printStackTrace();
-                    return false;
-                }
-            }
-            dataInsertList.addAll(dataInsertOps);
             // disable aggregation mode.
             ContentValues values = new ContentValues();
             values.put(RawContacts.AGGREGATION_MODE, RawContacts.AGGREGATION_MODE_DISABLED);
-            rawUpdateList.add(ContentProviderOperation.newUpdate(RawContacts.CONTENT_URI)
+            operations.add(ContentProviderOperation.newUpdate(RawContacts.CONTENT_URI)
                     .withValues(values).withSelection(RawContacts._ID.concat(" = ?"),
                             new String[]{String.valueOf(sourceId)}).build());
-            return true;
-        }
 
-        private boolean applyBatch() {
-            try {
-                getContentResolver().applyBatch(ContactsContract.AUTHORITY, rawUpdateList);
-                getContentResolver().applyBatch(ContactsContract.AUTHORITY, dataInsertList);
-                getContentResolver().applyBatch(ContactsContract.AUTHORITY, rawDelList);
-                rawUpdateList.clear();
-                dataInsertList.clear();
-                rawDelList.clear();
-            } catch (RemoteException e) {
-                e.printStackTrace();
-                return false;
-            } catch (OperationApplicationException e) {
-                e.printStackTrace();
-                return false;
+            // build the source contact, which will be update later.
+            HashMap<String, List<String>> hashMap = DuplicatesUtils.buildSource(
+                    getContentResolver(), sourceId);
+            // build the differences among the source rawContact with the remaining ones.
+            operations.addAll(DuplicatesUtils.diffRawEntity(
+                    isSimAccount, getContentResolver(), sourceId, hashMap, rawIds,
+                    mNumberIndex));
+
+            //for sim card, do delete itself.
+            //it should delete local only when it deletes sim successfully.
+            for (int i = 0; !isSimAccount && i < rawIds.size(); i++) {
+                Uri uri = ContentUris.withAppendedId(RawContacts.CONTENT_URI, rawIds.get(i));
+                // the data is copied before the rawContacts are deleted.
+                operations.add(ContentProviderOperation.newDelete(uri).build());
             }
             return true;
         }
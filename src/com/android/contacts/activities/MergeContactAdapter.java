@@ -30,7 +30,10 @@
 package com.android.contacts.activities;
 
 import android.accounts.Account;
+import android.content.ContentResolver;
 import android.content.Context;
+import android.os.AsyncTask;
+import android.util.LruCache;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -44,12 +47,23 @@ import com.android.contacts.common.list.ContactListItemView;
 import com.android.contacts.util.DuplicatesUtils;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 
 public class MergeContactAdapter extends BaseAdapter {
+    // number of sets whose numbers and emails are kept in memory.
+    private static final int DETAILS_CACHE_SIZE = 32;
+
     private Context mContext;
     private ArrayList<DuplicatesUtils.MergeContacts> mMergeList;
     private final CharSequence mUnknownNameText;
 
+    // details of the sets recently shown, keyed by set.
+    private final LruCache<DuplicatesUtils.MergeContacts,
+            HashMap<Long, DuplicatesUtils.ContactsDetails>> mDetailsCache =
+            new LruCache<>(DETAILS_CACHE_SIZE);
+    private final HashSet<DuplicatesUtils.MergeContacts> mLoading = new HashSet<>();
+
     public MergeContactAdapter(Context context) {
         this.mContext = context;
         mUnknownNameText = context.getText(android.R.string.unknownName);
@@ -87,20 +101,52 @@ public class MergeContactAdapter extends BaseAdapter {
         viewHolder.inner.removeAllViews();
         // remove the inner cache items and add the new ones.
         ArrayList<DuplicatesUtils.ContactsInfo> childItem = item.getContacts();
+        HashMap<Long, DuplicatesUtils.ContactsDetails> details = mDetailsCache.get(item);
+        if (details == null) {
+            // show the names now, the numbers are bound once loaded.
+            loadDetails(item);
+        }
         // bind data with each inner item and add it to the container.
         for (int i = 0; i < childItem.size(); i++) {
             ContactListItemView childView = new ContactListItemView(mContext, null);
-            bindItem(item, childItem.get(i), childView);
+            DuplicatesUtils.ContactsInfo info = childItem.get(i);
+            bindItem(item, info,
+                    details != null ? details.get(info.getRawContactId()) : null, childView);
             viewHolder.inner.addView(childView);
         }
         return view;
     }
 
+    /**
+     * read the numbers and emails of the set in the background, once.
+     */
+    private void loadDetails(final DuplicatesUtils.MergeContacts item) {
+        if (!mLoading.add(item)) {
+            return;
+        }
+        final ContentResolver resolver = mContext.getContentResolver();
+        new AsyncTask<Void, Void, HashMap<Long, DuplicatesUtils.ContactsDetails>>() {
+            @Override
+            protected HashMap<Long, DuplicatesUtils.ContactsDetails> doInBackground(
+                    Void... params) {
+                return DuplicatesUtils.loadDetails(resolver, item.getRawContactIds());
+            }
+
+            @Override
+            protected void onPostExecute(HashMap<Long, DuplicatesUtils.ContactsDetails> result) {
+                mLoading.remove(item);
+                mDetailsCache.put(item, result);
+                notifyDataSetChanged();
+            }
+        }.execute();
+    }
+
     /**
      * bind data with the inner child item.
      */
     private void bindItem(DuplicatesUtils.MergeContacts mergeContacts,
-            DuplicatesUtils.ContactsInfo info, ContactListItemView childView) {
+            DuplicatesUtils.ContactsInfo info, DuplicatesUtils.ContactsDetails details,
+            ContactListItemView childView) {
         Account account = new Account(mergeContacts.getAccountName(),
                 mergeContacts.getAccountType());
         long photoId = info.getPhotoId();
@@ -109,8 +155,8 @@ public class MergeContactAdapter extends BaseAdapter {
                         info.getLookUp(), true));
         String number = null;
         // for all phone numbers of the rawContact, we just need one number to show.
-        if (info.getPhones() != null && info.getPhones().size() > 0) {
-            number = info.getPhones().get(0);
+        if (details != null && details.getPhones().size() > 0) {
+            number = details.getPhones().get(0);
         }
         // show the number, if it exists. Otherwise just show the name.
         childView.setUnknownNameText(mUnknownNameText);
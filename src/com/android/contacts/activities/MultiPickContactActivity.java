@@ -53,8 +53,8 @@ import android.net.Uri;
 import android.net.Uri.Builder;
 import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.CancellationSignal;
 import android.os.RemoteException;
-import android.provider.CallLog;
 import android.provider.ContactsContract;
 import android.provider.CallLog.Calls;
 import android.provider.ContactsContract.CommonDataKinds.Email;
@@ -101,6 +101,10 @@ import com.android.contacts.common.list.ContactListFilter;
 import com.android.contacts.common.MoreContactUtils;
 import com.android.contacts.common.model.account.SimAccountType;
 import com.android.contacts.common.util.PhoneNumberHelper;
+import com.android.contacts.util.BulkDeleter;
+import com.android.contacts.util.SimCapacityCache;
+import com.android.contacts.util.SimContactsClassifier;
+import com.android.contacts.util.SimDeletePipeline;
 
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
@@ -478,28 +482,13 @@ public class MultiPickContactActivity extends ListActivity implements
     private class DeleteContactsThread extends Thread
             implements OnCancelListener, DialogInterface.OnClickListener {
 
-        boolean mCanceled = false;
-        private String name = null;
-        private String number = null;
-        final String[] PROJECTION = new String[] {
-                Phone.CONTACT_ID,
-                Phone.NUMBER,
-                Phone.DISPLAY_NAME
-        };
-        private final int COLUMN_NUMBER = 1;
-        private final int COLUMN_NAME = 2;
-
-        private ArrayList<ContentProviderOperation> mOpsCalls = null;
-
-        private ArrayList<ContentProviderOperation> mOpsContacts = null;
+        private final CancellationSignal mCancellationSignal = new CancellationSignal();
 
         public DeleteContactsThread() {
         }
 
         @Override
         public void run() {
-            final ContentResolver resolver = getContentResolver();
-
             // The mChoiceSet object will change when activity restart, but
             // DeleteContactsThread running in background, so we need clone the
             // choiceSet to avoid ConcurrentModificationException.
@@ -507,92 +496,64 @@ public class MultiPickContactActivity extends ListActivity implements
             Set<String> keySet = choiceSet.keySet();
             Iterator<String> it = keySet.iterator();
 
-            android.content.ContentProviderOperation.Builder builder = null;
-
-            ContentProviderOperation cpo = null;
-
-            // Current contact count we can delete.
-            int count = 0;
+            // The ids deleted from the provider in bulk.
+            ArrayList<Long> ids = new ArrayList<Long>();
 
-            // The contacts we batch delete once.
-            final int BATCH_DELETE_CONTACT_NUMBER = 100;
-
-            mOpsCalls = new ArrayList<ContentProviderOperation>();
-            mOpsContacts = new ArrayList<ContentProviderOperation>();
+            while (it.hasNext()) {
+                ids.add(Long.parseLong(it.next()));
+            }
 
-            while (!mCanceled && it.hasNext()) {
-                String id = it.next();
-                Uri uri = null;
-                if (isPickCall()) {
-                    uri = Uri.withAppendedPath(Calls.CONTENT_URI, id);
-                    builder = ContentProviderOperation.newDelete(uri);
-                    cpo = builder.build();
-                    mOpsCalls.add(cpo);
-                } else {
-                    uri = Uri.withAppendedPath(Contacts.CONTENT_URI, id);
-                    long longId = Long.parseLong(id);
-                    int subscription =
-                            mSimContactsOperation.getSimSubscription(longId);
-
-                    if (subscription == SimContactsConstants.SLOT1
-                            || subscription == SimContactsConstants.SLOT2) {
-
-                        ContentValues values =
-                                mSimContactsOperation.getSimAccountValues(longId);
-                        log("values is : " + values + "; sub is " + subscription);
-                        int result = mSimContactsOperation.delete(values, subscription);
-                        if (result == 0) {
-                            mProgressDialog.incrementProgressBy(1);
-                            continue;
-                        }
-                    }
-                    builder = ContentProviderOperation.newDelete(uri);
-                    cpo = builder.build();
-                    mOpsContacts.add(cpo);
+            if (isPickCall()) {
+                List<BulkDeleter.ChunkResult> results = new BulkDeleter(getContentResolver(),
+                        Calls.CONTENT_URI, Calls._ID).delete(ids, new BulkDeleter.Listener() {
+                            @Override
+                            public void onProgress(int handled, int total) {
+                                mProgressDialog.setProgress(handled);
+                            }
+                        }, mCancellationSignal);
+                int failed = BulkDeleter.countFailed(results);
+                if (failed > 0) {
+                    Log.w(TAG, "Failed to delete " + failed + " of " + ids.size() + " items");
                 }
-                // If contacts more than 2000, delete all contacts
-                // one by one will cause UI nonresponse.
-                mProgressDialog.incrementProgressBy(1);
-                // We batch delete contacts every 100.
-                if (count % BATCH_DELETE_CONTACT_NUMBER == 0) {
-                    batchDelete();
+            } else {
+                // The sim stage shows as the secondary progress, the provider stage as the
+                // primary one.
+                SimDeletePipeline.Result result = new SimDeletePipeline(mSimContactsOperation,
+                        SimCapacityCache.getInstance(getApplicationContext()),
+                        new BulkDeleter(getContentResolver(), RawContacts.CONTENT_URI,
+                                RawContacts.CONTACT_ID)).run(
+                        SimContactsClassifier.classify(getContentResolver(), ids),
+                        new SimDeletePipeline.Listener() {
+                            @Override
+                            public void onSimProgress(int done, int total) {
+                                mProgressDialog.setSecondaryProgress(done);
+                            }
+
+                            @Override
+                            public void onProviderProgress(int done, int total) {
+                                mProgressDialog.setProgress(done);
+                            }
+                        }, mCancellationSignal);
+                int failed = BulkDeleter.countFailed(result.chunks) + result.simFailed;
+                if (failed > 0) {
+                    Log.w(TAG, "Failed to delete " + failed + " of " + ids.size() + " items");
                 }
-                count ++;
             }
 
-            batchDelete();
-            mOpsCalls = null;
-            mOpsContacts = null;
             Log.d(TAG, "DeleteContactsThread run, progress:" + mProgressDialog.getProgress());
             mProgressDialog.dismiss();
             finish();
         }
 
-        /**
-         * Batch delete contacts more efficient than one by one.
-         */
-        private void batchDelete() {
-            try {
-                 mContext.getContentResolver().applyBatch(CallLog.AUTHORITY, mOpsCalls);
-                 mContext.getContentResolver().applyBatch(ContactsContract.AUTHORITY, mOpsContacts);
-                 mOpsCalls.clear();
-                 mOpsContacts.clear();
-             } catch (RemoteException e) {
-                 e.printStackTrace();
-             } catch (OperationApplicationException e) {
-                 e.printStackTrace();
-             }
-        }
-
         public void onCancel(DialogInterface dialog) {
-            mCanceled = true;
+            mCancellationSignal.cancel();
             Log.d(TAG, "DeleteContactsThread onCancel, progress:" + mProgressDialog.getProgress());
             //  Give a toast show to tell user delete termination
         }
 
         public void onClick(DialogInterface dialog, int which) {
             if (which == DialogInterface.BUTTON_NEGATIVE) {
-                mCanceled = true;
+                mCancellationSignal.cancel();
                 mProgressDialog.dismiss();
             }
         }
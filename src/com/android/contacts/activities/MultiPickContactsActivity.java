@@ -38,6 +38,7 @@ import android.app.Fragment;
 import android.app.FragmentManager;
 import android.app.FragmentTransaction;
 import android.app.ProgressDialog;
+import android.content.ClipData;
 import android.content.ContentResolver;
 import android.content.ContentProviderOperation;
 import android.content.ContentValues;
@@ -53,11 +54,11 @@ import android.graphics.drawable.ColorDrawable;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.CancellationSignal;
 import android.os.Handler;
 import android.os.Message;
 import android.os.Environment;
 import android.os.RemoteException;
-import android.provider.CallLog;
 import android.provider.CallLog.Calls;
 import android.provider.ContactsContract;
 import android.provider.ContactsContract.CommonDataKinds.Email;
@@ -92,7 +93,6 @@ import android.widget.Toast;
 
 import com.android.contacts.common.ContactsUtils;
 import com.android.contacts.common.list.ViewPagerTabs;
-import com.android.contacts.common.MoreContactUtils;
 import com.android.contacts.common.SimContactsConstants;
 import com.android.contacts.common.SimContactsOperation;
 import com.android.contacts.common.activity.RequestPermissionsActivity;
@@ -103,6 +103,13 @@ import com.android.contacts.multipicker.DelCallLogFragment;
 import com.android.contacts.multipicker.SearchFragment;
 import com.android.contacts.list.ContactsPickMode;
 import com.android.contacts.list.OnCheckListActionListener;
+import com.android.contacts.list.PickSelection;
+import com.android.contacts.util.BulkDeleter;
+import com.android.contacts.util.LongHashSet;
+import com.android.contacts.util.PickResultFiles;
+import com.android.contacts.util.SimCapacityCache;
+import com.android.contacts.util.SimContactsClassifier;
+import com.android.contacts.util.SimDeletePipeline;
 import com.android.contacts.R;
 import com.android.vcard.VCardComposer;
 import com.android.vcard.VCardConfig;
@@ -112,15 +119,17 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
 import java.io.Writer;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -176,18 +185,19 @@ public class MultiPickContactsActivity extends Activity implements ViewPager.OnP
 
     public static final String EXTRA_INFO = "info";
     public static final String EXTRA_VCARD = "vcard";
-
-    private HashMap<String, List<String[]>> mSelectedContactInfo;
+    // uri of the text of EXTRA_INFO, when it is too large for the intent. EXTRA_INFO then
+    // holds the start of the text.
+    public static final String EXTRA_INFO_URI = "info_uri";
 
     private static final String ITEM_SEP = ", ";
     private static final String CONTACT_SEP_LEFT = "[";
     private static final String CONTACT_SEP_RIGHT = "]";
 
     // contains data ids
-    private Bundle mChoiceSet;
+    private PickSelection mChoiceSet;
     // contains call log ids
     private Bundle mChoiceNumberSet;
-    private Bundle mBackupChoiceSet;
+    private PickSelection mBackupChoiceSet;
 
     private TextView mOKButton;
     private LinearLayout mButton_view;
@@ -220,6 +230,18 @@ public class MultiPickContactsActivity extends Activity implements ViewPager.OnP
 
     private static final int BUFFER_LENGTH = 400;
 
+    // the search starts when the text stops changing for this long.
+    private static final long SEARCH_DELAY_MILLIS = 300;
+
+    private final Handler mSearchHandler = new Handler();
+    private String mPendingSearch;
+    private final Runnable mSearchRunnable = new Runnable() {
+        @Override
+        public void run() {
+            doFilter(mPendingSearch);
+        }
+    };
+
     public class ViewPagerAdapter extends FragmentPagerAdapter {
 
         public ViewPagerAdapter(FragmentManager fm) {
@@ -348,7 +370,7 @@ public class MultiPickContactsActivity extends Activity implements ViewPager.OnP
 
         setContentView(R.layout.multi_pick_activity);
 
-        mChoiceSet = new Bundle();
+        mChoiceSet = new PickSelection();
         mContext = getApplicationContext();
 
         Intent intent = getIntent();
@@ -613,7 +635,12 @@ public class MultiPickContactsActivity extends Activity implements ViewPager.OnP
 
         @Override
         public boolean onContainsKey(String key) {
-            return mChoiceSet.containsKey(key);
+            return mChoiceSet.contains(Long.parseLong(key));
+        }
+
+        @Override
+        public boolean onContainsId(long id) {
+            return mChoiceSet.contains(id);
         }
 
         @Override
@@ -623,10 +650,32 @@ public class MultiPickContactsActivity extends Activity implements ViewPager.OnP
 
         @Override
         public void putValue(String key, String[] value) {
-            mChoiceSet.putStringArray(key, value);
+            mChoiceSet.putValue(Long.parseLong(key), value);
+            setOkStatus();
+        }
+
+        @Override
+        public void selectAll(PickSelection.Query query, LongHashSet ids) {
+            mChoiceSet.selectAll(query, ids);
+            setOkStatus();
+        }
+
+        @Override
+        public void unselectAll() {
+            mChoiceSet.unselectAll();
             setOkStatus();
         }
 
+        @Override
+        public boolean isAllSelected() {
+            return mChoiceSet.isAllSelected();
+        }
+
+        @Override
+        public int getSelectedCount() {
+            return mChoiceSet.size();
+        }
+
         @Override
         public void putNumberValue(String key, String[] value) {
             mChoiceNumberSet.putStringArray(key, value);
@@ -635,10 +684,7 @@ public class MultiPickContactsActivity extends Activity implements ViewPager.OnP
 
         @Override
         public void onRemove(String key) {
-            mChoiceSet.remove(key);
-            if (mPickMode.isPickPhone() && !TextUtils.isEmpty(key)) {
-                long id = Long.valueOf(key);
-            }
+            mChoiceSet.remove(Long.parseLong(key));
             setOkStatus();
         }
 
@@ -787,6 +833,7 @@ public class MultiPickContactsActivity extends Activity implements ViewPager.OnP
 
     @Override
     public void onDestroy() {
+        mSearchHandler.removeCallbacks(mSearchRunnable);
         if (mProgressDialog != null) {
             mProgressDialog.cancel();
         }
@@ -816,7 +863,7 @@ public class MultiPickContactsActivity extends Activity implements ViewPager.OnP
                     closeItem.setVisible(false);
                 }
             }
-            mSearchFragment.doFilter(ContactsPickMode.MODE_SEARCH_GROUP, query);
+            filter(query);
         } else {
             if (!TextUtils.isEmpty(query)) {
                 if (!closeItem.isVisible()) {
@@ -832,7 +879,7 @@ public class MultiPickContactsActivity extends Activity implements ViewPager.OnP
                     closeItem.setVisible(false);
                 }
             }
-            mContactsFragment.doFilter(query);
+            filter(query);
 
         }
 
@@ -863,8 +910,21 @@ public class MultiPickContactsActivity extends Activity implements ViewPager.OnP
         }
     }
 
+    /**
+     * @return true if the ok button starts a delete, an import or builds the result in the
+     * background instead of returning the selection.
+     */
+    private boolean isBulkAction() {
+        if (mPickMode.isPickContact()) {
+            return !SimContactsConstants.ACTION_MULTI_PICK.equals(getIntent().getAction());
+        }
+        return mPickMode.isPickSim() || mPickMode.isPickContactVcard()
+                || mPickMode.isPickContactInfo()
+                || (mPickMode.isPickCall() && !mPickMode.isSelectCallLog());
+    }
+
     private void backupChoiceSet() {
-        mBackupChoiceSet = (Bundle) mChoiceSet.clone();
+        mBackupChoiceSet = mChoiceSet.snapshot();
     }
 
     private void restoreChoiceSet() {
@@ -890,6 +950,27 @@ public class MultiPickContactsActivity extends Activity implements ViewPager.OnP
         configureSearchMode();
     }
 
+    /**
+     * Filters the list once the search text stops changing, an empty text clears it at once.
+     */
+    private void filter(String query) {
+        mSearchHandler.removeCallbacks(mSearchRunnable);
+        if (TextUtils.isEmpty(query)) {
+            doFilter(query);
+            return;
+        }
+        mPendingSearch = query;
+        mSearchHandler.postDelayed(mSearchRunnable, SEARCH_DELAY_MILLIS);
+    }
+
+    private void doFilter(String query) {
+        if (mPickMode.isPickPhone()) {
+            mSearchFragment.doFilter(ContactsPickMode.MODE_SEARCH_GROUP, query);
+        } else {
+            mContactsFragment.doFilter(query);
+        }
+    }
+
     private void enterSearchMode() {
         mButton_view.setVisibility(View.GONE);
         searchItem.setVisible(false);
@@ -898,6 +979,7 @@ public class MultiPickContactsActivity extends Activity implements ViewPager.OnP
     }
 
     private void exitSearchMode(boolean isConfirmed) {
+        mSearchHandler.removeCallbacks(mSearchRunnable);
         mButton_view.setVisibility(View.VISIBLE);
         closeItem.setVisible(false);
         searchItem.setVisible(true);
@@ -983,119 +1065,95 @@ public class MultiPickContactsActivity extends Activity implements ViewPager.OnP
 
     private class DeleteContactsThread extends Thread implements OnCancelListener, OnClickListener {
 
-        boolean mCanceled = false;
-
-        private ArrayList<ContentProviderOperation> mOpsCalls = null;
+        private final CancellationSignal mCancellationSignal = new CancellationSignal();
 
-        private ArrayList<ContentProviderOperation> mOpsContacts = null;
+        // The mChoiceSet object will change when activity restart, but
+        // DeleteContactsThread running in background, so we need a snapshot of the
+        // choiceSet, taken on the main thread.
+        private final PickSelection mChoiceSnapshot;
 
         public DeleteContactsThread() {
+            mChoiceSnapshot = mChoiceSet.snapshot();
         }
 
         @Override
         public void run() {
-            // The mChoiceSet object will change when activity restart, but
-            // DeleteContactsThread running in background, so we need clone the
-            // choiceSet to avoid ConcurrentModificationException.
-            Bundle choiceSet = (Bundle) mChoiceSet.clone();
-            Set<String> keySet = choiceSet.keySet();
-
-            Iterator<String> it = keySet.iterator();
+            final PickSelection choiceSet = mChoiceSnapshot;
+            choiceSet.resolve(getContentResolver());
 
-            android.content.ContentProviderOperation.Builder builder = null;
+            // The ids deleted from the provider in bulk.
+            ArrayList<Long> ids = new ArrayList<Long>();
 
-            ContentProviderOperation cpo = null;
-
-            // Current contact count we can delete.
-            int count = 0;
-
-            // The contacts we batch delete once.
-            final int BATCH_DELETE_CONTACT_NUMBER = 100;
-
-            mOpsCalls = new ArrayList<ContentProviderOperation>();
-            mOpsContacts = new ArrayList<ContentProviderOperation>();
+            for (long key : choiceSet.getIds()) {
+                if (mPickMode.isPickCall()) {
+                    // Each item holds the ids of a group of calls.
+                    for (String id : choiceSet.getValue(key)) {
+                        ids.add(Long.parseLong(id));
+                    }
+                } else {
+                    ids.add(key);
+                }
+            }
 
-            while (!mCanceled && it.hasNext()) {
-                // Get value by key
-                String[] ids = choiceSet.getStringArray(it.next());
-                // Iterates ids array.
-                for (String id : ids) {
-                    Uri uri = null;
-                    if (mPickMode.isPickCall()) {
-                        uri = Uri.withAppendedPath(Calls.CONTENT_URI, String.valueOf(id));
-                        builder = ContentProviderOperation.newDelete(uri);
-                        cpo = builder.build();
-                        mOpsCalls.add(cpo);
-                    } else {
-                        uri = Uri.withAppendedPath(Contacts.CONTENT_URI, id);
-                        long longId = Long.parseLong(id);
-                        int subscription = mSimContactsOperation.getSimSubscription(longId);
-
-                        if (subscription == SimContactsConstants.SLOT1
-                                || subscription == SimContactsConstants.SLOT2) {
-                            ContentValues values = mSimContactsOperation
-                                    .getSimAccountValues(longId);
-                            log("values is : " + values + "; sub is " + subscription);
-                            int result = mSimContactsOperation.delete(values, subscription);
-                            if (result == 0) {
-                                mProgressDialog.incrementProgressBy(1);
-                                continue;
+            if (mPickMode.isPickCall()) {
+                final int max = mProgressDialog.getMax();
+                List<BulkDeleter.ChunkResult> results = new BulkDeleter(getContentResolver(),
+                        Calls.CONTENT_URI, Calls._ID).delete(ids, new BulkDeleter.Listener() {
+                            @Override
+                            public void onProgress(int handled, int total) {
+                                // the progress counts selected items, calls come in groups.
+                                mProgressDialog.setProgress(
+                                        (int) ((long) handled * max / total));
                             }
-                        }
-                        builder = ContentProviderOperation.newDelete(uri);
-                        cpo = builder.build();
-                        mOpsContacts.add(cpo);
-                    }
+                        }, mCancellationSignal);
+                int failed = BulkDeleter.countFailed(results);
+                if (failed > 0) {
+                    Log.w(TAG, "Failed to delete " + failed + " of " + ids.size() + " items");
                 }
+            } else {
+                // The sim stage shows as the secondary progress, the provider stage as the
+                // primary one.
+                SimDeletePipeline.Result result = new SimDeletePipeline(mSimContactsOperation,
+                        SimCapacityCache.getInstance(getApplicationContext()),
+                        new BulkDeleter(getContentResolver(), RawContacts.CONTENT_URI,
+                                RawContacts.CONTACT_ID)).run(
+                        SimContactsClassifier.classify(getContentResolver(), ids),
+                        new SimDeletePipeline.Listener() {
+                            @Override
+                            public void onSimProgress(int done, int total) {
+                                mProgressDialog.setSecondaryProgress(done);
+                            }
 
-                // If contacts more than 2000, delete all contacts
-                // one by one will cause UI nonresponse.
-                mProgressDialog.incrementProgressBy(1);
-                // We batch delete contacts every 100.
-                if (count % BATCH_DELETE_CONTACT_NUMBER == 0) {
-                    batchDelete();
+                            @Override
+                            public void onProviderProgress(int done, int total) {
+                                mProgressDialog.setProgress(done);
+                            }
+                        }, mCancellationSignal);
+                int failed = BulkDeleter.countFailed(result.chunks) + result.simFailed;
+                if (failed > 0) {
+                    Log.w(TAG, "Failed to delete " + failed + " of " + ids.size() + " items");
                 }
-                count++;
             }
 
-            if (mCanceled) {
+            if (mCancellationSignal.isCanceled()) {
                 finish();
                 return;
             }
 
-            batchDelete();
-            mOpsCalls = null;
-            mOpsContacts = null;
             Log.d(TAG, "DeleteContactsThread run, progress:" + mProgressDialog.getProgress());
             mProgressDialog.dismiss();
             finish();
         }
 
-        /**
-         * Batch delete contacts more efficient than one by one.
-         */
-        private void batchDelete() {
-            try {
-                mContext.getContentResolver().applyBatch(CallLog.AUTHORITY, mOpsCalls);
-                mContext.getContentResolver().applyBatch(ContactsContract.AUTHORITY, mOpsContacts);
-                mOpsCalls.clear();
-                mOpsContacts.clear();
-            } catch (RemoteException e) {
-                e.printStackTrace();
-            } catch (OperationApplicationException e) {
-                e.printStackTrace();
-            }
-        }
-
         public void onCancel(DialogInterface dialog) {
-            mCanceled = true;
+            mCancellationSignal.cancel();
             Log.d(TAG, "DeleteContactsThread onCancel, progress:" + mProgressDialog.getProgress());
             // Give a toast show to tell user delete termination
         }
 
         public void onClick(DialogInterface dialog, int which) {
             if (which == DialogInterface.BUTTON_NEGATIVE) {
-                mCanceled = true;
+                mCancellationSignal.cancel();
                 mProgressDialog.dismiss();
             }
         }
@@ -1157,177 +1215,171 @@ public class MultiPickContactsActivity extends Activity implements ViewPager.OnP
         }
     }
 
-    @Override
-    public void onClick(View v) {
-        int id = v.getId();
-        switch (id) {
-            case R.id.btn_ok:
-                if (mPickMode.isSearchMode()) {
-                    exitSearchMode(true);
+    /**
+     * Returns or acts on the selection once confirmed, after a selection of all rows is
+     * resolved.
+     */
+    private void onSelectionConfirmed() {
+        if (mPickMode.isPickContact()) {
+            if (SimContactsConstants.ACTION_MULTI_PICK.equals(getIntent().getAction())) {
+                switch (getIntent().getIntExtra(ADD_MOVE_GROUP_MEMBER_KEY,
+                        ACTION_DEFAULT_VALUE)) {
+                    case ACTION_ADD_GROUP_MEMBER:
+                        if (mChoiceSet.size() > MAX_CONTACTS_NUM_TO_GROUP) {
+                            Toast.makeText(mContext,
+                                    mContext.getString(
+                                            R.string.too_many_contacts_add_to_group,
+                                            MAX_CONTACTS_NUM_TO_GROUP),
+                                    Toast.LENGTH_SHORT).show();
+                            return;
+                        }
+                        this.setResult(RESULT_OK,
+                                new Intent().putExtras(mChoiceSet.toBundle()));
+                        finish();
+                        break;
+                    case ACTION_MOVE_GROUP_MEMBER:
+                        if (mChoiceSet.size() > MAX_CONTACTS_NUM_TO_GROUP) {
+                            Toast.makeText(mContext,
+                                    mContext.getString(
+                                            R.string.too_many_contacts_add_to_group,
+                                            MAX_CONTACTS_NUM_TO_GROUP),
+                                    Toast.LENGTH_SHORT).show();
+                            return;
+                        }
+                        showGroupSelectionList(
+                                getIntent().getStringExtra(
+                                        SimContactsConstants.ACCOUNT_TYPE),
+                                getIntent().getLongExtra(KEY_GROUP_ID, -1));
+                        break;
+                    default:
+                        if (mChoiceSet.size() > MAX_CONTACTS_NUM_TO_SELECT_ONCE) {
+                            Toast.makeText(mContext,
+                                    mContext.getString(
+                                            R.string.too_many_contacts_add_to_group,
+                                            MAX_CONTACTS_NUM_TO_SELECT_ONCE),
+                                    Toast.LENGTH_SHORT).show();
+                            return;
+                        }
+                        Intent intent = new Intent();
+                        Bundle bundle = new Bundle();
+                        bundle.putBundle(SimContactsConstants.RESULT_KEY,
+                                mChoiceSet.toBundle());
+                        intent.putExtras(bundle);
+                        this.setResult(RESULT_OK, intent);
+                        finish();
                 }
-                if (mPickMode.isPickContact()) {
-                    if (SimContactsConstants.ACTION_MULTI_PICK.equals(getIntent().getAction())) {
-                            switch (getIntent().getIntExtra(ADD_MOVE_GROUP_MEMBER_KEY,
-                                    ACTION_DEFAULT_VALUE)) {
-                                case ACTION_ADD_GROUP_MEMBER:
-                                    if (mChoiceSet.size() > MAX_CONTACTS_NUM_TO_GROUP) {
-                                        Toast.makeText(mContext,
-                                                mContext.getString(
-                                                        R.string.too_many_contacts_add_to_group,
-                                                        MAX_CONTACTS_NUM_TO_GROUP),
-                                                Toast.LENGTH_SHORT).show();
-                                        return;
-                                    }
-                                    this.setResult(RESULT_OK, new Intent().putExtras(mChoiceSet));
-                                    finish();
-                                    break;
-                                case ACTION_MOVE_GROUP_MEMBER:
-                                    if (mChoiceSet.size() > MAX_CONTACTS_NUM_TO_GROUP) {
-                                        Toast.makeText(mContext,
-                                                mContext.getString(
-                                                        R.string.too_many_contacts_add_to_group,
-                                                        MAX_CONTACTS_NUM_TO_GROUP),
-                                                Toast.LENGTH_SHORT).show();
-                                        return;
-                                    }
-                                    showGroupSelectionList(
-                                            getIntent().getStringExtra(
-                                                    SimContactsConstants.ACCOUNT_TYPE),
-                                            getIntent().getLongExtra(KEY_GROUP_ID, -1));
-                                    break;
-                                default:
-                                    if (mChoiceSet.size() > MAX_CONTACTS_NUM_TO_SELECT_ONCE) {
-                                        Toast.makeText(mContext,
-                                                mContext.getString(
-                                                        R.string.too_many_contacts_add_to_group,
-                                                        MAX_CONTACTS_NUM_TO_SELECT_ONCE),
-                                                Toast.LENGTH_SHORT).show();
-                                        return;
-                                    }
-                                    Intent intent = new Intent();
-                                    Bundle bundle = new Bundle();
-                                    bundle.putBundle(SimContactsConstants.RESULT_KEY, mChoiceSet);
-                                    intent.putExtras(bundle);
-                                    this.setResult(RESULT_OK, intent);
-                                    finish();
-                            }
-                    } else if (mChoiceSet.size() > 0) {
-                        showDialog(R.id.dialog_delete_contact_confirmation);
-                    }
-                } else if (mPickMode.isPickPhone()) {
-                    Intent intent = new Intent();
-                    Bundle bundle = new Bundle();
-                    bundle.putBundle(SimContactsConstants.RESULT_KEY, mChoiceSet);
-                    bundle.putBundle(SimContactsConstants.RESULT_KEY_ONLY_NUMBER,
-                            mChoiceNumberSet);
-                    intent.putExtras(bundle);
-                    this.setResult(RESULT_OK, intent);
-                    finish();
-                } else if (mPickMode.isPickSim()) {
-                    if (mChoiceSet.size() > 0) {
-                        showDialog(R.id.dialog_import_sim_contact_confirmation);
-                    }
-                } else if (mPickMode.isPickEmail()) {
+            } else if (mChoiceSet.size() > 0) {
+                showDialog(R.id.dialog_delete_contact_confirmation);
+            }
+        } else if (mPickMode.isPickPhone()) {
+            Intent intent = new Intent();
+            Bundle bundle = new Bundle();
+            bundle.putBundle(SimContactsConstants.RESULT_KEY, mChoiceSet.toBundle());
+            bundle.putBundle(SimContactsConstants.RESULT_KEY_ONLY_NUMBER,
+                    mChoiceNumberSet);
+            intent.putExtras(bundle);
+            this.setResult(RESULT_OK, intent);
+            finish();
+        } else if (mPickMode.isPickSim()) {
+            if (mChoiceSet.size() > 0) {
+                showDialog(R.id.dialog_import_sim_contact_confirmation);
+            }
+        } else if (mPickMode.isPickEmail()) {
+            Intent intent = new Intent();
+            Bundle bundle = new Bundle();
+            bundle.putBundle(SimContactsConstants.RESULT_KEY, mChoiceSet.toBundle());
+            intent.putExtras(bundle);
+            this.setResult(RESULT_OK, intent);
+            finish();
+        } else if (mPickMode.isPickCall()) {
+            if (mChoiceSet.size() > 0) {
+                if (mPickMode.isSelectCallLog()) {
                     Intent intent = new Intent();
                     Bundle bundle = new Bundle();
-                    bundle.putBundle(SimContactsConstants.RESULT_KEY, mChoiceSet);
+                    bundle.putBundle(SimContactsConstants.RESULT_KEY,
+                            mChoiceSet.toBundle());
                     intent.putExtras(bundle);
                     this.setResult(RESULT_OK, intent);
                     finish();
-                } else if (mPickMode.isPickCall()) {
-                    if (mChoiceSet.size() > 0) {
-                        if (mPickMode.isSelectCallLog()) {
-                            Intent intent = new Intent();
-                            Bundle bundle = new Bundle();
-                            bundle.putBundle(SimContactsConstants.RESULT_KEY, mChoiceSet);
-                            intent.putExtras(bundle);
-                            this.setResult(RESULT_OK, intent);
-                            finish();
-                        } else {
-                            showDialog(DIALOG_DEL_CALL);
-                        }
-                    }
-                } else if (mPickMode.isPickContactInfo()) {
-                    if (mSelectedContactInfo == null) {
-                        mSelectedContactInfo = new HashMap<String, List<String[]>>();
-                    }
-                    Intent intent = new Intent();
-                    String result = getSelectedContactInfo(mSelectedContactInfo);
-                    if (result != null) {
-                        putExtraWithContact(intent, result);
-                        this.setResult(RESULT_OK, intent);
-                    } else {
-                        this.setResult(RESULT_CANCELED);
-                    }
-                    finish();
-                } else if (mPickMode.isPickContactVcard()) {
-                    String uri = getSelectedContactVcard();
-                    setResultAndFinish(uri);
-                }
-                break;
-            case R.id.btn_cancel:
-                if (!mPickMode.isSearchMode()) {
-                    this.setResult(this.RESULT_CANCELED);
-                    finish();
                 } else {
-                    exitSearchMode(false);
+                    showDialog(DIALOG_DEL_CALL);
                 }
-                break;
+            }
+        } else if (mPickMode.isPickContactInfo()) {
+            new ContactInfoTask(mChoiceSet.snapshot()).execute();
+        } else if (mPickMode.isPickContactVcard()) {
+            new VcardExportTask(mChoiceSet.snapshot()).execute();
         }
     }
 
-    private String getLookupKey(Set<String> mSelectedIds) {
-        StringBuilder sb = new StringBuilder();
-        sb.append(Contacts._ID);
-        sb.append(" IN ( ");
-        for (String contactId : mSelectedIds) {
-            sb.append(contactId);
-            sb.append(",");
+    /**
+     * Reads the rows of a selection of all rows in the background, then goes on with it.
+     */
+    private class ResolveSelectionTask extends AsyncTask<Void, Void, PickSelection> {
+        private final PickSelection mSelection;
+
+        public ResolveSelectionTask(PickSelection selection) {
+            mSelection = selection;
         }
-        sb.deleteCharAt(sb.length()-1);
-        sb.append(" )");
 
-        final Cursor c = getContentResolver().query(Contacts.CONTENT_URI, new String[]{
-                Contacts.LOOKUP_KEY}, sb.toString(), null, null);
-        if (c == null) {
-            return null;
+        @Override
+        protected void onPreExecute() {
+            mProgressDialog = ProgressDialog.show(MultiPickContactsActivity.this, null,
+                    getString(R.string.preparing_contacts_message), true, false);
         }
 
-        sb = new StringBuilder();
-        try {
-            c.moveToPosition(-1);
-            while (c.moveToNext()) {
-                final String lookupKey = c.getString(0);
-                sb.append(lookupKey);
-                sb.append(":");
+        @Override
+        protected PickSelection doInBackground(Void... params) {
+            mSelection.resolve(getContentResolver());
+            return mSelection;
+        }
+
+        @Override
+        protected void onPostExecute(PickSelection selection) {
+            if (isFinishing() || isDestroyed()) {
+                return;
             }
-        } finally {
-            c.close();
+            if (mProgressDialog != null && mProgressDialog.isShowing()) {
+                mProgressDialog.dismiss();
+            }
+            mChoiceSet = selection;
+            onSelectionConfirmed();
         }
-        sb.deleteCharAt(sb.length() - 1);
-        return sb.toString();
     }
 
-    private String getSelectedContactVcard() {
-        Set<String> keySet = mChoiceSet.keySet();
-        Uri uri = null;
-        if (mChoiceSet.size() == 1) {
-            for (String key : keySet) {
-                // 1, represent lookupkey
-                String result = mChoiceSet.getStringArray(key)[1];
-                uri = Uri.withAppendedPath(Contacts.CONTENT_VCARD_URI, result);
-            }
-        } else {
-            uri = Uri.withAppendedPath(Contacts.CONTENT_MULTI_VCARD_URI,
-                    Uri.encode(getLookupKey(keySet)));
+    @Override
+    public void onClick(View v) {
+        int id = v.getId();
+        switch (id) {
+            case R.id.btn_ok:
+                if (mPickMode.isSearchMode()) {
+                    exitSearchMode(true);
+                }
+                if (!isBulkAction() && mChoiceSet.isAllSelected()) {
+                    // the background tasks of the bulk actions resolve it themselves.
+                    new ResolveSelectionTask(mChoiceSet.snapshot()).execute();
+                } else {
+                    onSelectionConfirmed();
+                }
+                break;
+            case R.id.btn_cancel:
+                if (!mPickMode.isSearchMode()) {
+                    this.setResult(this.RESULT_CANCELED);
+                    finish();
+                } else {
+                    exitSearchMode(false);
+                }
+                break;
         }
-        return uri.toString();
     }
 
-    private void setResultAndFinish(String uri) {
+    private void setResultAndFinish(Uri uri) {
         Intent intent = new Intent();
         if (uri != null) {
-            putExtraWithContact(intent, uri);
+            putExtraWithContact(intent, uri.toString());
+            // a file of VcardExportTask is only readable with the grant.
+            intent.setClipData(ClipData.newRawUri(null, uri));
+            intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
             setResult(RESULT_OK, intent);
         } else {
             this.setResult(RESULT_CANCELED);
@@ -1335,45 +1387,6 @@ public class MultiPickContactsActivity extends Activity implements ViewPager.OnP
         finish();
     }
 
-    private String getSelectedContactInfo(HashMap<String, List<String[]>> map) {
-        Set<String> keySet = mChoiceSet.keySet();
-        for (String key : keySet) {
-            String[] value = mChoiceSet.getStringArray(key);
-            String contactId = value[0];
-            if (map.containsKey(contactId)) {
-                map.get(contactId).add(value);
-            } else {
-                ArrayList<String[]> temp = new ArrayList<String[]>();
-                temp.add(value);
-                map.put(contactId, temp);
-            }
-        }
-        StringBuilder result = new StringBuilder();
-        Set<String> keySetData = map.keySet();
-        for (String key : keySetData) {
-            List<String[]> dataList = map.get(key);
-            result.append(CONTACT_SEP_LEFT);
-            // append the name string.
-            result.append(getString(R.string.contact_info_text_as_name));
-            result.append(dataList.get(0)[1]);
-            for (int i = 0; i < dataList.size(); i++) {
-                String[] values = dataList.get(i);
-                result.append(ITEM_SEP);
-                if (values[2] != null) {
-                    // append the number
-                    result.append(getString(R.string.contact_info_text_as_phone));
-                    result.append(values[2]);
-                } else {
-                    // append the email
-                    result.append(getString(R.string.contact_info_text_as_email));
-                    result.append(values[3]);
-                }
-            }
-            result.append(CONTACT_SEP_RIGHT);
-        }
-        return result.toString();
-    }
-
     private void putExtraWithContact(Intent intent, String result) {
         if (mPickMode.isPickContactInfo()) {
             intent.putExtra(EXTRA_INFO, result);
@@ -1404,7 +1417,11 @@ public class MultiPickContactsActivity extends Activity implements ViewPager.OnP
 
         private Account mAccount;
 
+        // taken on the main thread, see DeleteContactsThread.
+        private final PickSelection mChoiceSnapshot;
+
         public ImportAllSimContactsThread() {
+            mChoiceSnapshot = mChoiceSet.snapshot();
         }
 
         @Override
@@ -1417,18 +1434,19 @@ public class MultiPickContactsActivity extends Activity implements ViewPager.OnP
             mAccount = new Account(name != null ? name : SimContactsConstants.PHONE_NAME,
                     type != null ? type : SimContactsConstants.ACCOUNT_TYPE_PHONE);
             log("import sim contact to account: " + mAccount);
-            mTotalCount = mChoiceSet.size();
+            mChoiceSnapshot.resolve(resolver);
+            mTotalCount = mChoiceSnapshot.size();
             ArrayList<ContentProviderOperation> operationList =
                     new ArrayList<ContentProviderOperation>();
 
-            for (String key : mChoiceSet.keySet()) {
+            for (long key : mChoiceSnapshot.getIds()) {
                 if (mCanceled) {
                     if (operationList.size() > 0) {
                         doApplyBatch(operationList, resolver);
                     }
                     break;
                 }
-                String[] values = mChoiceSet.getStringArray(key);
+                String[] values = mChoiceSnapshot.getValue(key);
                 int firstBatch = operationList.size();
                 buildSimContentProviderOperationList(values, resolver, mAccount, firstBatch,
                         operationList);
@@ -1607,11 +1625,233 @@ public class MultiPickContactsActivity extends Activity implements ViewPager.OnP
 
     private class ChooseActionListener implements DialogInterface.OnClickListener {
         public void onClick(DialogInterface dialog, int which) {
-            new MoveGroupMemberTask(mChoiceSet, getIntent().getLongExtra(KEY_GROUP_ID, -1),
+            new MoveGroupMemberTask(mChoiceSet.toBundle(),
+                    getIntent().getLongExtra(KEY_GROUP_ID, -1),
                     mGroupIds.get(which)).execute();
         }
     }
 
+    /**
+     * Writes the vcards of the selected contacts into one file in the cache, a chunk of
+     * contacts at a time, so that the uri returned doesn't grow with the selection. A single
+     * contact is returned as its own vcard uri.
+     */
+    private class VcardExportTask extends AsyncTask<Void, Void, Uri> {
+        // contacts per multi vcard uri read.
+        private static final int CHUNK_SIZE = 100;
+
+        private final PickSelection mSelection;
+
+        public VcardExportTask(PickSelection selection) {
+            mSelection = selection;
+        }
+
+        @Override
+        protected void onPreExecute() {
+            mProgressDialog = ProgressDialog.show(MultiPickContactsActivity.this, null,
+                    getString(R.string.preparing_contacts_message), true, false);
+        }
+
+        @Override
+        protected Uri doInBackground(Void... params) {
+            final ContentResolver resolver = getContentResolver();
+            mSelection.resolve(resolver);
+            final long[] ids = mSelection.getIds();
+            if (ids.length == 0) {
+                return null;
+            }
+            if (ids.length == 1) {
+                // 1, represent lookupkey
+                return Uri.withAppendedPath(Contacts.CONTENT_VCARD_URI,
+                        mSelection.getValue(ids[0])[1]);
+            }
+
+            final File file = PickResultFiles.create(MultiPickContactsActivity.this, ".vcf");
+            OutputStream out = null;
+            try {
+                out = new FileOutputStream(file);
+                final byte[] buffer = new byte[8192];
+                for (int start = 0; start < ids.length; start += CHUNK_SIZE) {
+                    final int end = Math.min(start + CHUNK_SIZE, ids.length);
+                    final StringBuilder lookupKeys = new StringBuilder();
+                    for (int i = start; i < end; i++) {
+                        if (lookupKeys.length() > 0) {
+                            lookupKeys.append(':');
+                        }
+                        lookupKeys.append(mSelection.getValue(ids[i])[1]);
+                    }
+                    final InputStream in = resolver.openInputStream(Uri.withAppendedPath(
+                            Contacts.CONTENT_MULTI_VCARD_URI,
+                            Uri.encode(lookupKeys.toString())));
+                    if (in == null) {
+                        throw new IOException("No vcards for " + (end - start) + " contacts");
+                    }
+                    try {
+                        int count;
+                        while ((count = in.read(buffer)) != -1) {
+                            out.write(buffer, 0, count);
+                        }
+                    } finally {
+                        in.close();
+                    }
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to write the vcards of " + ids.length + " contacts", e);
+                file.delete();
+                return null;
+            } finally {
+                if (out != null) {
+                    try {
+                        out.close();
+                    } catch (IOException e) {
+                        // ignore
+                    }
+                }
+            }
+            return PickResultFiles.getUri(MultiPickContactsActivity.this, file);
+        }
+
+        @Override
+        protected void onPostExecute(Uri uri) {
+            if (mProgressDialog != null && mProgressDialog.isShowing()) {
+                mProgressDialog.dismiss();
+            }
+            if (!isFinishing()) {
+                setResultAndFinish(uri);
+            }
+        }
+    }
+
+    /**
+     * Builds the text returned in pick contact info mode: for each contact, its name then its
+     * numbers and emails. A text too large for the intent is written into a file in the
+     * cache, its uri is returned in {@link #EXTRA_INFO_URI} and its start in
+     * {@link #EXTRA_INFO}.
+     */
+    private class ContactInfoTask extends AsyncTask<Void, Void, Intent> {
+        // larger texts don't go in the intent, which has to stay well under the binder limit.
+        private static final int MAX_INLINE_LENGTH = 64 * 1024;
+
+        private final PickSelection mSelection;
+
+        public ContactInfoTask(PickSelection selection) {
+            mSelection = selection;
+        }
+
+        @Override
+        protected void onPreExecute() {
+            mProgressDialog = ProgressDialog.show(MultiPickContactsActivity.this, null,
+                    getString(R.string.preparing_contacts_message), true, false);
+        }
+
+        @Override
+        protected Intent doInBackground(Void... params) {
+            mSelection.resolve(getContentResolver());
+            // the data of each contact, in the order they were picked.
+            final LinkedHashMap<String, List<String[]>> map = new LinkedHashMap<>();
+            for (long key : mSelection.getIds()) {
+                String[] value = mSelection.getValue(key);
+                String contactId = value[0];
+                List<String[]> dataList = map.get(contactId);
+                if (dataList == null) {
+                    dataList = new ArrayList<String[]>();
+                    map.put(contactId, dataList);
+                }
+                dataList.add(value);
+            }
+
+            final String nameLabel = getString(R.string.contact_info_text_as_name);
+            final String phoneLabel = getString(R.string.contact_info_text_as_phone);
+            final String emailLabel = getString(R.string.contact_info_text_as_email);
+            final StringBuilder result = new StringBuilder();
+            // the start of a text written to a file.
+            String head = null;
+            File file = null;
+            Writer writer = null;
+            try {
+                for (List<String[]> dataList : map.values()) {
+                    result.append(CONTACT_SEP_LEFT);
+                    // append the name string.
+                    result.append(nameLabel);
+                    result.append(dataList.get(0)[1]);
+                    for (String[] values : dataList) {
+                        result.append(ITEM_SEP);
+                        if (values[2] != null) {
+                            // append the number
+                            result.append(phoneLabel);
+                            result.append(values[2]);
+                        } else {
+                            // append the email
+                            result.append(emailLabel);
+                            result.append(values[3]);
+                        }
+                    }
+                    result.append(CONTACT_SEP_RIGHT);
+                    if (result.length() > MAX_INLINE_LENGTH) {
+                        // from now on the text goes to a file, a contact at a time.
+                        if (writer == null) {
+                            int length = MAX_INLINE_LENGTH;
+                            if (Character.isHighSurrogate(result.charAt(length - 1))) {
+                                length--;
+                            }
+                            head = result.substring(0, length);
+                            file = PickResultFiles.create(MultiPickContactsActivity.this, ".txt");
+                            writer = new BufferedWriter(new OutputStreamWriter(
+                                    new FileOutputStream(file), "UTF-8"));
+                        }
+                        writer.append(result);
+                        result.setLength(0);
+                    }
+                }
+                if (writer != null) {
+                    writer.append(result);
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to write the info of " + map.size() + " contacts", e);
+                if (file != null) {
+                    file.delete();
+                }
+                return null;
+            } finally {
+                if (writer != null) {
+                    try {
+                        writer.close();
+                    } catch (IOException e) {
+                        // ignore
+                    }
+                }
+            }
+
+            final Intent intent = new Intent();
+            if (file == null) {
+                intent.putExtra(EXTRA_INFO, result.toString());
+            } else {
+                final Uri uri = PickResultFiles.getUri(MultiPickContactsActivity.this, file);
+                intent.putExtra(EXTRA_INFO, head);
+                intent.putExtra(EXTRA_INFO_URI, uri);
+                intent.setClipData(ClipData.newRawUri(null, uri));
+                intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+            }
+            return intent;
+        }
+
+        @Override
+        protected void onPostExecute(Intent intent) {
+            if (mProgressDialog != null && mProgressDialog.isShowing()) {
+                mProgressDialog.dismiss();
+            }
+            if (isFinishing()) {
+                return;
+            }
+            if (intent != null) {
+                setResult(RESULT_OK, intent);
+            } else {
+                setResult(RESULT_CANCELED);
+            }
+            finish();
+        }
+    }
+
     class MoveGroupMemberTask extends AsyncTask<Object, Object, Object> {
 
         private static final String GROUP_QUERY_GROUP_MEMBER_SELECTION = Data.MIMETYPE + "=? AND "
@@ -37,6 +37,7 @@ import android.content.Context;
 import android.content.Intent;
 import android.database.Cursor;
 import android.os.Bundle;
+import android.os.CancellationSignal;
 import android.os.Handler;
 import android.os.Message;
 import android.provider.ContactsContract.RawContacts;
@@ -55,6 +56,7 @@ public class SearchDupActivity extends Activity {
 
     private ProgressDialog mProgressDialog;
     private MyHandler handler = new MyHandler();
+    private final CancellationSignal mCancellationSignal = new CancellationSignal();
 
     private final String[] RAWCONTACTS_ID_PROJECTION = new String[] {RawContacts._ID};
     private final int FIND_DUPLICATED = 1;
@@ -70,7 +72,7 @@ public class SearchDupActivity extends Activity {
     @Override
     protected void onUserLeaveHint() {
         // If MergeContactActivity starts or user presses home key, end searching.
-        DuplicatesUtils.mSearchState = false;
+        mCancellationSignal.cancel();
         if (mProgressDialog != null && mProgressDialog.isShowing()) {
             finish();
         }
@@ -82,9 +84,7 @@ public class SearchDupActivity extends Activity {
         switch (id) {
             case R.id.search_dup_dialog: {
                 mProgressDialog = initSearchingDialog();
-                DuplicatesUtils.setDialog(mProgressDialog);
                 Thread thread = new SearchDuplicatedThread();
-                DuplicatesUtils.mSearchState = true;
                 thread.start();
                 return mProgressDialog;
             }
@@ -105,7 +105,13 @@ public class SearchDupActivity extends Activity {
             /* calculate the contacts which can be merged. */
             boolean isComplete = DuplicatesUtils
                     .calculateMergeRawContacts(SearchDupActivity.this, accountsList,
-                            getContentResolver());
+                            mCancellationSignal, new DuplicatesUtils.ProgressListener() {
+                                @Override
+                                public void onProgress(int count) {
+                                    // ProgressBar accepts updates from any thread.
+                                    mProgressDialog.setProgress(count);
+                                }
+                            });
             Message msg = Message.obtain();
             if (isComplete) {
                 ArrayList<DuplicatesUtils.MergeContacts> mergeRawContacts =
@@ -172,7 +178,7 @@ public class SearchDupActivity extends Activity {
 
         @Override
         public void onBackPressed() {
-            DuplicatesUtils.mSearchState = false;
+            mCancellationSignal.cancel();
             DuplicatesUtils.clearMergeRawContacts();
             finish();
         }
@@ -21,11 +21,13 @@ import com.google.common.collect.Sets;
 import com.android.contacts.ContactSaveService;
 import com.android.contacts.R;
 import com.android.contacts.activities.PeopleActivity;
-import com.android.contacts.common.MoreContactUtils;
 import com.android.contacts.common.model.AccountTypeManager;
 import com.android.contacts.common.model.account.AccountType;
 import com.android.contacts.common.SimContactsOperation;
-import com.android.contacts.common.SimContactsConstants;
+import com.android.contacts.util.BulkDeleter;
+import com.android.contacts.util.SimCapacityCache;
+import com.android.contacts.util.SimContactsClassifier;
+import com.android.contacts.util.SimDeletePipeline;
 
 import android.app.Activity;
 import android.app.AlertDialog;
@@ -33,25 +35,19 @@ import android.app.Fragment;
 import android.app.FragmentManager;
 import android.app.LoaderManager.LoaderCallbacks;
 import android.app.ProgressDialog;
-import android.content.ContentProviderOperation;
-import android.content.ContentValues;
 import android.content.Context;
 import android.content.CursorLoader;
 import android.content.DialogInterface;
 import android.content.DialogInterface.OnDismissListener;
 import android.content.Loader;
-import android.content.OperationApplicationException;
 import android.database.Cursor;
-import android.net.Uri;
 import android.os.Bundle;
-import android.os.RemoteException;
-import android.provider.ContactsContract;
+import android.os.CancellationSignal;
 import android.provider.ContactsContract.RawContacts;
 import android.util.Log;
 
 import java.util.ArrayList;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.TreeSet;
 
 /**
@@ -333,11 +329,8 @@ public class ContactMultiDeletionInteraction extends Fragment
     public class DeleteContactsThread extends Thread
             implements DialogInterface.OnCancelListener, DialogInterface.OnClickListener {
 
-        // Use to judge whether is cancel delete contacts.
-        boolean mCanceled = false;
-
-        // Use to save the operated contacts.
-        private ArrayList<ContentProviderOperation> mOpsContacts = null;
+        // Use to cancel delete contacts.
+        private final CancellationSignal mCancellationSignal = new CancellationSignal();
 
         public DeleteContactsThread() {
         }
@@ -346,88 +339,48 @@ public class ContactMultiDeletionInteraction extends Fragment
         public void run() {
 
             TreeSet<Long> contactsIdSet = (TreeSet<Long>) mContactIds.clone();
-            Iterator<Long> iterator = contactsIdSet.iterator();
-
-            ContentProviderOperation cpo = null;
-            ContentProviderOperation.Builder builder = null;
-
-            // Current contact count we can delete.
-            int count = 0;
-
-            // The contacts we batch delete once.
-            final int BATCH_DELETE_CONTACT_NUMBER = 200;
-
-            mOpsContacts = new ArrayList<ContentProviderOperation>();
-
-            while (!mCanceled & iterator.hasNext()) {
-                // Set the progress of progress dialog.
-                mProgressDialog.setProgress(count);
-                String id = String.valueOf(iterator.next());
-                long longId = Long.parseLong(id);
-                // Get contacts Uri
-                Uri uri = Uri.withAppendedPath(ContactsContract.Contacts.CONTENT_URI, id);
-
-                // Judge the contacts whether is the SIM card contacts
-                ContentValues values = mSimContactsOperation
-                        .getSimAccountValues(longId);
-                String accountType = values
-                        .getAsString(SimContactsConstants.ACCOUNT_TYPE);
-                String accountName = values
-                        .getAsString(SimContactsConstants.ACCOUNT_NAME);
-                int subscription = MoreContactUtils.getSubscription(
-                        accountType, accountName);
-                if (subscription == SimContactsConstants.SLOT1
-                        || subscription == SimContactsConstants.SLOT2) {
-                    int result = mSimContactsOperation.delete(values,
-                            subscription);
-                    if (result == 0) {
-                        mProgressDialog.incrementProgressBy(1);
-                        continue;
-                    }
-                }
-                builder = ContentProviderOperation.newDelete(uri);
-                cpo = builder.build();
-                mOpsContacts.add(cpo);
-                // If contacts more than 2000, delete all contacts
-                // one by one will cause UI nonresponse.
-                mProgressDialog.incrementProgressBy(1);
-                // We batch delete contacts every 100.
-                if (count % BATCH_DELETE_CONTACT_NUMBER == 0) {
-                    batchDelete();
-                }
-                count++;
+
+            // Resolve which contacts are stored on a SIM card with one query.
+            SimContactsClassifier.Classification classification = SimContactsClassifier
+                    .classify(mContext.getContentResolver(), new ArrayList<>(contactsIdSet));
+
+            // The sim stage shows as the secondary progress, the provider stage as the
+            // primary one.
+            SimDeletePipeline.Result result = new SimDeletePipeline(mSimContactsOperation,
+                    SimCapacityCache.getInstance(mContext),
+                    new BulkDeleter(mContext.getContentResolver(), RawContacts.CONTENT_URI,
+                            RawContacts.CONTACT_ID)).run(classification,
+                    new SimDeletePipeline.Listener() {
+                        @Override
+                        public void onSimProgress(int done, int total) {
+                            mProgressDialog.setSecondaryProgress(done);
+                        }
+
+                        @Override
+                        public void onProviderProgress(int done, int total) {
+                            mProgressDialog.setProgress(done);
+                        }
+                    }, mCancellationSignal);
+            int failed = BulkDeleter.countFailed(result.chunks) + result.simFailed;
+            if (failed > 0) {
+                Log.w(TAG, "Failed to delete " + failed + " of " + contactsIdSet.size()
+                        + " contacts");
             }
-            batchDelete();
-            mOpsContacts = null;
             dismissProgressDialog();
             // Set thread to null when complete delete.
             setDeleteContactsThread(null);
         }
 
-        /**
-         * Batch delete contacts more efficient than one by one.
-         */
-        private void batchDelete() {
-            try {
-                mContext.getContentResolver().applyBatch(
-                        android.provider.ContactsContract.AUTHORITY, mOpsContacts);
-                mOpsContacts.clear();
-            } catch (RemoteException e) {
-                e.printStackTrace();
-            } catch (OperationApplicationException e) {
-                e.printStackTrace();
-            }
-        }
         @Override
         public void onCancel(DialogInterface dialogInterface) {
             // Cancel delete operate.
-            mCanceled = true;
+            mCancellationSignal.cancel();
         }
 
         @Override
         public void onClick(DialogInterface dialogInterface, int i) {
             if (i == DialogInterface.BUTTON_NEGATIVE) {
-                mCanceled = true;
+                mCancellationSignal.cancel();
                 mProgressDialog.dismiss();
             }
         }
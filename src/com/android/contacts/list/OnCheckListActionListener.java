@@ -29,6 +29,8 @@
 
 package com.android.contacts.list;
 
+import com.android.contacts.util.LongHashSet;
+
 import java.util.List;
 
 public interface OnCheckListActionListener {
@@ -40,6 +42,11 @@ public interface OnCheckListActionListener {
      */
     boolean onContainsKey(String key);
 
+    /**
+     * judge mChoiceSet contain id, same as {@link #onContainsKey} without building the key
+     */
+    boolean onContainsId(long id);
+
     /**
      * judge mChoiceNumberSet contain key
      *
@@ -52,6 +59,28 @@ public interface OnCheckListActionListener {
      */
     void putValue(String key, String[] value);
 
+    /**
+     * select all rows of the query in mChoiceSet, they are read when the result is returned
+     *
+     * @ids the ids of the rows the query returned
+     */
+    void selectAll(PickSelection.Query query, LongHashSet ids);
+
+    /**
+     * leave the selection of all rows, see {@link PickSelection#unselectAll}
+     */
+    void unselectAll();
+
+    /**
+     * judge mChoiceSet select all rows of a query
+     */
+    boolean isAllSelected();
+
+    /**
+     * get the number of items in mChoiceSet
+     */
+    int getSelectedCount();
+
     /**
      * remove value from mChoiceSet
      */
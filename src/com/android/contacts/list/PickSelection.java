@@ -0,0 +1,278 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.contacts.list;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+
+import com.android.contacts.util.LongHashMap;
+import com.android.contacts.util.LongHashSet;
+
+/**
+ * The items selected in the multi picker, by id, with the value returned for each.
+ *
+ * Selecting a whole list records the query of the list, the ids of its rows and the ids
+ * unselected since, see {@link #selectAll}. The values of the rows are only read by
+ * {@link #resolve}, when the result is built. Items selected before are kept.
+ *
+ * {@link #snapshot} shares the content with the copy until one of them is changed. Not
+ * thread safe.
+ */
+public class PickSelection {
+
+    /**
+     * Reads the value of the current row of a cursor of a {@link Query}.
+     */
+    public interface ValueReader {
+        String[] read(Cursor cursor, long id);
+    }
+
+    /**
+     * The query of a list, to select all of its rows.
+     */
+    public static class Query {
+        public final Uri uri;
+        public final String[] projection;
+        public final String selection;
+        public final String[] selectionArgs;
+        public final int idColumn;
+        public final ValueReader reader;
+
+        public Query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+                int idColumn, ValueReader reader) {
+            this.uri = uri;
+            this.projection = projection;
+            this.selection = selection;
+            this.selectionArgs = selectionArgs;
+            this.idColumn = idColumn;
+            this.reader = reader;
+        }
+    }
+
+    // the ids selected as items with their values, in the order they were selected.
+    private LongHashMap<String[]> mItems;
+    // the query of all selected rows, null if the items are listed in mItems.
+    private Query mAllQuery;
+    // the ids of the rows of mAllQuery, never changed once set.
+    private LongHashSet mAllIds;
+    // rows of mAllQuery unselected since.
+    private LongHashSet mExcluded;
+    // items of mItems that are not rows of mAllQuery.
+    private int mOtherCount;
+    // true while mItems and mExcluded are shared with a snapshot.
+    private boolean mShared;
+
+    public PickSelection() {
+        mItems = new LongHashMap<>();
+        mExcluded = new LongHashSet();
+    }
+
+    private PickSelection(PickSelection other) {
+        mItems = other.mItems;
+        mAllQuery = other.mAllQuery;
+        mAllIds = other.mAllIds;
+        mExcluded = other.mExcluded;
+        mOtherCount = other.mOtherCount;
+        mShared = true;
+        other.mShared = true;
+    }
+
+    public int size() {
+        if (mAllQuery != null) {
+            return mAllIds.size() - mExcluded.size() + mOtherCount;
+        }
+        return mItems.size();
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public boolean contains(long id) {
+        if (isRow(id) && !mExcluded.contains(id)) {
+            return true;
+        }
+        return mItems.containsKey(id);
+    }
+
+    public boolean isAllSelected() {
+        return mAllQuery != null;
+    }
+
+    /**
+     * Selects all the rows of the query, ids being the ids of the rows it returned. Only the
+     * rows still returned with these ids are listed by {@link #resolve}.
+     */
+    public void selectAll(Query query, LongHashSet ids) {
+        copyIfShared();
+        mAllQuery = query;
+        mAllIds = ids;
+        mExcluded.clear();
+        mOtherCount = 0;
+        for (long id : mItems.keys()) {
+            if (!ids.contains(id)) {
+                mOtherCount++;
+            }
+        }
+    }
+
+    /**
+     * Leaves the selection of all rows, the items selected one by one stay selected.
+     */
+    public void unselectAll() {
+        if (mAllQuery != null) {
+            copyIfShared();
+            mAllQuery = null;
+            mAllIds = null;
+            mExcluded.clear();
+        }
+    }
+
+    public void putValue(long id, String[] value) {
+        copyIfShared();
+        final boolean added = mItems.put(id, value);
+        if (isRow(id)) {
+            mExcluded.remove(id);
+        } else if (added && mAllQuery != null) {
+            mOtherCount++;
+        }
+    }
+
+    public void remove(long id) {
+        if (contains(id)) {
+            copyIfShared();
+            final boolean removed = mItems.remove(id);
+            if (isRow(id)) {
+                mExcluded.add(id);
+            } else if (removed && mAllQuery != null) {
+                mOtherCount--;
+            }
+        }
+    }
+
+    public void clear() {
+        if (mShared) {
+            mItems = new LongHashMap<>();
+            mExcluded = new LongHashSet();
+            mShared = false;
+        } else {
+            mItems.clear();
+            mExcluded.clear();
+        }
+        mAllQuery = null;
+        mAllIds = null;
+    }
+
+    /**
+     * Lists the rows of a selection of all rows as items, by running its query. Does
+     * nothing if all rows aren't selected. Can be called on any thread as long as no other
+     * thread uses this selection, e.g. on a snapshot.
+     */
+    public void resolve(ContentResolver resolver) {
+        if (mAllQuery == null) {
+            return;
+        }
+        final Query query = mAllQuery;
+        copyIfShared();
+        final Cursor cursor = resolver.query(query.uri, query.projection, query.selection,
+                query.selectionArgs, null);
+        if (cursor != null) {
+            try {
+                while (cursor.moveToNext()) {
+                    final long id = cursor.getLong(query.idColumn);
+                    if (mAllIds.contains(id) && !mExcluded.contains(id)
+                            && !mItems.containsKey(id)) {
+                        mItems.put(id, query.reader.read(cursor, id));
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        mAllQuery = null;
+        mAllIds = null;
+        mExcluded.clear();
+    }
+
+    /**
+     * @return the value of the id, or null if it is not selected.
+     */
+    public String[] getValue(long id) {
+        checkResolved();
+        return mItems.get(id);
+    }
+
+    /**
+     * @return the ids, in the order they were selected. The rows of a selection of all rows
+     * come after the items selected before, in the order of the query.
+     */
+    public long[] getIds() {
+        checkResolved();
+        return mItems.keys();
+    }
+
+    public PickSelection snapshot() {
+        return new PickSelection(this);
+    }
+
+    /**
+     * @return the selection in the form returned to the caller: the values as string arrays
+     * keyed by the string of the id.
+     */
+    public Bundle toBundle() {
+        checkResolved();
+        final Bundle bundle = new Bundle();
+        for (long id : mItems.keys()) {
+            bundle.putStringArray(String.valueOf(id), mItems.get(id));
+        }
+        return bundle;
+    }
+
+    // whether the id is a row of a selection of all rows.
+    private boolean isRow(long id) {
+        return mAllQuery != null && mAllIds.contains(id);
+    }
+
+    private void checkResolved() {
+        if (mAllQuery != null) {
+            throw new IllegalStateException("All rows are selected, resolve() first");
+        }
+    }
+
+    private void copyIfShared() {
+        if (mShared) {
+            mItems = new LongHashMap<>(mItems);
+            mExcluded = new LongHashSet(mExcluded);
+            mShared = false;
+        }
+    }
+}
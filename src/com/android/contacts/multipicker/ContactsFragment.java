@@ -33,12 +33,14 @@ import android.accounts.Account;
 import android.app.Activity;
 import android.app.ListFragment;
 import android.content.AsyncQueryHandler;
+import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
 import android.database.Cursor;
 import android.graphics.Typeface;
 import android.net.Uri;
 import android.net.Uri.Builder;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.provider.ContactsContract;
 import android.provider.ContactsContract.CommonDataKinds.Email;
@@ -80,10 +82,13 @@ import com.android.contacts.common.util.UriUtils;
 import com.android.contacts.common.widget.CheckableImageView;
 import com.android.contacts.list.ContactsPickMode;
 import com.android.contacts.list.OnCheckListActionListener;
+import com.android.contacts.list.PickSelection;
+import com.android.contacts.util.ContactTokenIndex;
+import com.android.contacts.util.FilteredCursor;
+import com.android.contacts.util.LongHashSet;
 import com.android.contacts.R;
 
 import java.lang.ref.WeakReference;
-import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -181,6 +186,23 @@ public class ContactsFragment extends ListFragment {
     private Bundle mChoiceSet;
     private TextView mSelectAllLabel;
 
+    // the query of the cursor in the list, null while narrowed rows are shown.
+    private PickSelection.Query mCursorQuery;
+    // the query waiting for its cursor, older results are dropped.
+    private PickSelection.Query mPendingQuery;
+    private String mPendingFilter;
+
+    // the last cursor of the provider, narrowed in memory while the search text grows and
+    // until the provider returns the rows of the new text.
+    private Cursor mBaseCursor;
+    private String mBaseFilter;
+    // the index of mBaseCursor, null until built in the background.
+    private ContactTokenIndex mTokenIndex;
+    private IndexTask mIndexTask;
+    // the rows of mBaseCursor in the list, null if all rows are shown.
+    private int[] mShownPositions;
+    private String mShownFilter;
+
     private static final String KEY_SEP = ",";
     private static final String ITEM_SEP = ", ";
     private static final String CONTACT_SEP_LEFT = "[";
@@ -207,7 +229,7 @@ public class ContactsFragment extends ListFragment {
     private View mHeaderView;
 
     // Only in pick phone mode, use this to count selected items number.
-    private ArrayList<String> checkedList;
+    private LongHashSet checkedList;
 
     private static final String[] COLUMN_NAMES = new String[] {
             "name",
@@ -251,7 +273,7 @@ public class ContactsFragment extends ListFragment {
         if (mContactListAdapter == null) {
             mContactListAdapter = new ContactItemListAdapter(mContext);
             if (mPickMode.isPickPhone()) {
-                checkedList = new ArrayList<String>();
+                checkedList = new LongHashSet();
             }
         }
         if (mCheckListListener == null)
@@ -317,9 +339,7 @@ public class ContactsFragment extends ListFragment {
                         cache.type, cache.label,
                         cache.contact_id
                 };
-                if (!checkedList.contains(key)) {
-                    checkedList.add(key);
-                }
+                checkedList.add(cache.id);
             } else if (mPickMode.isPickEmail()) {
                 value = new String[] {
                         cache.name,
@@ -345,7 +365,7 @@ public class ContactsFragment extends ListFragment {
         } else {
             mCheckListListener.onRemove(key);
             if (mPickMode.isPickPhone()) {
-                checkedList.remove(key);
+                checkedList.remove(cache.id);
             }
         }
 
@@ -362,11 +382,10 @@ public class ContactsFragment extends ListFragment {
 
     @Override
     public void onDestroy() {
+        cancelListQuery();
         mQueryHandler.removeCallbacksAndMessages(QUERY_TOKEN);
 
-        if (mContactListAdapter.getCursor() != null) {
-            mContactListAdapter.getCursor().close();
-        }
+        showCursor(null, null, null);
 
         super.onDestroy();
     }
@@ -619,11 +638,7 @@ public class ContactsFragment extends ListFragment {
                 }
             }
         }
-        String[] projection = getProjectionForQuery();
-        String selection = getSelectionForQuery();
-        String[] selectionArgs = getSelectionArgsForQuery();
-        mQueryHandler.startQuery(QUERY_TOKEN, null, uri, projection, selection, selectionArgs,
-                getSortOrder(projection));
+        startListQuery(uri, null);
     }
 
     public void doFilter(String s) {
@@ -631,7 +646,8 @@ public class ContactsFragment extends ListFragment {
         if (TextUtils.isEmpty(s)) {
             // mPickMode.exitSearchMode();
             // startQuery();
-            mContactListAdapter.changeCursor(null);
+            cancelListQuery();
+            showCursor(null, null, null);
             return;
         }
 
@@ -641,11 +657,159 @@ public class ContactsFragment extends ListFragment {
         } else {
             uri = Uri.withAppendedPath(getFilterUri(), Uri.encode(query));
         }
-        String[] projection = getProjectionForQuery();
-        String selection = getSelectionForQuery();
-        String[] selectionArgs = getSelectionArgsForQuery();
-        mQueryHandler.startQuery(QUERY_TOKEN, null, uri, projection, selection, selectionArgs,
-                getSortOrder(projection));
+        if (canNarrow(s)) {
+            narrow(s);
+        }
+        // the provider also matches other columns and normalizes the text, its rows replace
+        // the narrowed ones.
+        startListQuery(uri, s);
+    }
+
+    /**
+     * Whether the last cursor of the provider can be narrowed to show the rows for the search
+     * text until the provider returns them, i.e. the text extends the one of the cursor and
+     * its index is built.
+     */
+    private boolean canNarrow(String s) {
+        return mTokenIndex != null && !TextUtils.isEmpty(mBaseFilter)
+                && s.startsWith(mBaseFilter);
+    }
+
+    private void narrow(String s) {
+        // the rows shown for a shorter text are the only candidates.
+        int[] candidates = mShownFilter != null && s.startsWith(mShownFilter)
+                ? mShownPositions : null;
+        int[] positions = mTokenIndex.match(s, candidates);
+        // the provider query would select other rows than the ones shown.
+        mCursorQuery = null;
+        showCursor(mBaseCursor, s, positions);
+    }
+
+    /**
+     * @return the name, number and email columns of the search result, or null if it can not
+     * be narrowed in memory.
+     */
+    private int[] getIndexColumns() {
+        switch (mPickMode.getMode()) {
+            case ContactsPickMode.MODE_SEARCH_CONTACT:
+            case ContactsPickMode.MODE_SEARCH_CONTACT_VCARD:
+                return new int[] {
+                        SUMMARY_DISPLAY_NAME_PRIMARY_COLUMN_INDEX,
+                        SUMMARY_DISPLAY_NAME_ALTERNATIVE_COLUMN_INDEX
+                };
+            case ContactsPickMode.MODE_SEARCH_PHONE:
+                return new int[] {
+                        PHONE_COLUMN_NUMBER, PHONE_COLUMN_DISPLAY_NAME
+                };
+            case ContactsPickMode.MODE_SEARCH_EMAIL:
+                return new int[] {
+                        EMAIL_COLUMN_ADDRESS, EMAIL_COLUMN_DISPLAY_NAME
+                };
+            default:
+                // the rows of contact info are selected by contact, not by row.
+                return null;
+        }
+    }
+
+    /**
+     * Shows the rows of a cursor in the list, the previous cursor is closed if replaced.
+     *
+     * @param filter the search text of the rows shown.
+     * @param positions the rows of the cursor to show, null for all rows.
+     */
+    private void showCursor(Cursor cursor, String filter, int[] positions) {
+        Cursor oldCursor = mBaseCursor;
+        if (cursor != oldCursor) {
+            mBaseCursor = cursor;
+            mBaseFilter = filter;
+            mTokenIndex = null;
+            if (mIndexTask != null) {
+                mIndexTask.cancel(false);
+                mIndexTask = null;
+            }
+            final int[] columns = getIndexColumns();
+            if (cursor != null && !TextUtils.isEmpty(filter) && columns != null
+                    && mCursorQuery != null) {
+                mIndexTask = new IndexTask(cursor, mCursorQuery, columns);
+                mIndexTask.execute();
+            }
+        }
+        mShownFilter = filter;
+        mShownPositions = positions;
+        mContactListAdapter.swapCursor(cursor == null || positions == null
+                ? cursor : new FilteredCursor(cursor, positions));
+        if (oldCursor != null && oldCursor != cursor) {
+            oldCursor.close();
+        }
+    }
+
+    /**
+     * Builds the index of a cursor of the provider off the main thread. The cursor can't be
+     * read outside the main thread while the list uses it, so its query is run again and the
+     * index is only kept if the new result has as many rows.
+     */
+    private class IndexTask extends AsyncTask<Void, Void, ContactTokenIndex> {
+        private final Cursor mCursor;
+        private final PickSelection.Query mQuery;
+        private final int[] mColumns;
+        private final String mSortOrder;
+        private final ContentResolver mResolver;
+
+        IndexTask(Cursor cursor, PickSelection.Query query, int[] columns) {
+            mCursor = cursor;
+            mQuery = query;
+            mColumns = columns;
+            mSortOrder = getSortOrder(query.projection);
+            mResolver = mContext.getContentResolver();
+        }
+
+        @Override
+        protected ContactTokenIndex doInBackground(Void... params) {
+            final Cursor cursor = mResolver.query(mQuery.uri, mQuery.projection,
+                    mQuery.selection, mQuery.selectionArgs, mSortOrder);
+            if (cursor == null) {
+                return null;
+            }
+            try {
+                return isCancelled() ? null : new ContactTokenIndex(cursor, mColumns);
+            } finally {
+                cursor.close();
+            }
+        }
+
+        @Override
+        protected void onPostExecute(ContactTokenIndex index) {
+            if (mIndexTask != this) {
+                return;
+            }
+            mIndexTask = null;
+            if (index != null && mBaseCursor == mCursor
+                    && index.getCount() == mCursor.getCount()) {
+                mTokenIndex = index;
+            }
+        }
+    }
+
+    private PickSelection.Query newListQuery(Uri uri) {
+        // the query comes back with the cursor, to select all rows of the list.
+        return new PickSelection.Query(uri, getProjectionForQuery(), getSelectionForQuery(),
+                getSelectionArgsForQuery(), getIdColumn(), mValueReader);
+    }
+
+    private void startListQuery(Uri uri, String filter) {
+        cancelListQuery();
+        mPendingQuery = newListQuery(uri);
+        mPendingFilter = filter;
+        mQueryHandler.startQuery(QUERY_TOKEN, mPendingQuery, uri, mPendingQuery.projection,
+                mPendingQuery.selection, mPendingQuery.selectionArgs,
+                getSortOrder(mPendingQuery.projection));
+    }
+
+    private void cancelListQuery() {
+        // the result of a query already done is dropped in onQueryComplete.
+        mQueryHandler.cancelOperation(QUERY_TOKEN);
+        mPendingQuery = null;
+        mPendingFilter = null;
     }
 
     private class QueryHandler extends AsyncQueryHandler {
@@ -659,6 +823,13 @@ public class ContactsFragment extends ListFragment {
 
         @Override
         protected void onQueryComplete(int token, Object cookie, Cursor cursor) {
+            if (cookie != mPendingQuery) {
+                // superseded by a later search.
+                if (cursor != null) {
+                    cursor.close();
+                }
+                return;
+            }
             // In the case of low memory, the WeakReference object may be
             // recycled.
             if (mFragment == null || mFragment.get() == null) {
@@ -668,7 +839,11 @@ public class ContactsFragment extends ListFragment {
             if (mHeaderView != null && mPickMode.isSearchMode()) {
                 getListView().removeHeaderView(mHeaderView);
             }
-            mContactListAdapter.changeCursor(cursor);
+            mCursorQuery = mPendingQuery;
+            String filter = mPendingFilter;
+            mPendingQuery = null;
+            mPendingFilter = null;
+            showCursor(cursor, filter, null);
         }
     }
 
@@ -877,7 +1052,7 @@ public class ContactsFragment extends ListFragment {
             } else {
                 view.getLayoutParams().height = mContext.getResources()
                         .getDimensionPixelSize(R.dimen.pick_contact_same_item_height);
-                if (mCheckListListener.onContainsKey(String.valueOf(cache.id))) {
+                if (mCheckListListener.onContainsId(cache.id)) {
                     photoView.setVisibility(View.VISIBLE);
                 } else {
                     photoView.setVisibility(View.INVISIBLE);
@@ -900,7 +1075,7 @@ public class ContactsFragment extends ListFragment {
                     "".equals(cache.name) ? null : cache.name, String.valueOf(cache.id), true);
             mContactPhotoManager.loadThumbnail(photoView, 0, account, false, true, request);
 
-            photoView.setChecked(mCheckListListener.onContainsKey(String.valueOf(cache.id)),
+            photoView.setChecked(mCheckListListener.onContainsId(cache.id),
                     false);
             if (photoView.isChecked()) {
                 view.setActivated(true);
@@ -958,7 +1133,7 @@ public class ContactsFragment extends ListFragment {
                         request);
             }
 
-            photoView.setChecked(mCheckListListener.onContainsKey(String.valueOf(cache.id)), false);
+            photoView.setChecked(mCheckListListener.onContainsId(cache.id), false);
 
             if ((mPickMode.isPickContact() || mPickMode.isPickContactVcard())) {
                 if (!photoView.isChecked()) {
@@ -1007,9 +1182,10 @@ public class ContactsFragment extends ListFragment {
         }
 
         @Override
-        public void changeCursor(Cursor cursor) {
-            super.changeCursor(cursor);
+        public Cursor swapCursor(Cursor cursor) {
+            Cursor oldCursor = super.swapCursor(cursor);
             updateIndexer(cursor);
+            return oldCursor;
         }
 
         @Override
@@ -1198,101 +1374,36 @@ public class ContactsFragment extends ListFragment {
         if (cursor == null) {
             return;
         }
-        ContactItemCache cache = new ContactItemCache();
-        String key;
         // selected all contacts
         if (isSelectedAll) {
-            int count = cursor.getCount();
-            for (int i = 0; i < count; i++) {
-                cursor.moveToPosition(i);
-                // only pick sim mode, id index is SIM_COLUMN_ID
-                // other mode, id index is 0
-                if (mPickMode.isPickSim()) {
-                    key = String.valueOf(cursor.getLong(SIM_COLUMN_ID));
-                } else {
-                    key = String.valueOf(cursor.getLong(0));
-                }
-                if (!mCheckListListener.onContainsKey(key)) {
-                    String[] value = null;
-                    if (mPickMode.isPickContact()) {
-                        cache.lookupKey = cursor
-                                .getString(SUMMARY_LOOKUP_KEY_COLUMN_INDEX);
-                        cache.name = cursor
-                                .getString(SUMMARY_DISPLAY_NAME_PRIMARY_COLUMN_INDEX);
-                        cache.nameRawContactId = cursor
-                                .getLong(SUMMARY_CONTACT_COLUMN_RAW_CONTACT_ID);
-                        String photoUri = cursor.getString(SUMMARY_CONTACT_COLUMN_PHOTO_URI);
-                        cache.photoUri = UriUtils.parseUriOrNull(photoUri);
-                        value = new String[] {
-                                cache.lookupKey,
-                                key, String.valueOf(cache.nameRawContactId),
-                                photoUri, cache.name
-                        };
-                    } else if (mPickMode.isPickPhone()) {
-                        cache.name = cursor
-                                .getString(PHONE_COLUMN_DISPLAY_NAME);
-                        cache.number = cursor.getString(PHONE_COLUMN_NUMBER);
-                        cache.label = cursor.getString(PHONE_COLUMN_LABEL);
-                        cache.type = String.valueOf(cursor
-                                .getInt(PHONE_COLUMN_TYPE));
-                        value = new String[] {
-                                cache.name, cache.number,
-                                cache.type, cache.label, cache.contact_id
-                        };
-                        if (!checkedList.contains(key)) {
-                            checkedList.add(key);
-                        }
-                    } else if (mPickMode.isPickEmail()) {
-                        cache.name = cursor
-                                .getString(EMAIL_COLUMN_DISPLAY_NAME);
-                        cache.email = cursor.getString(EMAIL_COLUMN_ADDRESS);
-                        value = new String[] {
-                                cache.name, cache.email
-                        };
-                    } else if (mPickMode.isPickSim()) {
-                        cache.name = cursor.getString(SIM_COLUMN_DISPLAY_NAME);
-                        cache.number = cursor.getString(SIM_COLUMN_NUMBER);
-                        cache.email = cursor.getString(SIM_COLUMN_EMAILS);
-                        cache.anrs = cursor.getString(SIM_COLUMN_ANRS);
-                        value = new String[] {
-                                cache.name, cache.number,
-                                cache.email, cache.anrs
-                        };
-                    } else if (mPickMode.isPickContactInfo()) {
-                        cache.name = cursor.getString(DATA_DISPLAY_NAME);
-                        cache.type = cursor.getString(DATA_MIMETYPE_COLUMN);
-                        if (cache.type.equals(Phone.CONTENT_ITEM_TYPE)) {
-                            cache.number = cursor.getString(DATA_DATA1_COLUMN);
-                        } else if (cache.type.equals(Email.CONTENT_ITEM_TYPE)) {
-                            cache.email = cursor.getString(DATA_DATA1_COLUMN);
-                        }
-                        cache.label = cursor.getString(DATA_DATA3_COLUMN);
-                        cache.contact_id = cursor.getString(DATA_CONTACT_ID);
-                        value = new String[] {
-                                cache.contact_id, cache.name,
-                                cache.number, cache.email
-                        };
-                    } else if (mPickMode.isPickContactVcard()) {
-                        cache.name = cursor.getString(SUMMARY_DISPLAY_NAME_PRIMARY_COLUMN_INDEX);
-                        cache.lookupKey = cursor.getString(SUMMARY_LOOKUP_KEY_COLUMN_INDEX);
-                        value = new String[] {
-                                cache.name, cache.lookupKey
-                        };
-                    }
-                    mCheckListListener.putValue(key, value);
+            if (mCursorQuery != null) {
+                // only the query of the list and the ids of its rows are kept, the rows are
+                // read when the result is returned.
+                final LongHashSet ids = new LongHashSet();
+                final int idColumn = getIdColumn();
+                final int count = cursor.getCount();
+                for (int i = 0; i < count; i++) {
+                    cursor.moveToPosition(i);
+                    ids.add(cursor.getLong(idColumn));
                 }
+                mCheckListListener.selectAll(mCursorQuery, ids);
+            } else {
+                // narrowed rows, they are selected one by one.
+                selectShownRows(cursor);
             }
         } else {
             // deselected all contacts
             if (!mPickMode.isPickPhone()) {
                 mCheckListListener.onClear();
             } else {
+                // the items picked in the other tabs stay selected.
+                mCheckListListener.unselectAll();
                 int count = cursor.getCount();
                 for (int i = 0; i < count; i++) {
                     cursor.moveToPosition(i);
-                    key = String.valueOf(cursor.getLong(PHONE_COLUMN_ID));
-                    if (mCheckListListener.onContainsKey(key)) {
-                        mCheckListListener.onRemove(key);
+                    long id = cursor.getLong(PHONE_COLUMN_ID);
+                    if (mCheckListListener.onContainsId(id)) {
+                        mCheckListListener.onRemove(String.valueOf(id));
                     }
                 }
                 // clear checked item numbers
@@ -1305,6 +1416,87 @@ public class ContactsFragment extends ListFragment {
         mContactListAdapter.notifyDataSetChanged();
     }
 
+    private void selectShownRows(Cursor cursor) {
+        final int idColumn = getIdColumn();
+        int count = cursor.getCount();
+        for (int i = 0; i < count; i++) {
+            cursor.moveToPosition(i);
+            long id = cursor.getLong(idColumn);
+            if (!mCheckListListener.onContainsId(id)) {
+                mCheckListListener.putValue(String.valueOf(id), buildValue(cursor, id));
+                if (mPickMode.isPickPhone()) {
+                    checkedList.add(id);
+                }
+            }
+        }
+    }
+
+    // only pick sim mode, id index is SIM_COLUMN_ID
+    // other mode, id index is 0
+    private int getIdColumn() {
+        return mPickMode.isPickSim() ? SIM_COLUMN_ID : 0;
+    }
+
+    private final PickSelection.ValueReader mValueReader = new PickSelection.ValueReader() {
+        @Override
+        public String[] read(Cursor cursor, long id) {
+            return buildValue(cursor, id);
+        }
+    };
+
+    private String[] buildValue(Cursor cursor, long id) {
+        String[] value = null;
+        if (mPickMode.isPickContact()) {
+            value = new String[] {
+                    cursor.getString(SUMMARY_LOOKUP_KEY_COLUMN_INDEX),
+                    String.valueOf(id),
+                    String.valueOf(cursor.getLong(SUMMARY_CONTACT_COLUMN_RAW_CONTACT_ID)),
+                    cursor.getString(SUMMARY_CONTACT_COLUMN_PHOTO_URI),
+                    cursor.getString(SUMMARY_DISPLAY_NAME_PRIMARY_COLUMN_INDEX)
+            };
+        } else if (mPickMode.isPickPhone()) {
+            value = new String[] {
+                    cursor.getString(PHONE_COLUMN_DISPLAY_NAME),
+                    cursor.getString(PHONE_COLUMN_NUMBER),
+                    String.valueOf(cursor.getInt(PHONE_COLUMN_TYPE)),
+                    cursor.getString(PHONE_COLUMN_LABEL),
+                    String.valueOf(cursor.getLong(PHONE_COLUMN_CONTACT_ID))
+            };
+        } else if (mPickMode.isPickEmail()) {
+            value = new String[] {
+                    cursor.getString(EMAIL_COLUMN_DISPLAY_NAME),
+                    cursor.getString(EMAIL_COLUMN_ADDRESS)
+            };
+        } else if (mPickMode.isPickSim()) {
+            value = new String[] {
+                    cursor.getString(SIM_COLUMN_DISPLAY_NAME),
+                    cursor.getString(SIM_COLUMN_NUMBER),
+                    cursor.getString(SIM_COLUMN_EMAILS),
+                    cursor.getString(SIM_COLUMN_ANRS)
+            };
+        } else if (mPickMode.isPickContactInfo()) {
+            String type = cursor.getString(DATA_MIMETYPE_COLUMN);
+            String number = null;
+            String email = null;
+            if (Phone.CONTENT_ITEM_TYPE.equals(type)) {
+                number = cursor.getString(DATA_DATA1_COLUMN);
+            } else if (Email.CONTENT_ITEM_TYPE.equals(type)) {
+                email = cursor.getString(DATA_DATA1_COLUMN);
+            }
+            value = new String[] {
+                    cursor.getString(DATA_CONTACT_ID),
+                    cursor.getString(DATA_DISPLAY_NAME),
+                    number, email
+            };
+        } else if (mPickMode.isPickContactVcard()) {
+            value = new String[] {
+                    cursor.getString(SUMMARY_DISPLAY_NAME_PRIMARY_COLUMN_INDEX),
+                    cursor.getString(SUMMARY_LOOKUP_KEY_COLUMN_INDEX)
+            };
+        }
+        return value;
+    }
+
     @Override
     public void setUserVisibleHint(boolean isVisibleToUser) {
         super.setUserVisibleHint(isVisibleToUser);
@@ -1313,26 +1505,19 @@ public class ContactsFragment extends ListFragment {
             if (checkedList != null) {
                 mContactListAdapter.notifyDataSetChanged();
                 Cursor mCursor = mContactListAdapter.getCursor();
-                if (mCursor == null)
+                // all rows selected, getAllCheckedListSize doesn't use checkedList.
+                if (mCursor == null || mCheckListListener.isAllSelected())
                     return;
+                final int idColumn = getIdColumn();
                 for (int i = 0; i < mCursor.getCount(); i++) {
                     mCursor.moveToPosition(i);
-                    String key;
-                    if (mPickMode.isPickSim()) {
-                        key = String.valueOf(mCursor.getLong(SIM_COLUMN_ID));
-                    } else {
-                        key = String.valueOf(mCursor.getLong(0));
-                    }
-                    if (mCheckListListener.onContainsKey(key)) {
+                    long id = mCursor.getLong(idColumn);
+                    if (mCheckListListener.onContainsId(id)) {
                         if (mPickMode.isPickPhone()) {
-                            if (!checkedList.contains(key)) {
-                                checkedList.add(key);
-                            }
+                            checkedList.add(id);
                         }
                     } else {
-                        if (checkedList.contains(key)) {
-                            checkedList.remove(key);
-                        }
+                        checkedList.remove(id);
                     }
                 }
                 mCheckListListener.onUpdateActionBar();
@@ -1341,6 +1526,9 @@ public class ContactsFragment extends ListFragment {
     }
 
     public int getAllCheckedListSize() {
+        if (mCheckListListener.isAllSelected()) {
+            return mCheckListListener.getSelectedCount();
+        }
         return checkedList.size();
     }
 
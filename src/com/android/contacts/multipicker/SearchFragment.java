@@ -325,6 +325,7 @@ public class SearchFragment extends ListFragment {
         mQueryHandler.removeCallbacksAndMessages(CONTACT_QUERY_TOKEN);
         mQueryHandler.removeCallbacksAndMessages(GROUP_QUERY_TOKEN);
         mQueryHandler.removeCallbacksAndMessages(CALLLOG_QUERY_TOKEN);
+        cancelSearch();
 
         if (mContactListAdapter.getCursor() != null) {
             mContactListAdapter.getCursor().close();
@@ -445,6 +446,10 @@ public class SearchFragment extends ListFragment {
     public void doFilter(int mode, String s) {
         query = s;
 
+        if (TextUtils.isEmpty(s) || mode == ContactsPickMode.MODE_SEARCH_GROUP) {
+            // a new search replaces the queries of the previous one.
+            cancelSearch();
+        }
         if (TextUtils.isEmpty(s)) {
             mContactListAdapter.changeCursor(null);
             return;
@@ -476,6 +481,16 @@ public class SearchFragment extends ListFragment {
 
     }
 
+    private void cancelSearch() {
+        mQueryHandler.cancelOperation(GROUP_QUERY_TOKEN);
+        mQueryHandler.cancelOperation(CONTACT_QUERY_TOKEN);
+        mQueryHandler.cancelOperation(CALLLOG_QUERY_TOKEN);
+        for (Cursor cursor : mCursors) {
+            cursor.close();
+        }
+        mCursors.clear();
+    }
+
     private class QueryHandler extends AsyncQueryHandler {
         protected WeakReference<SearchFragment> mFragment;
 
@@ -494,6 +509,13 @@ public class SearchFragment extends ListFragment {
             final SearchFragment fragment = mFragment.get();
             String filter = (String) cookie;
             // setFilterString(filter);
+            if (token != QUERY_TOKEN && !TextUtils.equals(filter, query)) {
+                // the search text changed while querying, a later search is running.
+                if (cursor != null) {
+                    cursor.close();
+                }
+                return;
+            }
             switch (token) {
                 case QUERY_TOKEN:
                     mContactListAdapter.changeCursor(cursor);
@@ -0,0 +1,240 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.contacts.util;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentValues;
+import android.net.Uri;
+import android.os.Parcel;
+import android.provider.ContactsContract.AggregationExceptions;
+import android.provider.ContactsContract.Data;
+import android.provider.ContactsContract.RawContacts;
+
+import com.android.contacts.common.compat.CompatUtils;
+import com.android.contacts.common.model.CPOWrapper;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits a list of operations into the batches given to applyBatch, when it does not fit in
+ * one batch by operation count or by parceled size, so that a batch stays well below the
+ * binder transaction limit.
+ *
+ * The operation count of a split adapts to the observed latency of each batch the same way
+ * as {@link BulkDeleter}. Back-references are indexes into the results of the batch they are
+ * applied in, so the operations that may carry one are kept in the first batch. If they don't
+ * fit in it, each raw contact insert ends its batch, and the back-references of the later
+ * batches are rebuilt with the ids it returned. Not thread safe.
+ */
+public class ApplyBatchSplitter {
+
+    static final int MIN_BATCH_SIZE = 50;
+    // ContactSaveService.MAX_CONTACTS_PROVIDER_BATCH_SIZE, the provider's own limit.
+    static final int MAX_BATCH_SIZE = 499;
+    // parceled bytes of one batch, the binder buffer of the process is 1 MB.
+    static final int MAX_BATCH_BYTES = 256 * 1024;
+    // latency aimed for a single applyBatch.
+    static final long TARGET_BATCH_MILLIS = 1000;
+
+    private int mBatchSize = MAX_BATCH_SIZE;
+
+    /**
+     * Returns the operations from offset to apply in the next batch, at least one.
+     *
+     * @param results the results of the operations before offset, to resolve the
+     *            back-references of a split.
+     */
+    public ArrayList<ContentProviderOperation> nextBatch(List<CPOWrapper> operations,
+            int offset, ContentProviderResult[] results) {
+        final int count = nextBatchSize(operations, offset);
+        final int prefix = getBackReferencedPrefix(operations);
+        final ArrayList<ContentProviderOperation> batch = new ArrayList<>(count);
+        for (int i = offset; i < offset + count; i++) {
+            final CPOWrapper operation = operations.get(i);
+            batch.add(offset > 0 && i < prefix
+                    ? resolveBackReferences(operation, results, offset)
+                    : operation.getOperation());
+        }
+        return batch;
+    }
+
+    /**
+     * @return the number of operations from offset to apply in the next batch, at least one.
+     */
+    int nextBatchSize(List<CPOWrapper> operations, int offset) {
+        final int size = operations.size();
+        if (fits(operations, offset, size)) {
+            return size - offset;
+        }
+        final int prefix = getBackReferencedPrefix(operations);
+        final boolean prefixFits = fits(operations, 0, prefix);
+        int count = 0;
+        int bytes = 0;
+        while (offset + count < size && count < mBatchSize) {
+            final CPOWrapper operation = operations.get(offset + count);
+            bytes += getParceledSize(operation.getOperation());
+            if (count > 0 && bytes > MAX_BATCH_BYTES) {
+                break;
+            }
+            count++;
+            if (!prefixFits && offset + count <= prefix && isRawContactInsert(operation)) {
+                // the operations referring back to it go in the next batches.
+                break;
+            }
+        }
+        if (offset == 0 && prefixFits) {
+            count = Math.max(count, prefix);
+        }
+        return count;
+    }
+
+    /**
+     * Records how long a batch took, to size the next one.
+     */
+    public void onBatchApplied(long elapsedMillis) {
+        mBatchSize = nextBatchSize(mBatchSize, elapsedMillis);
+    }
+
+    static int nextBatchSize(int batchSize, long elapsedMillis) {
+        if (elapsedMillis > TARGET_BATCH_MILLIS) {
+            return Math.max(MIN_BATCH_SIZE, batchSize / 2);
+        } else if (elapsedMillis < TARGET_BATCH_MILLIS / 2) {
+            return Math.min(MAX_BATCH_SIZE, batchSize * 2);
+        }
+        return batchSize;
+    }
+
+    /**
+     * @return whether the operations from start to end can be applied in one batch.
+     */
+    static boolean fits(List<CPOWrapper> operations, int start, int end) {
+        if (end - start > MAX_BATCH_SIZE) {
+            return false;
+        }
+        int bytes = 0;
+        for (int i = start; i < end; i++) {
+            bytes += getParceledSize(operations.get(i).getOperation());
+            if (bytes > MAX_BATCH_BYTES) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of leading operations that have to be applied in a single batch.
+     * When the list inserts a raw contact, the data inserts, aggregation exceptions and
+     * raw contact updates after it may refer back to it, up to the last of them.
+     */
+    static int getBackReferencedPrefix(List<CPOWrapper> operations) {
+        boolean insertsRawContact = false;
+        int prefix = 0;
+        for (int i = 0; i < operations.size(); i++) {
+            final CPOWrapper operation = operations.get(i);
+            if (isRawContactInsert(operation)) {
+                insertsRawContact = true;
+                prefix = i + 1;
+            } else if (insertsRawContact && (isDataInsert(operation)
+                    || isTable(operation, AggregationExceptions.CONTENT_URI)
+                    || isRawContactUpdate(operation))) {
+                prefix = i + 1;
+            }
+        }
+        return prefix;
+    }
+
+    /**
+     * Rebuilds a data insert, an aggregation exception or a raw contact update with its
+     * back-references replaced by the results of the operations applied in earlier batches.
+     * Other operations carry none and are returned as they are.
+     *
+     * The selection of an update can't be read back, so a raw contact update with selection
+     * arguments is taken to be the one RawContactDelta adds after inserting a raw contact,
+     * which selects it by "_id=?" through a selection back-reference. The updates of existing
+     * raw contacts carry their id in the selection and are returned as they are.
+     */
+    static ContentProviderOperation resolveBackReferences(CPOWrapper wrapper,
+            ContentProviderResult[] results, int count) {
+        final ContentProviderOperation operation = wrapper.getOperation();
+        final ContentProviderOperation.Builder builder;
+        if (isDataInsert(wrapper)) {
+            builder = ContentProviderOperation.newInsert(operation.getUri());
+        } else if (CompatUtils.isUpdateCompat(wrapper)
+                && isTable(wrapper, AggregationExceptions.CONTENT_URI)) {
+            builder = ContentProviderOperation.newUpdate(operation.getUri());
+        } else if (isRawContactUpdate(wrapper)) {
+            final String[] selectionArgs =
+                    operation.resolveSelectionArgsBackReferences(results, count);
+            if (selectionArgs == null || selectionArgs.length != 1) {
+                return operation;
+            }
+            builder = ContentProviderOperation.newUpdate(operation.getUri())
+                    .withSelection(RawContacts._ID + "=?", selectionArgs);
+        } else {
+            return operation;
+        }
+        final ContentValues values = operation.resolveValueBackReferences(results, count);
+        if (values != null) {
+            builder.withValues(values);
+        }
+        return builder.withYieldAllowed(operation.isYieldAllowed()).build();
+    }
+
+    private static boolean isRawContactInsert(CPOWrapper operation) {
+        return CompatUtils.isInsertCompat(operation)
+                && isTable(operation, RawContacts.CONTENT_URI);
+    }
+
+    private static boolean isRawContactUpdate(CPOWrapper operation) {
+        return CompatUtils.isUpdateCompat(operation)
+                && isTable(operation, RawContacts.CONTENT_URI);
+    }
+
+    private static boolean isDataInsert(CPOWrapper operation) {
+        return CompatUtils.isInsertCompat(operation) && isTable(operation, Data.CONTENT_URI);
+    }
+
+    private static boolean isTable(CPOWrapper operation, Uri tableUri) {
+        final Uri uri = operation.getOperation().getUri();
+        return uri != null && tableUri.getLastPathSegment().equals(uri.getLastPathSegment());
+    }
+
+    static int getParceledSize(ContentProviderOperation operation) {
+        final Parcel parcel = Parcel.obtain();
+        try {
+            operation.writeToParcel(parcel, 0);
+            return parcel.dataSize();
+        } finally {
+            parcel.recycle();
+        }
+    }
+}
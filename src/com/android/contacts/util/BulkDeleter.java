@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.contacts.util;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.CancellationSignal;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Deletes a large set of rows by id, with one "id IN (...)" delete per chunk.
+ *
+ * The chunk size adapts to the observed latency of each delete: it grows while deletes are
+ * fast and shrinks when one takes longer than {@link #TARGET_CHUNK_MILLIS}, so that progress
+ * and cancellation stay responsive. Not thread safe, each delete runs on the calling thread.
+ */
+public class BulkDeleter {
+    private static final String TAG = "BulkDeleter";
+
+    /**
+     * Receives the progress of {@link #delete}, on the deleting thread.
+     */
+    public interface Listener {
+        /**
+         * @param handled ids handled so far, deleted or failed.
+         * @param total ids to delete.
+         */
+        void onProgress(int handled, int total);
+    }
+
+    /**
+     * Outcome of one chunk.
+     */
+    public static class ChunkResult {
+        /** ids in the chunk. */
+        public final int requested;
+        /** rows the provider reported as deleted. */
+        public final int deleted;
+        public final long elapsedMillis;
+        /** the failure of the chunk, or null if it succeeded. */
+        public final Exception error;
+
+        ChunkResult(int requested, int deleted, long elapsedMillis, Exception error) {
+            this.requested = requested;
+            this.deleted = deleted;
+            this.elapsedMillis = elapsedMillis;
+            this.error = error;
+        }
+
+        public boolean isSuccessful() {
+            return error == null;
+        }
+    }
+
+    static final int MIN_CHUNK_SIZE = 20;
+    static final int MAX_CHUNK_SIZE = 1000;
+    private static final int INITIAL_CHUNK_SIZE = 100;
+    // latency aimed for a single delete.
+    static final long TARGET_CHUNK_MILLIS = 500;
+
+    private final ContentResolver mResolver;
+    private final Uri mUri;
+    private final String mIdColumn;
+    private int mChunkSize = INITIAL_CHUNK_SIZE;
+
+    /**
+     * @param uri the uri deleted from.
+     * @param idColumn the column matched against the ids.
+     */
+    public BulkDeleter(ContentResolver resolver, Uri uri, String idColumn) {
+        mResolver = resolver;
+        mUri = uri;
+        mIdColumn = idColumn;
+    }
+
+    /**
+     * delete the rows matching the ids, stopping early when the signal is cancelled.
+     *
+     * @return the result of each chunk attempted, in order.
+     */
+    public List<ChunkResult> delete(List<Long> ids, Listener listener,
+            CancellationSignal signal) {
+        ArrayList<ChunkResult> results = new ArrayList<>();
+        int start = 0;
+        while (start < ids.size() && (signal == null || !signal.isCanceled())) {
+            int end = Math.min(start + mChunkSize, ids.size());
+            List<Long> chunk = ids.subList(start, end);
+            long startTime = SystemClock.elapsedRealtime();
+            int deleted = 0;
+            Exception error = null;
+            try {
+                deleted = mResolver.delete(mUri,
+                        mIdColumn + " IN (" + TextUtils.join(",", chunk) + ")", null);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Failed to delete " + chunk.size() + " rows from " + mUri, e);
+                error = e;
+            }
+            long elapsed = SystemClock.elapsedRealtime() - startTime;
+            results.add(new ChunkResult(chunk.size(), deleted, elapsed, error));
+            mChunkSize = nextChunkSize(mChunkSize, elapsed);
+            start = end;
+            if (listener != null) {
+                listener.onProgress(start, ids.size());
+            }
+        }
+        return results;
+    }
+
+    /**
+     * @return the size of the next chunk given how long the last one took.
+     */
+    static int nextChunkSize(int chunkSize, long elapsedMillis) {
+        if (elapsedMillis > TARGET_CHUNK_MILLIS) {
+            return Math.max(MIN_CHUNK_SIZE, chunkSize / 2);
+        } else if (elapsedMillis < TARGET_CHUNK_MILLIS / 2) {
+            return Math.min(MAX_CHUNK_SIZE, chunkSize * 2);
+        }
+        return chunkSize;
+    }
+
+    /**
+     * @return the number of ids in failed chunks.
+     */
+    public static int countFailed(List<ChunkResult> results) {
+        int failed = 0;
+        for (ChunkResult result : results) {
+            if (!result.isSuccessful()) {
+                failed += result.requested;
+            }
+        }
+        return failed;
+    }
+}
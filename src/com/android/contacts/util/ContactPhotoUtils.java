@@ -21,10 +21,12 @@ import android.content.ClipData;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
+import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.os.Environment;
+import android.provider.ContactsContract.DisplayPhoto;
 import android.provider.MediaStore;
 import android.support.v4.content.FileProvider;
 import android.util.Log;
@@ -173,6 +175,98 @@ public class ContactPhotoUtils {
         return true;
     }
 
+    /**
+     * Given an input photo stored in a uri, decode it subsampled so that its larger side is
+     * still at least maxDimension, and save it as a JPEG to a destination uri. Falls back to
+     * {@link #savePhotoFromUriToUri} if the photo can't be decoded.
+     */
+    public static boolean saveScaledPhotoFromUriToUri(Context context, Uri inputUri,
+            Uri outputUri, int maxDimension, boolean deleteAfterSave) {
+        if (inputUri == null || outputUri == null || isFilePathAndNotStorage(inputUri)) {
+            return false;
+        }
+        final ContentResolver resolver = context.getContentResolver();
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        try (InputStream inputStream = resolver.openInputStream(inputUri)) {
+            BitmapFactory.decodeStream(inputStream, null, options);
+        } catch (IOException | NullPointerException e) {
+            Log.w(TAG, "Failed to read photo bounds: " + inputUri.toString() + " because: " + e);
+        }
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return savePhotoFromUriToUri(context, inputUri, outputUri, deleteAfterSave);
+        }
+        options.inSampleSize = getSampleSize(options.outWidth, options.outHeight, maxDimension);
+        if (options.inSampleSize == 1) {
+            // Already small enough, keep the original bytes.
+            return savePhotoFromUriToUri(context, inputUri, outputUri, deleteAfterSave);
+        }
+
+        options.inJustDecodeBounds = false;
+        Bitmap bitmap = null;
+        try (InputStream inputStream = resolver.openInputStream(inputUri)) {
+            bitmap = BitmapFactory.decodeStream(inputStream, null, options);
+        } catch (IOException | NullPointerException e) {
+            Log.w(TAG, "Failed to decode photo: " + inputUri.toString() + " because: " + e);
+        }
+        if (bitmap == null) {
+            return savePhotoFromUriToUri(context, inputUri, outputUri, deleteAfterSave);
+        }
+
+        try (FileOutputStream outputStream = resolver
+                 .openAssetFileDescriptor(outputUri, "rw").createOutputStream()) {
+            bitmap.compress(Bitmap.CompressFormat.JPEG, 95, outputStream);
+            Log.v(TAG, "Wrote " + bitmap.getWidth() + "x" + bitmap.getHeight()
+                    + " photo for " + inputUri.toString());
+        } catch (IOException | NullPointerException e) {
+            Log.e(TAG, "Failed to write photo: " + inputUri.toString() + " because: " + e);
+            return false;
+        } finally {
+            bitmap.recycle();
+            if (deleteAfterSave) {
+                resolver.delete(inputUri, null, null);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the largest power of two sample size that keeps the larger side of the photo
+     * at least maxDimension.
+     */
+    static int getSampleSize(int width, int height, int maxDimension) {
+        final int largerSide = Math.max(width, height);
+        int sampleSize = 1;
+        while (maxDimension > 0 && largerSide / (sampleSize * 2) >= maxDimension) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    private static int sDisplayPhotoMaxDimension;
+
+    /**
+     * Returns the largest dimension of the display photos stored by the provider.
+     */
+    public static int getDisplayPhotoMaxDimension(Context context) {
+        if (sDisplayPhotoMaxDimension > 0) {
+            return sDisplayPhotoMaxDimension;
+        }
+        final Cursor c = context.getContentResolver().query(
+                DisplayPhoto.CONTENT_MAX_DIMENSIONS_URI,
+                new String[] {DisplayPhoto.DISPLAY_MAX_DIM}, null, null, null);
+        if (c != null) {
+            try {
+                if (c.moveToFirst()) {
+                    sDisplayPhotoMaxDimension = c.getInt(0);
+                }
+            } finally {
+                c.close();
+            }
+        }
+        return sDisplayPhotoMaxDimension;
+    }
+
     /**
      * Returns {@code true} if the {@code inputUri} is a FILE scheme and it does not point to
      * the storage directory.
@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.contacts.util;
+
+import android.database.Cursor;
+
+import java.util.ArrayList;
+import java.util.Locale;
+
+/**
+ * An in memory index of the words in some text columns of the rows of a cursor, to narrow a
+ * search result as the query gets longer while the provider is queried again. The match is
+ * an approximation of the provider filter, which also looks at other columns and normalizes
+ * names, so the narrowed rows are only shown until the provider result comes.
+ *
+ * A row matches a query if each word of the query starts a word of the row, or for a query
+ * word of digits, appears in the digits of a column, e.g. in a formatted number.
+ */
+public class ContactTokenIndex {
+
+    private final String[][] mTokens;
+    private final String[] mDigits;
+
+    /**
+     * Reads the columns of all rows, the cursor position is not kept.
+     */
+    public ContactTokenIndex(Cursor cursor, int[] columns) {
+        final int count = cursor.getCount();
+        mTokens = new String[count][];
+        mDigits = new String[count];
+        final ArrayList<String> tokens = new ArrayList<>();
+        final StringBuilder digits = new StringBuilder();
+        for (int position = 0; position < count; position++) {
+            cursor.moveToPosition(position);
+            tokens.clear();
+            digits.setLength(0);
+            for (int column : columns) {
+                final String text = cursor.getString(column);
+                if (text != null) {
+                    tokenize(text, tokens);
+                    appendDigits(text, digits);
+                    // the columns are searched separately.
+                    digits.append(' ');
+                }
+            }
+            mTokens[position] = tokens.toArray(new String[tokens.size()]);
+            mDigits[position] = digits.toString();
+        }
+    }
+
+    public int getCount() {
+        return mTokens.length;
+    }
+
+    /**
+     * @param positions the rows to search, all rows if null.
+     * @return the positions of the rows matching the query, in increasing order.
+     */
+    public int[] match(String query, int[] positions) {
+        final ArrayList<String> queryTokens = new ArrayList<>();
+        tokenize(query, queryTokens);
+        final int count = positions != null ? positions.length : mTokens.length;
+        final int[] matches = new int[count];
+        int matchCount = 0;
+        for (int i = 0; i < count; i++) {
+            final int position = positions != null ? positions[i] : i;
+            if (matches(position, queryTokens)) {
+                matches[matchCount++] = position;
+            }
+        }
+        final int[] result = new int[matchCount];
+        System.arraycopy(matches, 0, result, 0, matchCount);
+        return result;
+    }
+
+    private boolean matches(int position, ArrayList<String> queryTokens) {
+        for (String queryToken : queryTokens) {
+            if (!matchesToken(position, queryToken)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean matchesToken(int position, String queryToken) {
+        if (isDigits(queryToken) && mDigits[position].contains(queryToken)) {
+            return true;
+        }
+        for (String token : mTokens[position]) {
+            if (token.startsWith(queryToken)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Splits the text into lower case words of letters and digits.
+     */
+    static void tokenize(String text, ArrayList<String> tokens) {
+        final String lower = text.toLowerCase(Locale.getDefault());
+        int start = -1;
+        for (int i = 0; i <= lower.length(); i++) {
+            final boolean inWord = i < lower.length()
+                    && Character.isLetterOrDigit(lower.charAt(i));
+            if (inWord && start < 0) {
+                start = i;
+            } else if (!inWord && start >= 0) {
+                tokens.add(lower.substring(start, i));
+                start = -1;
+            }
+        }
+    }
+
+    private static void appendDigits(String text, StringBuilder digits) {
+        for (int i = 0; i < text.length(); i++) {
+            final char c = text.charAt(i);
+            if (c >= '0' && c <= '9') {
+                digits.append(c);
+            }
+        }
+    }
+
+    private static boolean isDigits(String token) {
+        for (int i = 0; i < token.length(); i++) {
+            final char c = token.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+}
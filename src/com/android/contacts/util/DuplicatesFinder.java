@@ -0,0 +1,605 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.contacts.util;
+
+import android.accounts.Account;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.Entity;
+import android.content.EntityIterator;
+import android.database.Cursor;
+import android.os.CancellationSignal;
+import android.provider.ContactsContract.CommonDataKinds;
+import android.provider.ContactsContract.Contacts;
+import android.provider.ContactsContract.Data;
+import android.provider.ContactsContract.RawContacts;
+import android.provider.ContactsContract.RawContactsEntity;
+import android.telephony.PhoneNumberUtils;
+import android.text.TextUtils;
+
+import com.android.contacts.common.GeoUtil;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Finds duplicated raw contacts of one account in a single pass over
+ * {@link RawContactsEntity}.
+ *
+ * Every raw contact is reduced to a set of blocking keys (normalized name, E.164 phone
+ * number and lower-cased email address). Raw contacts with the same name key end up in the
+ * same group. Raw contacts sharing a phone or email key are only candidates, they are joined
+ * if their names match too, since people of one office or family share numbers and emails.
+ * A {@link Matcher} also joins the groups whose names are close but not equal, comparing each
+ * name only with its nearest neighbours inside a block. The groups are reported through
+ * {@link Listener} once the account has been read.
+ *
+ * The records are kept in {@link DuplicatesIndex}, a rescan only reads the raw contacts whose
+ * version changed since the previous one.
+ */
+public class DuplicatesFinder {
+
+    /**
+     * Receives the candidate groups and the scan progress.
+     */
+    public interface Listener {
+        /** Called for every group of at least two raw contacts. */
+        void onMergeContactsFound(DuplicatesUtils.MergeContacts mergeContacts);
+
+        /** Called as raw contacts are checked, with the count done so far in this account. */
+        void onRawContactScanned(int count);
+    }
+
+    /**
+     * Pluggable name matching tier.
+     */
+    public interface Matcher {
+        /** @return the exact blocking key of the name, or null if it has none. */
+        String normalize(String name);
+
+        /** @return the key of the block in which normalized names are compared. */
+        String blockKey(String normalizedName);
+
+        /** @return the similarity of two normalized names, from 0 to 1. */
+        float similarity(String lhs, String rhs);
+
+        /** @return whether names of this similarity are duplicates. */
+        boolean isMatch(float similarity);
+    }
+
+    private static final String KEY_NAME = "n:";
+
+    // similarity of names only equal once normalized, their sets are not checked by default.
+    private static final float NORMALIZED_SIMILARITY = 0.95f;
+
+    // number of following names, in sorted order, each name of a block is compared with.
+    private static final int BLOCK_WINDOW = 8;
+    private static final String KEY_PHONE = "p:";
+    private static final String KEY_EMAIL = "e:";
+
+    // shorter numbers are service, extension or emergency numbers, shared by unrelated
+    // contacts. Emergency numbers are all shorter, so they need no lookup of their own.
+    private static final int MIN_PHONE_KEY_DIGITS = 7;
+    // a phone or email key shared by more raw contacts is a switchboard or a mailing list,
+    // its candidates are not compared.
+    private static final int MAX_CANDIDATES_PER_KEY = 16;
+
+    // Upper bound of ids in a single "IN (...)" selection.
+    private static final int MAX_IDS_PER_QUERY = 500;
+
+    private static final String[] CONTACTS_PROJECTION = new String[]{Contacts._ID,
+            Contacts.LOOKUP_KEY, Contacts.DISPLAY_NAME_PRIMARY};
+
+    private static final String[] RAW_CONTACTS_VERSION_PROJECTION = new String[]{
+            RawContacts._ID, RawContacts.VERSION, RawContacts.CONTACT_ID};
+
+    private static final String ACCOUNT_SELECTION = RawContacts.DELETED + "=0 AND "
+            + RawContacts.ACCOUNT_NAME + "=? AND " + RawContacts.ACCOUNT_TYPE + "=?";
+
+    private final ContentResolver mResolver;
+    private final String mCountryIso;
+    private final DuplicatesIndex mIndex;
+    private Matcher mMatcher = new FuzzyNameMatcher();
+
+    public DuplicatesFinder(Context context) {
+        mResolver = context.getContentResolver();
+        mCountryIso = GeoUtil.getCurrentCountryIso(context);
+        mIndex = DuplicatesIndex.getInstance(context);
+        mIndex.checkCountryIso(mCountryIso);
+    }
+
+    /**
+     * replace the name matching tier, the index must be cleared if its keys change.
+     */
+    public void setMatcher(Matcher matcher) {
+        mMatcher = matcher;
+    }
+
+    /**
+     * One raw contact as seen by the finder.
+     */
+    static class RawRecord {
+        long rawId;
+        int version;
+        long contactId = -1;
+        long photoId;
+        String name;
+        final ArrayList<String> phones = new ArrayList<>();
+        final ArrayList<String> emails = new ArrayList<>();
+        final HashSet<String> keys = new HashSet<>();
+        // not indexed, computed when grouping.
+        String normalizedName;
+    }
+
+    /**
+     * Scan the given account, it may be called for several accounts in parallel.
+     *
+     * @return false if the scan was cancelled.
+     */
+    public boolean scanAccount(Account account, Listener listener, CancellationSignal signal) {
+        Collection<RawRecord> records = refreshAccount(account, listener, signal);
+        if (records == null) {
+            return false;
+        }
+        List<List<RawRecord>> groups = groupByKeys(new ArrayList<>(records));
+        if (signal.isCanceled()) {
+            return false;
+        }
+        HashMap<Long, String[]> contacts = loadContacts(groups);
+        for (List<RawRecord> group : groups) {
+            if (signal.isCanceled()) {
+                return false;
+            }
+            // only ids and names are kept, the preview loads the rest on demand.
+            ArrayList<DuplicatesUtils.ContactsInfo> infos = new ArrayList<>(group.size());
+            HashSet<String> phoneKeys = new HashSet<>();
+            HashSet<String> emails = new HashSet<>();
+            RawRecord source = group.get(0);
+            boolean exact = true;
+            for (RawRecord record : group) {
+                String[] contact = contacts.get(record.contactId);
+                if (contact == null) {
+                    // the aggregate went away while scanning.
+                    continue;
+                }
+                float similarity = similarity(source, record);
+                exact &= similarity >= 1f;
+                infos.add(new DuplicatesUtils.ContactsInfo(record.contactId, contact[0],
+                        record.photoId, contact[1], record.rawId, similarity));
+                for (String key : record.keys) {
+                    if (key.startsWith(KEY_PHONE)) {
+                        phoneKeys.add(key);
+                    }
+                }
+                for (String email : record.emails) {
+                    if (!TextUtils.isEmpty(email)) {
+                        emails.add(email);
+                    }
+                }
+            }
+            if (infos.size() >= 2) {
+                DuplicatesUtils.MergeContacts mergeContacts =
+                        new DuplicatesUtils.MergeContacts(account.name, account.type, infos);
+                mergeContacts.setDataCounts(phoneKeys.size(), emails.size());
+                // sets of different names are only merged if the user picks them.
+                mergeContacts.setChecked(exact);
+                listener.onMergeContactsFound(mergeContacts);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * bring the indexed records of the account up to date with the provider.
+     *
+     * @return all current records of the account, or null if cancelled.
+     */
+    private Collection<RawRecord> refreshAccount(Account account, Listener listener,
+            CancellationSignal signal) {
+        HashMap<Long, RawRecord> records = mIndex.load(account);
+        Cursor cursor = mResolver.query(RawContacts.CONTENT_URI,
+                RAW_CONTACTS_VERSION_PROJECTION, ACCOUNT_SELECTION,
+                new String[]{account.name, account.type}, null);
+        if (cursor == null) {
+            return records.values();
+        }
+        HashMap<Long, Integer> staleVersions = new HashMap<>();
+        HashSet<Long> current = new HashSet<>();
+        try {
+            while (cursor.moveToNext()) {
+                long rawId = cursor.getLong(0);
+                int version = cursor.getInt(1);
+                long contactId = cursor.isNull(2) ? -1 : cursor.getLong(2);
+                current.add(rawId);
+                RawRecord record = records.get(rawId);
+                if (record == null || record.version != version
+                        || record.contactId != contactId) {
+                    staleVersions.put(rawId, version);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+
+        ArrayList<Long> removedIds = new ArrayList<>();
+        for (Long rawId : records.keySet()) {
+            if (!current.contains(rawId)) {
+                removedIds.add(rawId);
+            }
+        }
+        records.keySet().removeAll(removedIds);
+
+        int reused = current.size() - staleVersions.size();
+        listener.onRawContactScanned(reused);
+        ArrayList<RawRecord> refreshed;
+        if (staleVersions.size() > current.size() / 2) {
+            // most of the account changed, reading it at once is cheaper.
+            refreshed = readEntities(ACCOUNT_SELECTION, new String[]{account.name,
+                    account.type}, staleVersions, reused, listener, signal);
+        } else {
+            refreshed = new ArrayList<>();
+            ArrayList<Long> staleIds = new ArrayList<>(staleVersions.keySet());
+            for (int start = 0; start < staleIds.size(); start += MAX_IDS_PER_QUERY) {
+                List<Long> chunk = staleIds.subList(start,
+                        Math.min(start + MAX_IDS_PER_QUERY, staleIds.size()));
+                ArrayList<RawRecord> read = readEntities(RawContactsEntity._ID + " IN ("
+                        + TextUtils.join(",", chunk) + ")", null, staleVersions,
+                        reused + refreshed.size(), listener, signal);
+                if (read == null) {
+                    refreshed = null;
+                    break;
+                }
+                refreshed.addAll(read);
+            }
+        }
+        if (refreshed == null) {
+            return null;
+        }
+        for (RawRecord record : refreshed) {
+            records.put(record.rawId, record);
+        }
+        mIndex.update(account, refreshed, removedIds);
+        return records.values();
+    }
+
+    /**
+     * read the stale raw contacts matched by the selection.
+     *
+     * @return null if cancelled.
+     */
+    private ArrayList<RawRecord> readEntities(String selection, String[] selectionArgs,
+            HashMap<Long, Integer> staleVersions, int scannedBefore, Listener listener,
+            CancellationSignal signal) {
+        ArrayList<RawRecord> records = new ArrayList<>();
+        Cursor cursor = mResolver.query(RawContactsEntity.CONTENT_URI, null, selection,
+                selectionArgs, RawContactsEntity._ID + " DESC");
+        if (cursor == null) {
+            return records;
+        }
+        EntityIterator iterator = RawContacts.newEntityIterator(cursor);
+        try {
+            while (iterator.hasNext()) {
+                if (signal.isCanceled()) {
+                    return null;
+                }
+                RawRecord record = buildRecord(iterator.next());
+                Integer version = staleVersions.get(record.rawId);
+                if (version == null) {
+                    // unchanged, or inserted after the version query.
+                    continue;
+                }
+                record.version = version;
+                records.add(record);
+                listener.onRawContactScanned(scannedBefore + records.size());
+            }
+        } finally {
+            iterator.close();
+        }
+        return records;
+    }
+
+    private RawRecord buildRecord(Entity entity) {
+        RawRecord record = new RawRecord();
+        ContentValues values = entity.getEntityValues();
+        record.rawId = values.getAsLong(RawContacts._ID);
+        Long contactId = values.getAsLong(RawContacts.CONTACT_ID);
+        if (contactId != null) {
+            record.contactId = contactId;
+        }
+        for (Entity.NamedContentValues namedValues : entity.getSubValues()) {
+            ContentValues data = namedValues.values;
+            String mimeType = data.getAsString(Data.MIMETYPE);
+            if (CommonDataKinds.StructuredName.CONTENT_ITEM_TYPE.equals(mimeType)) {
+                record.name = data.getAsString(CommonDataKinds.StructuredName.DISPLAY_NAME);
+                String nameKey = mMatcher.normalize(record.name);
+                if (!TextUtils.isEmpty(nameKey)) {
+                    record.keys.add(KEY_NAME + nameKey);
+                }
+            } else if (CommonDataKinds.Photo.CONTENT_ITEM_TYPE.equals(mimeType)) {
+                Long photoId = data.getAsLong(Data._ID);
+                if (photoId != null) {
+                    record.photoId = photoId;
+                }
+            } else if (CommonDataKinds.Phone.CONTENT_ITEM_TYPE.equals(mimeType)) {
+                String number = data.getAsString(CommonDataKinds.Phone.NUMBER);
+                record.phones.add(number);
+                String phoneKey = phoneKey(number);
+                if (!TextUtils.isEmpty(phoneKey)) {
+                    record.keys.add(KEY_PHONE + phoneKey);
+                }
+            } else if (CommonDataKinds.Email.CONTENT_ITEM_TYPE.equals(mimeType)) {
+                String address = data.getAsString(CommonDataKinds.Email.ADDRESS);
+                record.emails.add(address);
+                if (!TextUtils.isEmpty(address)) {
+                    record.keys.add(KEY_EMAIL + address.trim().toLowerCase(Locale.ROOT));
+                }
+            }
+        }
+        return record;
+    }
+
+    /**
+     * union the records sharing a name key, and the records sharing a phone or email key
+     * whose names match.
+     *
+     * @return the groups with at least two records, each ordered by raw contact id descending.
+     */
+    List<List<RawRecord>> groupByKeys(List<RawRecord> records) {
+        int[] parent = new int[records.size()];
+        for (int i = 0; i < parent.length; i++) {
+            parent[i] = i;
+        }
+        HashMap<String, List<Integer>> candidates = new HashMap<>();
+        for (int i = 0; i < records.size(); i++) {
+            for (String key : records.get(i).keys) {
+                List<Integer> owners = candidates.get(key);
+                if (owners == null) {
+                    owners = new ArrayList<>();
+                    candidates.put(key, owners);
+                }
+                owners.add(i);
+            }
+        }
+        for (Map.Entry<String, List<Integer>> entry : candidates.entrySet()) {
+            List<Integer> owners = entry.getValue();
+            if (owners.size() < 2) {
+                continue;
+            }
+            if (entry.getKey().startsWith(KEY_NAME)) {
+                for (int i = 1; i < owners.size(); i++) {
+                    union(parent, owners.get(0), owners.get(i));
+                }
+                continue;
+            }
+            if (owners.size() > MAX_CANDIDATES_PER_KEY) {
+                continue;
+            }
+            for (int i = 0; i < owners.size(); i++) {
+                for (int j = i + 1; j < owners.size(); j++) {
+                    int lhs = owners.get(i);
+                    int rhs = owners.get(j);
+                    if (find(parent, lhs) != find(parent, rhs)
+                            && namesMatch(records.get(lhs), records.get(rhs))) {
+                        union(parent, lhs, rhs);
+                    }
+                }
+            }
+        }
+        matchNames(records, parent);
+
+        HashMap<Integer, List<RawRecord>> byRoot = new HashMap<>();
+        List<List<RawRecord>> groups = new ArrayList<>();
+        for (int i = 0; i < records.size(); i++) {
+            int root = find(parent, i);
+            List<RawRecord> group = byRoot.get(root);
+            if (group == null) {
+                group = new ArrayList<>();
+                byRoot.put(root, group);
+                groups.add(group);
+            }
+            group.add(records.get(i));
+        }
+
+        Comparator<RawRecord> byIdDesc = new Comparator<RawRecord>() {
+            @Override
+            public int compare(RawRecord lhs, RawRecord rhs) {
+                return Long.compare(rhs.rawId, lhs.rawId);
+            }
+        };
+        List<List<RawRecord>> result = new ArrayList<>();
+        for (List<RawRecord> group : groups) {
+            if (group.size() >= 2) {
+                Collections.sort(group, byIdDesc);
+                result.add(group);
+            }
+        }
+        return result;
+    }
+
+    private static int find(int[] parent, int i) {
+        while (parent[i] != i) {
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return i;
+    }
+
+    private static void union(int[] parent, int a, int b) {
+        int rootA = find(parent, a);
+        int rootB = find(parent, b);
+        if (rootA != rootB) {
+            parent[Math.max(rootA, rootB)] = Math.min(rootA, rootB);
+        }
+    }
+
+    /**
+     * load lookup key and display name of the aggregates referenced by the groups.
+     *
+     * @return map from contact id to {lookup key, display name}.
+     */
+    private HashMap<Long, String[]> loadContacts(List<List<RawRecord>> groups) {
+        ArrayList<Long> contactIds = new ArrayList<>();
+        HashSet<Long> seen = new HashSet<>();
+        for (List<RawRecord> group : groups) {
+            for (RawRecord record : group) {
+                if (record.contactId != -1 && seen.add(record.contactId)) {
+                    contactIds.add(record.contactId);
+                }
+            }
+        }
+        HashMap<Long, String[]> contacts = new HashMap<>();
+        for (int start = 0; start < contactIds.size(); start += MAX_IDS_PER_QUERY) {
+            List<Long> chunk = contactIds.subList(start,
+                    Math.min(start + MAX_IDS_PER_QUERY, contactIds.size()));
+            Cursor cursor = mResolver.query(Contacts.CONTENT_URI, CONTACTS_PROJECTION,
+                    Contacts._ID + " IN (" + TextUtils.join(",", chunk) + ")", null, null);
+            if (cursor == null) {
+                continue;
+            }
+            try {
+                while (cursor.moveToNext()) {
+                    contacts.put(cursor.getLong(0),
+                            new String[]{cursor.getString(1), cursor.getString(2)});
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return contacts;
+    }
+
+    /**
+     * union the records whose names are similar according to the matcher. Names are compared
+     * only inside a block, each with the following {@link #BLOCK_WINDOW} names in sorted
+     * order, which keeps the cost linear in the number of records.
+     */
+    private void matchNames(final List<RawRecord> records, int[] parent) {
+        HashMap<String, List<Integer>> blocks = new HashMap<>();
+        for (int i = 0; i < records.size(); i++) {
+            String normalized = normalizedName(records.get(i));
+            if (normalized == null) {
+                continue;
+            }
+            String blockKey = mMatcher.blockKey(normalized);
+            List<Integer> block = blocks.get(blockKey);
+            if (block == null) {
+                block = new ArrayList<>();
+                blocks.put(blockKey, block);
+            }
+            block.add(i);
+        }
+        Comparator<Integer> byName = new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                return records.get(lhs).normalizedName.compareTo(records.get(rhs).normalizedName);
+            }
+        };
+        for (List<Integer> block : blocks.values()) {
+            if (block.size() < 2) {
+                continue;
+            }
+            Collections.sort(block, byName);
+            for (int i = 0; i < block.size(); i++) {
+                int lhs = block.get(i);
+                int end = Math.min(block.size(), i + 1 + BLOCK_WINDOW);
+                for (int j = i + 1; j < end; j++) {
+                    int rhs = block.get(j);
+                    if (find(parent, lhs) == find(parent, rhs)) {
+                        continue;
+                    }
+                    float similarity = mMatcher.similarity(records.get(lhs).normalizedName,
+                            records.get(rhs).normalizedName);
+                    if (mMatcher.isMatch(similarity)) {
+                        union(parent, lhs, rhs);
+                    }
+                }
+            }
+        }
+    }
+
+    private boolean namesMatch(RawRecord lhs, RawRecord rhs) {
+        String lhsName = normalizedName(lhs);
+        String rhsName = normalizedName(rhs);
+        if (lhsName == null || rhsName == null) {
+            return false;
+        }
+        return lhsName.equals(rhsName)
+                || mMatcher.isMatch(mMatcher.similarity(lhsName, rhsName));
+    }
+
+    private String normalizedName(RawRecord record) {
+        if (record.normalizedName == null) {
+            record.normalizedName = mMatcher.normalize(record.name);
+        }
+        return record.normalizedName;
+    }
+
+    /**
+     * @return how close the record is to the one kept by the merge, from 0 to 1.
+     */
+    private float similarity(RawRecord source, RawRecord record) {
+        if (source == record) {
+            return 1f;
+        }
+        if (source.name != null && source.name.equalsIgnoreCase(record.name)) {
+            return 1f;
+        }
+        String lhs = normalizedName(source);
+        String rhs = normalizedName(record);
+        if (lhs == null || rhs == null) {
+            return 0f;
+        }
+        // names only equal once normalized, e.g. a nickname, are not exact either.
+        return Math.min(mMatcher.similarity(lhs, rhs), NORMALIZED_SIMILARITY);
+    }
+
+    /**
+     * the equivalence key of the number, see {@link PhoneNumberKeyIndex}.
+     *
+     * @return null for short numbers, emergency numbers among them, which don't identify a
+     * person. PhoneNumberUtils.isEmergencyNumber is not called, it makes a binder call for
+     * each number of the scan.
+     */
+    String phoneKey(String number) {
+        String normalized = PhoneNumberUtils.normalizeNumber(number);
+        if (TextUtils.isEmpty(normalized) || normalized.length() < MIN_PHONE_KEY_DIGITS) {
+            return null;
+        }
+        return PhoneNumberKeyIndex.toKey(normalized);
+    }
+}
@@ -0,0 +1,322 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.contacts.util;
+
+import android.accounts.Account;
+import android.accounts.AccountManager;
+import android.content.BroadcastReceiver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.Intent;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.os.AsyncTask;
+import android.text.TextUtils;
+
+import com.android.contacts.common.util.PermissionsUtil;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * On-disk copy of the raw contacts seen by {@link DuplicatesFinder}, keyed by raw contact id
+ * and {@link android.provider.ContactsContract.RawContacts#VERSION}, so that a rescan only has
+ * to read the raw contacts changed since the previous one.
+ *
+ * The records of an account are dropped when the account is removed, and the whole index is
+ * deleted once the contacts permission is revoked, see {@link #purge}.
+ */
+public class DuplicatesIndex extends SQLiteOpenHelper {
+
+    private static final String DATABASE_NAME = "duplicates_index.db";
+    // bumped whenever the stored phone or name keys change, onUpgrade rebuilds the index.
+    private static final int DATABASE_VERSION = 2;
+
+    private static final String TABLE_RAW = "raw_records";
+    private static final String TABLE_META = "meta";
+
+    private static final String RAW_ID = "raw_id";
+    private static final String ACCOUNT_NAME = "account_name";
+    private static final String ACCOUNT_TYPE = "account_type";
+    private static final String VERSION = "version";
+    private static final String CONTACT_ID = "contact_id";
+    private static final String PHOTO_ID = "photo_id";
+    private static final String NAME = "name";
+    private static final String PHONES = "phones";
+    private static final String EMAILS = "emails";
+    private static final String KEYS = "keys";
+
+    private static final String META_KEY = "key";
+    private static final String META_VALUE = "value";
+    // blocking keys depend on the country used to format the numbers.
+    private static final String META_COUNTRY_ISO = "country_iso";
+
+    private static final String[] RAW_PROJECTION = new String[]{RAW_ID, VERSION, CONTACT_ID,
+            PHOTO_ID, NAME, PHONES, EMAILS, KEYS};
+
+    private static final String ACCOUNT_SELECTION = ACCOUNT_NAME + "=? AND "
+            + ACCOUNT_TYPE + "=?";
+
+    // separates the values of one list column, it can't be typed in a contact field.
+    private static final String SEPARATOR = "\u001f";
+    // stands for a null value in a list column.
+    private static final String NULL_VALUE = "\u001e";
+
+    private static DuplicatesIndex sInstance;
+
+    public static synchronized DuplicatesIndex getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new DuplicatesIndex(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * delete the index with all its records, e.g. when the contacts permission is revoked.
+     */
+    public static synchronized void purge(Context context) {
+        if (sInstance != null) {
+            sInstance.close();
+            sInstance = null;
+        }
+        context.deleteDatabase(DATABASE_NAME);
+    }
+
+    /**
+     * Drops the records of the removed accounts, or the whole index if the accounts can't be
+     * read any more.
+     */
+    public static class AccountsChangedReceiver extends BroadcastReceiver {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            final Context appContext = context.getApplicationContext();
+            final PendingResult result = goAsync();
+            AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (!PermissionsUtil.hasContactsPermissions(appContext)) {
+                            purge(appContext);
+                        } else {
+                            getInstance(appContext).retainAccounts(Arrays.asList(
+                                    AccountManager.get(appContext).getAccounts()));
+                        }
+                    } finally {
+                        result.finish();
+                    }
+                }
+            });
+        }
+    }
+
+    private DuplicatesIndex(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_RAW + " ("
+                + RAW_ID + " INTEGER PRIMARY KEY,"
+                + ACCOUNT_NAME + " TEXT,"
+                + ACCOUNT_TYPE + " TEXT,"
+                + VERSION + " INTEGER,"
+                + CONTACT_ID + " INTEGER,"
+                + PHOTO_ID + " INTEGER,"
+                + NAME + " TEXT,"
+                + PHONES + " TEXT,"
+                + EMAILS + " TEXT,"
+                + KEYS + " TEXT)");
+        db.execSQL("CREATE INDEX raw_records_account ON " + TABLE_RAW + " ("
+                + ACCOUNT_NAME + "," + ACCOUNT_TYPE + ")");
+        db.execSQL("CREATE TABLE " + TABLE_META + " ("
+                + META_KEY + " TEXT PRIMARY KEY,"
+                + META_VALUE + " TEXT)");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // the index is only a cache, rebuild it from scratch.
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_RAW);
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_META);
+        onCreate(db);
+    }
+
+    /**
+     * drop every record if they were built for another country.
+     */
+    public synchronized void checkCountryIso(String countryIso) {
+        SQLiteDatabase db = getWritableDatabase();
+        String stored = null;
+        Cursor cursor = db.query(TABLE_META, new String[]{META_VALUE}, META_KEY + "=?",
+                new String[]{META_COUNTRY_ISO}, null, null, null);
+        try {
+            if (cursor.moveToFirst()) {
+                stored = cursor.getString(0);
+            }
+        } finally {
+            cursor.close();
+        }
+        if (TextUtils.equals(stored, countryIso)) {
+            return;
+        }
+        db.beginTransaction();
+        try {
+            db.delete(TABLE_RAW, null, null);
+            ContentValues values = new ContentValues();
+            values.put(META_KEY, META_COUNTRY_ISO);
+            values.put(META_VALUE, countryIso);
+            db.replace(TABLE_META, null, values);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * forget the records of the accounts not in the given ones.
+     */
+    public synchronized void retainAccounts(Collection<Account> accounts) {
+        HashSet<Account> current = new HashSet<>(accounts);
+        ArrayList<Account> removed = new ArrayList<>();
+        SQLiteDatabase db = getWritableDatabase();
+        Cursor cursor = db.query(true, TABLE_RAW, new String[]{ACCOUNT_NAME, ACCOUNT_TYPE},
+                null, null, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                String name = cursor.getString(0);
+                String type = cursor.getString(1);
+                if (TextUtils.isEmpty(name) || TextUtils.isEmpty(type)) {
+                    // the local account is not known to the account manager.
+                    continue;
+                }
+                Account account = new Account(name, type);
+                if (!current.contains(account)) {
+                    removed.add(account);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        for (Account account : removed) {
+            db.delete(TABLE_RAW, ACCOUNT_SELECTION, new String[]{account.name, account.type});
+        }
+    }
+
+    /**
+     * @return the stored records of the account, keyed by raw contact id.
+     */
+    public synchronized HashMap<Long, DuplicatesFinder.RawRecord> load(Account account) {
+        HashMap<Long, DuplicatesFinder.RawRecord> records = new HashMap<>();
+        Cursor cursor = getReadableDatabase().query(TABLE_RAW, RAW_PROJECTION,
+                ACCOUNT_SELECTION, new String[]{account.name, account.type}, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                DuplicatesFinder.RawRecord record = new DuplicatesFinder.RawRecord();
+                record.rawId = cursor.getLong(0);
+                record.version = cursor.getInt(1);
+                record.contactId = cursor.getLong(2);
+                record.photoId = cursor.getLong(3);
+                record.name = cursor.getString(4);
+                split(cursor.getString(5), record.phones);
+                split(cursor.getString(6), record.emails);
+                split(cursor.getString(7), record.keys);
+                records.put(record.rawId, record);
+            }
+        } finally {
+            cursor.close();
+        }
+        return records;
+    }
+
+    /**
+     * store the refreshed records of the account and forget the removed raw contacts.
+     */
+    public synchronized void update(Account account,
+            Collection<DuplicatesFinder.RawRecord> refreshed, List<Long> removedIds) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (Long rawId : removedIds) {
+                db.delete(TABLE_RAW, RAW_ID + "=?", new String[]{String.valueOf(rawId)});
+            }
+            ContentValues values = new ContentValues();
+            for (DuplicatesFinder.RawRecord record : refreshed) {
+                values.clear();
+                values.put(RAW_ID, record.rawId);
+                values.put(ACCOUNT_NAME, account.name);
+                values.put(ACCOUNT_TYPE, account.type);
+                values.put(VERSION, record.version);
+                values.put(CONTACT_ID, record.contactId);
+                values.put(PHOTO_ID, record.photoId);
+                values.put(NAME, record.name);
+                values.put(PHONES, join(record.phones));
+                values.put(EMAILS, join(record.emails));
+                values.put(KEYS, join(record.keys));
+                db.replace(TABLE_RAW, null, values);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * @return the values in one column, null for no values. Empty and null values are kept.
+     */
+    private static String join(Collection<String> values) {
+        if (values.isEmpty()) {
+            return null;
+        }
+        StringBuilder builder = new StringBuilder();
+        boolean first = true;
+        for (String value : values) {
+            if (!first) {
+                builder.append(SEPARATOR);
+            }
+            first = false;
+            builder.append(value != null ? value : NULL_VALUE);
+        }
+        return builder.toString();
+    }
+
+    private static void split(String joined, Collection<String> out) {
+        if (joined == null) {
+            return;
+        }
+        for (String value : joined.split(SEPARATOR, -1)) {
+            out.add(NULL_VALUE.equals(value) ? null : value);
+        }
+    }
+}
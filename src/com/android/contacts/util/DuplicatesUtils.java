@@ -30,7 +30,6 @@
 package com.android.contacts.util;
 
 import android.accounts.Account;
-import android.app.ProgressDialog;
 import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.ContentValues;
@@ -38,15 +37,14 @@ import android.content.Context;
 import android.content.Entity;
 import android.content.EntityIterator;
 import android.database.Cursor;
+import android.os.CancellationSignal;
 import android.provider.ContactsContract.CommonDataKinds;
-import android.provider.ContactsContract.Contacts;
 import android.provider.ContactsContract.RawContacts;
 import android.provider.ContactsContract.Data;
 import android.provider.ContactsContract.RawContactsEntity;
-import android.telephony.PhoneNumberUtils;
 import android.text.TextUtils;
+import android.util.Log;
 
-import com.android.contacts.common.MoreContactUtils;
 import com.android.contacts.common.SimContactsConstants;
 import com.android.contacts.common.SimContactsOperation;
 
@@ -55,9 +53,17 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class DuplicatesUtils {
 
+    private static final String TAG = "DuplicatesUtils";
+
     public static final HashSet<String> mOtherMimeTypes = new HashSet();
 
     static {
@@ -75,56 +81,11 @@ public class DuplicatesUtils {
 
     private static ArrayList<MergeContacts> mMergeRawContacts;
 
-    private static ProgressDialog mProgressDialog;
-
-    public static boolean mSearchState = false;
+    // upper bound of accounts scanned at the same time.
+    private static final int MAX_SCAN_THREADS = 4;
 
     public static boolean mMergeState = false;
 
-    private static final String[] RAWCONTACTS_NAME_ID_PROJECTION = new String[]{
-            RawContacts.DISPLAY_NAME_PRIMARY, RawContacts._ID};
-
-    private static final String[] CONTACTS_PROJECTION = new String[]{Contacts.LOOKUP_KEY,
-            Contacts.DISPLAY_NAME_PRIMARY};
-
-    /**
-     * get rawContacts with name and ids.
-     *
-     * @return the HashMap with key contact name and value rawContact ids.
-     */
-    public static HashMap<String, List<Long>> getRawNameWithIds(ContentResolver resolver,
-        String[] accountArgs) {
-        HashMap map = new HashMap();
-        String selection = RawContacts.DELETED + "= 0 AND "
-                + SimContactsConstants.ACCOUNT_NAME + "=? " + "AND "
-                + SimContactsConstants.ACCOUNT_TYPE + "=?";
-        Cursor cursor = resolver.query(RawContacts.CONTENT_URI,
-                RAWCONTACTS_NAME_ID_PROJECTION, selection, accountArgs, null);
-        if (cursor == null) {
-            return map;
-        }
-        while (cursor.moveToNext()) {
-            String name = cursor.getString(cursor.getColumnIndex(RawContacts
-                    .DISPLAY_NAME_PRIMARY));
-            long l = cursor.getLong(cursor.getColumnIndex(RawContacts._ID));
-            if (!TextUtils.isEmpty(name)) {
-                name = name.toLowerCase();
-            }
-            List lst = (List) map.get(name);
-            if (lst == null) {
-                lst = new ArrayList();
-                lst.add(Long.valueOf(l));
-                map.put(name, lst);
-            } else {
-                lst.add(Long.valueOf(l));
-            }
-        }
-        if (cursor != null) {
-            cursor.close();
-        }
-        return map;
-    }
-
     public static EntityIterator getEntityByIds(ContentResolver resolver, List<Long> ids) {
         Cursor cursor = resolver.query(RawContactsEntity.CONTENT_URI, null, RawContactsEntity._ID
                     .concat(" IN (" + TextUtils.join(",", ids) + ")"), null,
@@ -147,142 +108,165 @@ public class DuplicatesUtils {
         return iterator;
     }
 
+    /**
+     * Receives the progress of {@link #calculateMergeRawContacts}, from the scanning threads.
+     */
+    public interface ProgressListener {
+        /** @param count the raw contacts checked so far, over all accounts. */
+        void onProgress(int count);
+    }
+
     /**
      * calculate duplicate contacts which will be shown in UI.
-     * @return true if it calculates completely.
+     * each account is scanned by its own task, contacts in different accounts are separated.
+     * @return true if it calculates completely, false if it is cancelled.
      */
-    public static boolean calculateMergeRawContacts(Context context, List<Account> accounts,
-        ContentResolver resolver) {
-        SimContactsOperation simContactsOperation = new SimContactsOperation(context);
-        mMergeRawContacts = new ArrayList<>();
-        int count = 0;
-        // contacts in different accounts are separated.
-        for (int i = 0; i < accounts.size() && mSearchState; i++) {
-            Account account = accounts.get(i);
-            HashMap<String, List<Long>> map = DuplicatesUtils.getRawNameWithIds(resolver,
-                    new String[]{account.name, account.type});
-            if (map != null && map.size() > 0) {
-                ArrayList<ContactsInfo> lst1;
-                Iterator<String> iterator = map.keySet().iterator();
-                while (mSearchState && iterator.hasNext()) {
-                    List<String> mergePhoneList = new ArrayList();
-                    List<String> mergeEmailList = new ArrayList();
-                    long contactId = -1;
-                    lst1 = new ArrayList<>();
-                    String keyName = iterator.next();
-                    List<Long> lst = map.get(keyName);
-                    if (lst.size() >= 2) {
-                        EntityIterator entityIterator = DuplicatesUtils.getEntityByIds(resolver,
-                                lst);
-                        if (entityIterator == null) {
-                            continue;
-                        }
-                        try {
-                            while (entityIterator.hasNext()) {
-                                ArrayList<String> phoneList = new ArrayList<>();
-                                ArrayList<String> emailList = new ArrayList<>();
-                                long photoId = 0;
-                                Entity next1 = entityIterator.next();
-                                ContentValues values = next1.getEntityValues();
-                                Long rawId = values.getAsLong(RawContacts._ID);
-                                String id = values.getAsString(RawContacts.CONTACT_ID);
-                                if (!TextUtils.isEmpty(id)) {
-                                    contactId = Long.parseLong(id);
-                                }
-                                Iterator<Entity.NamedContentValues> namedContentValuesIterator =
-                                        next1.getSubValues().iterator();
-                                while (namedContentValuesIterator.hasNext()) {
-                                    ContentValues values1 = namedContentValuesIterator
-                                            .next().values;
-                                    String mimeType = values1.getAsString(Data.MIMETYPE);
-                                    if (CommonDataKinds.StructuredName
-                                            .CONTENT_ITEM_TYPE.equals(mimeType)) {
-                                        continue;
-                                    }
-                                    if (CommonDataKinds.Photo.CONTENT_ITEM_TYPE
-                                            .equals(mimeType)) {
-                                        photoId = values1.getAsLong(CommonDataKinds.Photo._ID)
-                                                .longValue();
-                                        continue;
-                                    }
-                                    if (CommonDataKinds.Phone.CONTENT_ITEM_TYPE.equals(mimeType)) {
-                                        String data1 = values1
-                                                .getAsString(CommonDataKinds.Phone.DATA1);
-                                        phoneList.add(data1);
-                                        if (!TextUtils.isEmpty(data1)
-                                                && !mergePhoneList.contains(data1)) {
-                                            boolean contains = false;
-                                            for (int j = 0; j < mergePhoneList.size(); j++) {
-                                                if (PhoneNumberUtils.compare(data1,
-                                                        mergePhoneList.get(j))) {
-                                                    contains = true;
-                                                    break;
-                                                }
-                                            }
-                                            if (!contains) {
-                                                mergePhoneList.add(data1);
-                                            }
-                                            continue;
-                                        }
-                                    }
-                                    if (CommonDataKinds.Email.CONTENT_ITEM_TYPE.equals(mimeType)) {
-                                        String email = values1
-                                                .getAsString(CommonDataKinds.Email.DATA1);
-                                        emailList.add(email);
-                                        if (!mergeEmailList.contains(email)) {
-                                            mergeEmailList.add(email);
-                                        }
-                                        continue;
-                                    }
-                                }
-                                Cursor cursor = resolver.query(Contacts.CONTENT_URI,
-                                        CONTACTS_PROJECTION, Contacts._ID.concat(" = ?"),
-                                        new String[]{String.valueOf(contactId)}, null);
-
-                                if (cursor != null && cursor.moveToNext()) {
-                                    String lookUp = cursor.getString(cursor
-                                            .getColumnIndex(Contacts.LOOKUP_KEY));
-                                    String displayName = cursor.getString(cursor.getColumnIndex(
-                                            Contacts.DISPLAY_NAME_PRIMARY));
-                                    lst1.add(new ContactsInfo(contactId, lookUp, photoId,
-                                            displayName, phoneList, emailList, rawId));
-                                    cursor.close();
-                                }
-                            }
-                        } finally {
-                            if (entityIterator != null) {
-                                entityIterator.close();
-                            }
-                        }
-                        // for sim contacts, analyse if it can be merged.
-                        if (contactId != -1
-                                && account.type.equals(SimContactsConstants.ACCOUNT_TYPE_SIM)) {
-                            int subscription = simContactsOperation.getSimSubscription(contactId);
-                            int oneSimAnrCount = MoreContactUtils.getOneSimAnrCount(
-                                    context, subscription);
-                            int oneSimEmailCount = MoreContactUtils
-                                    .getOneSimEmailCount(context, subscription);
-                            if (mergePhoneList.size() > oneSimAnrCount + 1
-                                    || mergeEmailList.size() > oneSimEmailCount) {
-                                continue;
-                            }
+    public static boolean calculateMergeRawContacts(final Context context,
+            List<Account> accounts, final CancellationSignal signal,
+            final ProgressListener progressListener) {
+        final DuplicatesFinder finder = new DuplicatesFinder(context);
+        final AtomicInteger progress = new AtomicInteger();
+        ArrayList<Callable<ArrayList<MergeContacts>>> tasks = new ArrayList<>();
+        for (final Account account : accounts) {
+            if (account == null) {
+                continue;
+            }
+            tasks.add(new Callable<ArrayList<MergeContacts>>() {
+                @Override
+                public ArrayList<MergeContacts> call() {
+                    return scanAccount(context, finder, account, signal, progress,
+                            progressListener);
+                }
+            });
+        }
+        if (tasks.isEmpty()) {
+            mMergeRawContacts = new ArrayList<>();
+            return !signal.isCanceled();
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.min(tasks.size(), MAX_SCAN_THREADS));
+        ArrayList<MergeContacts> mergeRawContacts = new ArrayList<>();
+        try {
+            // results are merged in the order of the accounts.
+            for (Future<ArrayList<MergeContacts>> future : executor.invokeAll(tasks)) {
+                ArrayList<MergeContacts> result;
+                try {
+                    result = future.get();
+                } catch (ExecutionException e) {
+                    // the other accounts are still shown.
+                    Log.e(TAG, "Failed to search duplicated contacts of an account",
+                            e.getCause());
+                    continue;
+                }
+                if (result == null) {
+                    return false;
+                }
+                mergeRawContacts.addAll(result);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            executor.shutdownNow();
+        }
+        if (signal.isCanceled()) {
+            return false;
+        }
+        mMergeRawContacts = mergeRawContacts;
+        return true;
+    }
+
+    /**
+     * @return the merge sets found in the account, or null if cancelled.
+     */
+    private static ArrayList<MergeContacts> scanAccount(final Context context,
+            final DuplicatesFinder finder, Account account, CancellationSignal signal,
+            final AtomicInteger progress, final ProgressListener progressListener) {
+        final ArrayList<MergeContacts> result = new ArrayList<>();
+        final SimContactsOperation simContactsOperation = new SimContactsOperation(context);
+        final boolean isSimAccount = SimContactsConstants.ACCOUNT_TYPE_SIM.equals(account.type);
+        boolean complete = finder.scanAccount(account, new DuplicatesFinder.Listener() {
+            // the subscription is the same for every contact of one sim account.
+            private int mSubscription = -1;
+            private int mScanned = 0;
+
+            @Override
+            public void onMergeContactsFound(MergeContacts mergeContacts) {
+                // for sim contacts, analyse if it can be merged.
+                if (isSimAccount) {
+                    try {
+                        if (mSubscription == -1) {
+                            mSubscription = simContactsOperation.getSimSubscription(
+                                    mergeContacts.getContacts().get(0).getContactId());
                         }
-                        if (mMergeRawContacts != null) {
-                            mMergeRawContacts.add(
-                                new MergeContacts(account.name, account.type, lst1));
+                        if (!fitsInSim(context, mergeContacts, mSubscription)) {
+                            return;
                         }
+                    } catch (RuntimeException e) {
+                        Log.e(TAG, "Skip a duplicated set that can't be checked", e);
+                        return;
                     }
-                    count += lst.size();
-                    mProgressDialog.setProgress(count);
                 }
+                result.add(mergeContacts);
             }
+
+            @Override
+            public void onRawContactScanned(int scannedCount) {
+                int total = progress.addAndGet(scannedCount - mScanned);
+                mScanned = scannedCount;
+                if (progressListener != null) {
+                    progressListener.onProgress(total);
+                }
+            }
+        }, signal);
+        return complete ? result : null;
+    }
+
+    /**
+     * whether the merged numbers and emails of the set fit in one sim record.
+     */
+    private static boolean fitsInSim(Context context, MergeContacts mergeContacts,
+            int subscription) {
+        SimCapacityCache.Capacity capacity =
+                SimCapacityCache.getInstance(context).get(subscription);
+        return mergeContacts.getPhoneCount() <= capacity.anrCount + 1
+                && mergeContacts.getEmailCount() <= capacity.emailCount;
+    }
+
+    /**
+     * load the numbers and emails of the raw contacts of one set, for the merge preview.
+     * @return map from raw contact id to its details.
+     */
+    public static HashMap<Long, ContactsDetails> loadDetails(ContentResolver resolver,
+            List<Long> rawIds) {
+        HashMap<Long, ContactsDetails> details = new HashMap<>();
+        EntityIterator entityIterator = getEntityByIds(resolver, rawIds);
+        if (entityIterator == null) {
+            return details;
         }
-        if (mSearchState) {
-            // search ended, change the flag.
-            mSearchState = false;
-            return true;
+        try {
+            while (entityIterator.hasNext()) {
+                Entity entity = entityIterator.next();
+                ContactsDetails contactsDetails = new ContactsDetails();
+                for (Entity.NamedContentValues namedValues : entity.getSubValues()) {
+                    ContentValues values = namedValues.values;
+                    String mimeType = values.getAsString(Data.MIMETYPE);
+                    if (CommonDataKinds.Phone.CONTENT_ITEM_TYPE.equals(mimeType)) {
+                        contactsDetails.mPhones.add(
+                                values.getAsString(CommonDataKinds.Phone.NUMBER));
+                    } else if (CommonDataKinds.Email.CONTENT_ITEM_TYPE.equals(mimeType)) {
+                        contactsDetails.mEmails.add(
+                                values.getAsString(CommonDataKinds.Email.ADDRESS));
+                    }
+                }
+                details.put(entity.getEntityValues().getAsLong(RawContacts._ID),
+                        contactsDetails);
+            }
+        } finally {
+            entityIterator.close();
         }
-        return false;
+        return details;
     }
 
     private static void addData(HashMap<String, List<String>> map, String key, String value) {
@@ -327,11 +311,13 @@ public class DuplicatesUtils {
 
     /**
      * compare the differences among rawContacts with rawContact ids.
+     * @param numberIndex reused to compare the phone numbers, its content is replaced.
      */
     public static ArrayList<ContentProviderOperation> diffRawEntity(boolean isSimAccount,
         ContentResolver resolver, long sourceId, HashMap<String, List<String>> hashMap,
-        ArrayList<Long> rawIds) {
+        ArrayList<Long> rawIds, PhoneNumberKeyIndex numberIndex) {
         ArrayList<ContentProviderOperation> dataInsertOps = new ArrayList<>();
+        PhoneNumberKeyIndex sourceNumbers = null;
         EntityIterator entityIterator = null;
         try {
             entityIterator = getEntityByIds(resolver, rawIds);
@@ -359,22 +345,21 @@ public class DuplicatesUtils {
                     } else if (CommonDataKinds.Phone.CONTENT_ITEM_TYPE
                             .equals(mimeType)) {
                         isNumber = true;
-                        List<String> numberList = hashMap.get(mimeType);
-                        // if the mimeType has not been saved in the hashMap, init the list.
-                        if (numberList == null) {
-                            numberList = new ArrayList<>();
+                        if (sourceNumbers == null) {
+                            // index the numbers of the source once per set.
+                            sourceNumbers = numberIndex;
+                            sourceNumbers.clear();
+                            List<String> numberList = hashMap.get(mimeType);
+                            if (numberList != null) {
+                                for (String number : numberList) {
+                                    sourceNumbers.add(number);
+                                }
+                            }
                         }
                         String data1 = values.getAsString(Data.DATA1);
                         // for numbers, it may have some different formats.
-                        // compare the numbers if it has already been added in the list.
-                        boolean containsNumber = false;
-                        for (int i = 0; i < numberList.size(); i++) {
-                            if (PhoneNumberUtils.compare(data1, numberList.get(i))) {
-                                containsNumber = true;
-                                break;
-                            }
-                        }
-                        if (!containsNumber) {
+                        // compare the keys of the numbers already added in the list.
+                        if (sourceNumbers.add(data1)) {
                             addData(hashMap, mimeType, data1);
                             List<String> list = hashMap.get(mimeType);
                             if (isSimAccount && list == null) {
@@ -443,17 +428,24 @@ public class DuplicatesUtils {
         return ContentProviderOperation.newInsert(Data.CONTENT_URI).withValues(values).build();
     }
 
+    /**
+     * one raw contact of a duplicated set, only what the preview shows without loading.
+     */
     public static class ContactsInfo {
-        private List<String> mEmails;
         private String mName;
-        private List<String> mPhones;
         private long mPhotoId;
         private long mRawContactId;
         private long mContactId;
         private String mLookUp;
+        private float mSimilarity;
 
         public ContactsInfo(long contactId, String lookUp, long photoId, String name,
-                List<String> phones, List<String> emails, long rawId) {
+                long rawId) {
+            this(contactId, lookUp, photoId, name, rawId, 1f);
+        }
+
+        public ContactsInfo(long contactId, String lookUp, long photoId, String name,
+                long rawId, float similarity) {
             this.mContactId = contactId;
             this.mLookUp = lookUp;
             this.mPhotoId = photoId;
@@ -461,27 +453,18 @@ public class DuplicatesUtils {
                 name = "";
             }
             this.mName = name;
-            this.mPhones = phones;
-            this.mEmails = emails;
             this.mRawContactId = rawId;
+            this.mSimilarity = similarity;
         }
 
         public String getLookUp() {
             return mLookUp;
         }
 
-        public List<String> getEmails() {
-            return mEmails;
-        }
-
         public String getName() {
             return mName;
         }
 
-        public List<String> getPhones() {
-            return mPhones;
-        }
-
         public long getPhotoId() {
             return mPhotoId;
         }
@@ -494,6 +477,29 @@ public class DuplicatesUtils {
             return mContactId;
         }
 
+        /**
+         * @return how close this contact is to the first one of its set, from 0 to 1.
+         */
+        public float getSimilarity() {
+            return mSimilarity;
+        }
+
+    }
+
+    /**
+     * the numbers and emails of one raw contact, loaded when its set is shown.
+     */
+    public static class ContactsDetails {
+        private final List<String> mPhones = new ArrayList<>();
+        private final List<String> mEmails = new ArrayList<>();
+
+        public List<String> getPhones() {
+            return mPhones;
+        }
+
+        public List<String> getEmails() {
+            return mEmails;
+        }
     }
 
     public static class MergeContacts {
@@ -501,6 +507,8 @@ public class DuplicatesUtils {
         private ArrayList<ContactsInfo> mContacts;
         private String mAccountName;
         private String mAccountType;
+        private int mPhoneCount;
+        private int mEmailCount;
 
         public MergeContacts(String accountName, String accountType,
             ArrayList<ContactsInfo> ContactList) {
@@ -529,16 +537,39 @@ public class DuplicatesUtils {
         public void setChecked(boolean checked) {
             mChecked = checked;
         }
+
+        /**
+         * set the number of distinct phone numbers and emails of the whole set.
+         */
+        public void setDataCounts(int phoneCount, int emailCount) {
+            mPhoneCount = phoneCount;
+            mEmailCount = emailCount;
+        }
+
+        public int getPhoneCount() {
+            return mPhoneCount;
+        }
+
+        public int getEmailCount() {
+            return mEmailCount;
+        }
+
+        /**
+         * @return the raw contact ids of the set.
+         */
+        public ArrayList<Long> getRawContactIds() {
+            ArrayList<Long> rawIds = new ArrayList<>(mContacts.size());
+            for (ContactsInfo info : mContacts) {
+                rawIds.add(info.getRawContactId());
+            }
+            return rawIds;
+        }
     }
 
     public static ArrayList<MergeContacts> getMergeRawContacts() {
         return mMergeRawContacts;
     }
 
-    public static void setDialog(ProgressDialog dialog) {
-        mProgressDialog = dialog;
-    }
-
     public static void clearMergeRawContacts() {
         mMergeRawContacts = null;
     }
@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.contacts.util;
+
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.os.Bundle;
+
+/**
+ * Shows some rows of a cursor, e.g. the rows of a search result still matching a longer query.
+ * The wrapped cursor is not closed with this one, it belongs to the caller.
+ */
+public class FilteredCursor extends CursorWrapper {
+
+    private final int[] mPositions;
+    private int mPosition = -1;
+    private boolean mClosed;
+
+    /**
+     * @param positions the rows of the cursor to show, in order.
+     */
+    public FilteredCursor(Cursor cursor, int[] positions) {
+        super(cursor);
+        mPositions = positions;
+    }
+
+    @Override
+    public int getCount() {
+        return mPositions.length;
+    }
+
+    @Override
+    public int getPosition() {
+        return mPosition;
+    }
+
+    @Override
+    public boolean moveToPosition(int position) {
+        if (position < 0) {
+            mPosition = -1;
+            return false;
+        }
+        if (position >= mPositions.length) {
+            mPosition = mPositions.length;
+            return false;
+        }
+        mPosition = position;
+        return super.moveToPosition(mPositions[position]);
+    }
+
+    @Override
+    public boolean move(int offset) {
+        return moveToPosition(mPosition + offset);
+    }
+
+    @Override
+    public boolean moveToFirst() {
+        return moveToPosition(0);
+    }
+
+    @Override
+    public boolean moveToLast() {
+        return moveToPosition(mPositions.length - 1);
+    }
+
+    @Override
+    public boolean moveToNext() {
+        return moveToPosition(mPosition + 1);
+    }
+
+    @Override
+    public boolean moveToPrevious() {
+        return moveToPosition(mPosition - 1);
+    }
+
+    @Override
+    public boolean isFirst() {
+        return mPositions.length != 0 && mPosition == 0;
+    }
+
+    @Override
+    public boolean isLast() {
+        return mPositions.length != 0 && mPosition == mPositions.length - 1;
+    }
+
+    @Override
+    public boolean isBeforeFirst() {
+        return mPositions.length == 0 || mPosition == -1;
+    }
+
+    @Override
+    public boolean isAfterLast() {
+        return mPositions.length == 0 || mPosition == mPositions.length;
+    }
+
+    @Override
+    public Bundle getExtras() {
+        // the section counts of the wrapped cursor do not apply to the rows shown.
+        return Bundle.EMPTY;
+    }
+
+    @Override
+    public void close() {
+        mClosed = true;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return mClosed || super.isClosed();
+    }
+}
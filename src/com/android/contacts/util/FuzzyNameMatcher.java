@@ -0,0 +1,240 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.contacts.util;
+
+import android.text.TextUtils;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * Name matcher tier of {@link DuplicatesFinder}.
+ *
+ * Names are normalized by stripping diacritics and punctuation, then split into the surname,
+ * the last word or the part before a comma, and the given names. Common nicknames are replaced
+ * by the full given name and the given names are sorted, so "José  Smith" and "Smith, Jose"
+ * share the same exact key. Names with the same surname are compared with a bounded edit
+ * distance on their given names, the surname itself must be equal.
+ */
+public class FuzzyNameMatcher implements DuplicatesFinder.Matcher {
+
+    // given names are considered the same above this similarity, one edit needs 7 letters.
+    private static final float MATCH_THRESHOLD = 0.85f;
+    // upper bound of edits between two matching given names.
+    private static final int MAX_DISTANCE = 2;
+
+    private static final Pattern COMBINING_MARKS = Pattern.compile("\\p{M}+");
+    private static final Pattern SEPARATORS = Pattern.compile("[\\s\\p{P}]+");
+    // separates the surname from the given names in a normalized name, it is never part of
+    // a word.
+    private static final String SURNAME_SEPARATOR = ",";
+
+    private static final HashSet<String> SUFFIXES = new HashSet<>(
+            Arrays.asList("jr", "sr", "ii", "iii", "iv"));
+
+    private static final HashMap<String, String> NICKNAMES = new HashMap<>();
+
+    static {
+        addNicknames("alexander", "alex", "sasha");
+        addNicknames("andrew", "andy", "drew");
+        addNicknames("anthony", "tony");
+        addNicknames("benjamin", "ben", "benny");
+        addNicknames("catherine", "cathy", "kate", "katie", "kathy");
+        addNicknames("charles", "charlie", "chuck");
+        addNicknames("christopher", "chris");
+        addNicknames("daniel", "dan", "danny");
+        addNicknames("david", "dave");
+        addNicknames("edward", "ed", "eddie", "ted");
+        addNicknames("elizabeth", "liz", "beth", "betty", "lizzie");
+        addNicknames("james", "jim", "jimmy");
+        addNicknames("jennifer", "jen", "jenny");
+        addNicknames("john", "johnny", "jack");
+        addNicknames("joseph", "joe", "joey");
+        addNicknames("margaret", "maggie", "meg", "peggy");
+        addNicknames("matthew", "matt");
+        addNicknames("michael", "mike", "mikey");
+        addNicknames("nicholas", "nick", "nicky");
+        addNicknames("patricia", "pat", "patty", "trish");
+        addNicknames("richard", "rick", "dick", "rich");
+        addNicknames("robert", "rob", "bob", "bobby");
+        addNicknames("samuel", "sam");
+        addNicknames("stephen", "steve", "steven");
+        addNicknames("thomas", "tom", "tommy");
+        addNicknames("william", "will", "bill", "billy");
+    }
+
+    private static void addNicknames(String name, String... nicknames) {
+        for (String nickname : nicknames) {
+            NICKNAMES.put(nickname, name);
+        }
+    }
+
+    /**
+     * @return "surname,given names", or null if the name has no words.
+     */
+    @Override
+    public String normalize(String name) {
+        if (TextUtils.isEmpty(name)) {
+            return null;
+        }
+        String stripped = COMBINING_MARKS.matcher(
+                Normalizer.normalize(name, Normalizer.Form.NFD)).replaceAll("")
+                .toLowerCase(Locale.getDefault());
+        ArrayList<String> given = new ArrayList<>();
+        String surname;
+        int comma = stripped.indexOf(',');
+        if (comma >= 0) {
+            // "Smith, John"
+            ArrayList<String> family = words(stripped.substring(0, comma));
+            given = words(stripped.substring(comma + 1));
+            if (family.isEmpty()) {
+                return given.isEmpty() ? null : join(given.remove(given.size() - 1), given);
+            }
+            surname = TextUtils.join(" ", family);
+        } else {
+            ArrayList<String> all = words(stripped);
+            if (all.isEmpty()) {
+                return null;
+            }
+            surname = all.remove(all.size() - 1);
+            given = all;
+        }
+        return join(surname, given);
+    }
+
+    private static ArrayList<String> words(String text) {
+        ArrayList<String> words = new ArrayList<>();
+        for (String token : SEPARATORS.split(text.trim())) {
+            if (!token.isEmpty()) {
+                words.add(token);
+            }
+        }
+        // "John Smith Jr." keeps Smith as its surname.
+        while (words.size() > 1 && SUFFIXES.contains(words.get(words.size() - 1))) {
+            words.remove(words.size() - 1);
+        }
+        return words;
+    }
+
+    private static String join(String surname, ArrayList<String> given) {
+        // nicknames are only given names, "Drew" stays a surname.
+        for (int i = 0; i < given.size(); i++) {
+            String fullName = NICKNAMES.get(given.get(i));
+            if (fullName != null) {
+                given.set(i, fullName);
+            }
+        }
+        Collections.sort(given);
+        return surname + SURNAME_SEPARATOR + TextUtils.join(" ", given);
+    }
+
+    /**
+     * Names are only compared with the names of the same surname, whatever their initials.
+     */
+    @Override
+    public String blockKey(String normalizedName) {
+        return normalizedName.substring(0, normalizedName.indexOf(SURNAME_SEPARATOR));
+    }
+
+    @Override
+    public float similarity(String lhs, String rhs) {
+        if (lhs.equals(rhs)) {
+            return 1f;
+        }
+        int lhsSeparator = lhs.indexOf(SURNAME_SEPARATOR);
+        int rhsSeparator = rhs.indexOf(SURNAME_SEPARATOR);
+        if (lhsSeparator != rhsSeparator || !lhs.regionMatches(0, rhs, 0, lhsSeparator)) {
+            // different surnames are different people.
+            return 0f;
+        }
+        String lhsGiven = lhs.substring(lhsSeparator + 1);
+        String rhsGiven = rhs.substring(rhsSeparator + 1);
+        if (lhsGiven.isEmpty() || rhsGiven.isEmpty()) {
+            return 0f;
+        }
+        int maxLength = Math.max(lhsGiven.length(), rhsGiven.length());
+        int distance = boundedDistance(lhsGiven, rhsGiven, MAX_DISTANCE);
+        if (distance < 0) {
+            return 0f;
+        }
+        return 1f - (float) distance / maxLength;
+    }
+
+    @Override
+    public boolean isMatch(float similarity) {
+        return similarity >= MATCH_THRESHOLD;
+    }
+
+    /**
+     * Levenshtein distance limited to a band of width {@code max} around the diagonal.
+     *
+     * @return the distance, or -1 if it is greater than {@code max}.
+     */
+    static int boundedDistance(String lhs, String rhs, int max) {
+        int n = lhs.length();
+        int m = rhs.length();
+        if (Math.abs(n - m) > max) {
+            return -1;
+        }
+        final int infinity = max + 1;
+        int[] previous = new int[m + 1];
+        int[] current = new int[m + 1];
+        for (int j = 0; j <= m; j++) {
+            previous[j] = j <= max ? j : infinity;
+        }
+        for (int i = 1; i <= n; i++) {
+            int from = Math.max(1, i - max);
+            int to = Math.min(m, i + max);
+            Arrays.fill(current, infinity);
+            current[0] = i <= max ? i : infinity;
+            int rowMin = current[0];
+            for (int j = from; j <= to; j++) {
+                int cost = lhs.charAt(i - 1) == rhs.charAt(j - 1) ? 0 : 1;
+                int value = Math.min(previous[j - 1] + cost,
+                        Math.min(previous[j] + 1, current[j - 1] + 1));
+                current[j] = Math.min(value, infinity);
+                rowMin = Math.min(rowMin, current[j]);
+            }
+            if (rowMin > max) {
+                return -1;
+            }
+            int[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+        return previous[m] <= max ? previous[m] : -1;
+    }
+}
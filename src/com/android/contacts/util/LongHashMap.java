@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.contacts.util;
+
+import java.util.Arrays;
+
+/**
+ * A map of non negative longs to values that keeps the order the keys were put in, without
+ * boxing. The keys and values are held in parallel arrays in that order, found through an
+ * open addressing table of their positions. Not thread safe.
+ */
+public class LongHashMap<V> {
+    // marks a removed entry, keys are never negative.
+    private static final long EMPTY = -1;
+    private static final int MIN_CAPACITY = 16;
+
+    // the entries in the order they were put, removed ones until the arrays are compacted.
+    private long[] mKeys;
+    private Object[] mValues;
+    private int mEnd;
+    private int mSize;
+    // the positions in mKeys plus one, 0 marks a free slot. Twice as long as mKeys, so that
+    // the load stays under 1/2.
+    private int[] mTable;
+
+    public LongHashMap() {
+        mKeys = new long[MIN_CAPACITY];
+        mValues = new Object[MIN_CAPACITY];
+        mTable = new int[MIN_CAPACITY * 2];
+    }
+
+    public LongHashMap(LongHashMap<V> other) {
+        mKeys = other.mKeys.clone();
+        mValues = other.mValues.clone();
+        mEnd = other.mEnd;
+        mSize = other.mSize;
+        mTable = other.mTable.clone();
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    public boolean containsKey(long key) {
+        // a negative key would match the removed entries.
+        return key >= 0 && mTable[indexOf(key)] != 0;
+    }
+
+    /**
+     * @return the value of the key, or null if it is not in the map.
+     */
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        if (key < 0) {
+            return null;
+        }
+        final int position = mTable[indexOf(key)];
+        return position == 0 ? null : (V) mValues[position - 1];
+    }
+
+    /**
+     * Sets the value of the key. A key already in the map keeps its place in the order.
+     *
+     * @return true if the key was not in the map.
+     */
+    public boolean put(long key, V value) {
+        if (key < 0) {
+            throw new IllegalArgumentException("Negative key " + key);
+        }
+        int index = indexOf(key);
+        if (mTable[index] != 0) {
+            mValues[mTable[index] - 1] = value;
+            return false;
+        }
+        if (mEnd == mKeys.length) {
+            // compact the arrays if half of the entries were removed, grow them otherwise.
+            resize(mSize * 2 > mEnd ? mKeys.length * 2 : mKeys.length);
+            index = indexOf(key);
+        }
+        mKeys[mEnd] = key;
+        mValues[mEnd] = value;
+        mEnd++;
+        mTable[index] = mEnd;
+        mSize++;
+        return true;
+    }
+
+    /**
+     * @return true if the key was in the map.
+     */
+    public boolean remove(long key) {
+        if (key < 0) {
+            return false;
+        }
+        final int index = indexOf(key);
+        final int position = mTable[index];
+        if (position == 0) {
+            return false;
+        }
+        mKeys[position - 1] = EMPTY;
+        mValues[position - 1] = null;
+        mTable[index] = 0;
+        mSize--;
+        // move back the entries of the same probe run that follow the removed one.
+        final int mask = mTable.length - 1;
+        int next = (index + 1) & mask;
+        while (mTable[next] != 0) {
+            final int moved = mTable[next];
+            mTable[next] = 0;
+            mTable[indexOf(mKeys[moved - 1])] = moved;
+            next = (next + 1) & mask;
+        }
+        return true;
+    }
+
+    public void clear() {
+        if (mKeys.length > MIN_CAPACITY) {
+            mKeys = new long[MIN_CAPACITY];
+            mValues = new Object[MIN_CAPACITY];
+            mTable = new int[MIN_CAPACITY * 2];
+        } else {
+            Arrays.fill(mValues, null);
+            Arrays.fill(mTable, 0);
+        }
+        mEnd = 0;
+        mSize = 0;
+    }
+
+    /**
+     * @return the keys, in the order they were put.
+     */
+    public long[] keys() {
+        final long[] keys = new long[mSize];
+        int i = 0;
+        for (int position = 0; position < mEnd; position++) {
+            if (mKeys[position] != EMPTY) {
+                keys[i++] = mKeys[position];
+            }
+        }
+        return keys;
+    }
+
+    private void resize(int capacity) {
+        final long[] keys = new long[capacity];
+        final Object[] values = new Object[capacity];
+        int end = 0;
+        for (int position = 0; position < mEnd; position++) {
+            if (mKeys[position] != EMPTY) {
+                keys[end] = mKeys[position];
+                values[end] = mValues[position];
+                end++;
+            }
+        }
+        mKeys = keys;
+        mValues = values;
+        mEnd = end;
+        mTable = new int[capacity * 2];
+        for (int position = 0; position < end; position++) {
+            mTable[indexOf(keys[position])] = position + 1;
+        }
+    }
+
+    // index of the slot of the key, or of the free slot where it would go.
+    private int indexOf(long key) {
+        final int mask = mTable.length - 1;
+        int index = hash(key) & mask;
+        while (mTable[index] != 0 && mKeys[mTable[index] - 1] != key) {
+            index = (index + 1) & mask;
+        }
+        return index;
+    }
+
+    private static int hash(long value) {
+        int h = (int) (value ^ (value >>> 32));
+        // spread the consecutive ids of the provider over the table.
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
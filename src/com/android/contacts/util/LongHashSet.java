@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.contacts.util;
+
+import java.util.Arrays;
+
+/**
+ * A set of non negative longs in a single open addressing table, without boxing. Not thread
+ * safe.
+ */
+public class LongHashSet {
+    // marks a free slot, ids are never negative.
+    private static final long EMPTY = -1;
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] mTable;
+    private int mSize;
+
+    public LongHashSet() {
+        mTable = newTable(MIN_CAPACITY);
+    }
+
+    public LongHashSet(LongHashSet other) {
+        mTable = other.mTable.clone();
+        mSize = other.mSize;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    public boolean contains(long value) {
+        // a negative value would match the free slots.
+        return value >= 0 && mTable[indexOf(mTable, value)] == value;
+    }
+
+    /**
+     * @return true if the value was not in the set.
+     */
+    public boolean add(long value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Negative value " + value);
+        }
+        int index = indexOf(mTable, value);
+        if (mTable[index] == value) {
+            return false;
+        }
+        mTable[index] = value;
+        mSize++;
+        // keep the load under 1/2.
+        if (mSize * 2 > mTable.length) {
+            rehash(mTable.length * 2);
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the value was in the set.
+     */
+    public boolean remove(long value) {
+        if (value < 0) {
+            return false;
+        }
+        int index = indexOf(mTable, value);
+        if (mTable[index] != value) {
+            return false;
+        }
+        mTable[index] = EMPTY;
+        mSize--;
+        // move back the values of the same probe run that follow the removed one.
+        final int mask = mTable.length - 1;
+        int next = (index + 1) & mask;
+        while (mTable[next] != EMPTY) {
+            final long moved = mTable[next];
+            mTable[next] = EMPTY;
+            mTable[indexOf(mTable, moved)] = moved;
+            next = (next + 1) & mask;
+        }
+        return true;
+    }
+
+    public void clear() {
+        if (mTable.length > MIN_CAPACITY) {
+            mTable = newTable(MIN_CAPACITY);
+        } else {
+            Arrays.fill(mTable, EMPTY);
+        }
+        mSize = 0;
+    }
+
+    /**
+     * @return the values, in no particular order.
+     */
+    public long[] toArray() {
+        final long[] values = new long[mSize];
+        int i = 0;
+        for (long value : mTable) {
+            if (value != EMPTY) {
+                values[i++] = value;
+            }
+        }
+        return values;
+    }
+
+    private void rehash(int capacity) {
+        final long[] table = newTable(capacity);
+        for (long value : mTable) {
+            if (value != EMPTY) {
+                table[indexOf(table, value)] = value;
+            }
+        }
+        mTable = table;
+    }
+
+    // index of the value, or of the free slot where it would go.
+    private static int indexOf(long[] table, long value) {
+        final int mask = table.length - 1;
+        int index = hash(value) & mask;
+        while (table[index] != EMPTY && table[index] != value) {
+            index = (index + 1) & mask;
+        }
+        return index;
+    }
+
+    private static int hash(long value) {
+        int h = (int) (value ^ (value >>> 32));
+        // spread the consecutive ids of the provider over the table.
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static long[] newTable(int capacity) {
+        final long[] table = new long[capacity];
+        Arrays.fill(table, EMPTY);
+        return table;
+    }
+}
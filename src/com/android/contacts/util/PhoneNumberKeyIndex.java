@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.contacts.util;
+
+import android.telephony.PhoneNumberUtils;
+import android.text.TextUtils;
+
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Set of phone numbers compared by equivalence rather than by their formatting.
+ *
+ * Each number is canonicalized once into a key, its caller id min-match, the same key the
+ * provider looks phone numbers up by. Every number gets the same kind of key, so that a
+ * number with and without its country or area code, which {@link PhoneNumberUtils#compare}
+ * finds equal, also gets the same key. Membership checks are then hash lookups instead of
+ * pairwise compare calls. Not thread safe.
+ */
+public class PhoneNumberKeyIndex {
+
+    // keys already computed, kept across clear().
+    private final HashMap<String, String> mKeyCache = new HashMap<>();
+    private final HashSet<String> mKeys = new HashSet<>();
+
+    /**
+     * @return the equivalence key of the number, or null if it has no digits.
+     */
+    public static String toKey(String number) {
+        if (TextUtils.isEmpty(number)) {
+            return null;
+        }
+        String normalized = PhoneNumberUtils.normalizeNumber(number);
+        if (TextUtils.isEmpty(normalized)) {
+            return null;
+        }
+        return PhoneNumberUtils.toCallerIDMinMatch(normalized);
+    }
+
+    /**
+     * @return the equivalence key of the number, computed once per distinct string. Numbers
+     * without digits are their own key.
+     */
+    public String keyOf(String number) {
+        if (number == null) {
+            return null;
+        }
+        String key = mKeyCache.get(number);
+        if (key == null) {
+            key = toKey(number);
+            if (key == null) {
+                key = number;
+            }
+            mKeyCache.put(number, key);
+        }
+        return key;
+    }
+    /**
+     * @return true if no equivalent number was in the set.
+     */
+    public boolean add(String number) {
+        String key = keyOf(number);
+        return key != null && mKeys.add(key);
+    }
+
+    public boolean contains(String number) {
+        String key = keyOf(number);
+        return key != null && mKeys.contains(key);
+    }
+
+    public int size() {
+        return mKeys.size();
+    }
+
+    /**
+     * empty the set, the computed keys are kept for the next use.
+     */
+    public void clear() {
+        mKeys.clear();
+    }
+}
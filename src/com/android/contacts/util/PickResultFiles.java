@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.contacts.util;
+
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.support.v4.content.FileProvider;
+
+import com.android.contacts.R;
+
+import java.io.File;
+
+/**
+ * The files in the cache that large results of the multi picker are returned in, through
+ * the file provider. A file is kept for {@link #MAX_AGE_MILLIS} for the caller to read it,
+ * then deleted by a job scheduled when it is created.
+ */
+public class PickResultFiles {
+    private static final String DIR_NAME = "pick_results";
+    // the callers have read their result by then.
+    private static final long MAX_AGE_MILLIS = 60 * 60 * 1000;
+    private static final int CLEANUP_JOB_ID = 1;
+
+    /**
+     * @return a new file to write a result in. Call on a background thread.
+     */
+    public static File create(Context context, String extension) {
+        deleteExpired(context);
+        final File dir = new File(context.getCacheDir(), DIR_NAME);
+        dir.mkdirs();
+        scheduleCleanup(context);
+        return new File(dir, "contacts-" + System.currentTimeMillis() + extension);
+    }
+
+    public static Uri getUri(Context context, File file) {
+        return FileProvider.getUriForFile(context,
+                context.getString(R.string.contacts_file_provider_authority), file);
+    }
+
+    /**
+     * Deletes the files older than {@link #MAX_AGE_MILLIS}.
+     *
+     * @return true if newer files are left.
+     */
+    static boolean deleteExpired(Context context) {
+        final File[] files = new File(context.getCacheDir(), DIR_NAME).listFiles();
+        if (files == null) {
+            return false;
+        }
+        final long now = System.currentTimeMillis();
+        boolean left = false;
+        for (File file : files) {
+            if (now - file.lastModified() > MAX_AGE_MILLIS) {
+                file.delete();
+            } else {
+                left = true;
+            }
+        }
+        return left;
+    }
+
+    private static void scheduleCleanup(Context context) {
+        final JobScheduler scheduler =
+                (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        scheduler.schedule(new JobInfo.Builder(CLEANUP_JOB_ID,
+                new ComponentName(context, CleanupJobService.class))
+                .setMinimumLatency(MAX_AGE_MILLIS)
+                .setOverrideDeadline(MAX_AGE_MILLIS * 2)
+                .build());
+    }
+
+    /**
+     * Deletes the expired result files, and runs again while newer ones are left.
+     */
+    public static class CleanupJobService extends JobService {
+        @Override
+        public boolean onStartJob(final JobParameters params) {
+            final Context context = getApplicationContext();
+            AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    final boolean left = deleteExpired(context);
+                    jobFinished(params, false);
+                    if (left) {
+                        scheduleCleanup(context);
+                    }
+                }
+            });
+            return true;
+        }
+
+        @Override
+        public boolean onStopJob(JobParameters params) {
+            // the next result file schedules it again.
+            return false;
+        }
+    }
+}
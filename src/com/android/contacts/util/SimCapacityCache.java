@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.contacts.util;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.telephony.SubscriptionInfo;
+import android.telephony.SubscriptionManager;
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.android.contacts.common.MoreContactUtils;
+import com.android.contacts.common.SimContactsConstants;
+
+import org.codeaurora.wrapper.UiccPhoneBookController_Wrapper;
+
+/**
+ * Caches the capacity of each sim, so that saving contacts to a sim checks the entries in
+ * memory instead of asking the card for every contact. Cleared when a sim changes state or a
+ * bulk copy to a sim completes, and kept up to date as records are written. A read that
+ * fails, as it does while the card is still loading, is not cached.
+ */
+public class SimCapacityCache {
+    private static final String TAG = "SimCapacityCache";
+
+    // TelephonyIntents.ACTION_SIM_STATE_CHANGED, not public.
+    private static final String ACTION_SIM_STATE_CHANGED =
+            "android.intent.action.SIM_STATE_CHANGED";
+
+    /**
+     * The capacity of one sim.
+     */
+    public static class Capacity {
+        /** ADN records of the card, 0 if unknown. */
+        public final int total;
+        /** ADN records in use. */
+        public int used;
+        /** additional numbers per record. */
+        public final int anrCount;
+        /** emails per record. */
+        public final int emailCount;
+        public final int maxNumberLength = MoreContactUtils.MAX_LENGTH_NUMBER_IN_SIM;
+
+        Capacity(int total, int used, int anrCount, int emailCount) {
+            this.total = total;
+            this.used = used;
+            this.anrCount = anrCount;
+            this.emailCount = emailCount;
+        }
+
+        boolean isFull() {
+            return total > 0 && used >= total;
+        }
+    }
+
+    private static SimCapacityCache sInstance;
+
+    private final Context mContext;
+    private final SparseArray<Capacity> mCapacities = new SparseArray<>();
+
+    public static synchronized SimCapacityCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new SimCapacityCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private SimCapacityCache(Context context) {
+        mContext = context;
+        final IntentFilter filter = new IntentFilter(ACTION_SIM_STATE_CHANGED);
+        // The bulk copy to sim writes the card without going through this cache.
+        filter.addAction(SimContactsConstants.INTENT_EXPORT_COMPLETE);
+        mContext.registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                invalidate();
+            }
+        }, filter);
+    }
+
+    /**
+     * Returns the capacity of the sim in the slot, read from the card the first time it
+     * succeeds.
+     */
+    public synchronized Capacity get(int slot) {
+        Capacity capacity = mCapacities.get(slot);
+        if (capacity == null) {
+            final int total = MoreContactUtils.getAdnCount(mContext, slot);
+            final int used = readUsedCount(slot);
+            capacity = new Capacity(total, Math.max(used, 0),
+                    MoreContactUtils.getOneSimAnrCount(mContext, slot),
+                    MoreContactUtils.getOneSimEmailCount(mContext, slot));
+            if (total > 0 && used >= 0) {
+                mCapacities.put(slot, capacity);
+            }
+        }
+        return capacity;
+    }
+
+    /**
+     * Returns true if no record can be added to the sim in the slot. The card is asked again
+     * before reporting it full, in case records were deleted behind the cache.
+     */
+    public synchronized boolean isFull(int slot) {
+        final Capacity capacity = get(slot);
+        if (!capacity.isFull()) {
+            return false;
+        }
+        final int used = readUsedCount(slot);
+        if (used < 0) {
+            return true;
+        }
+        capacity.used = used;
+        return capacity.isFull();
+    }
+
+    public synchronized void onRecordInserted(int slot) {
+        final Capacity capacity = mCapacities.get(slot);
+        if (capacity != null) {
+            capacity.used++;
+        }
+    }
+
+    public synchronized void onRecordDeleted(int slot) {
+        final Capacity capacity = mCapacities.get(slot);
+        if (capacity != null && capacity.used > 0) {
+            capacity.used--;
+        }
+    }
+
+    public synchronized void invalidate() {
+        mCapacities.clear();
+    }
+
+    /**
+     * @return the ADN records in use on the sim in the slot, or -1 if they can't be read.
+     */
+    private int readUsedCount(int slot) {
+        SubscriptionInfo subInfoRecord = null;
+        try {
+            subInfoRecord = SubscriptionManager.from(mContext)
+                    .getActiveSubscriptionInfoForSimSlotIndex(slot);
+        } catch (SecurityException e) {
+            Log.w(TAG, "SecurityException thrown, lack permission for"
+                    + " getActiveSubscriptionInfoList", e);
+        }
+        if (subInfoRecord == null) {
+            return -1;
+        }
+        final int[] adnCount = UiccPhoneBookController_Wrapper
+                .getAdnRecordsCapacityForSubscriber(subInfoRecord.getSubscriptionId());
+        return adnCount != null ? adnCount[MoreContactUtils.ADN_USED_POS] : -1;
+    }
+}
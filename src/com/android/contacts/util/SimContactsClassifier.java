@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.contacts.util;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.provider.ContactsContract.RawContacts;
+import android.text.TextUtils;
+
+import com.android.contacts.common.MoreContactUtils;
+import com.android.contacts.common.SimContactsConstants;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Splits a set of contact ids into sim contacts and the others with one {@link RawContacts}
+ * query per chunk of ids, instead of one query per contact.
+ */
+public class SimContactsClassifier {
+
+    // Upper bound of ids in a single "IN (...)" selection.
+    private static final int MAX_IDS_PER_QUERY = 500;
+
+    private static final String[] RAW_CONTACTS_ACCOUNT_PROJECTION = new String[]{
+            RawContacts.CONTACT_ID, RawContacts.ACCOUNT_TYPE, RawContacts.ACCOUNT_NAME};
+
+    /**
+     * The sim account a contact is stored in.
+     */
+    public static class SimAccount {
+        public final String accountType;
+        public final String accountName;
+        /** {@link SimContactsConstants#SLOT1} or {@link SimContactsConstants#SLOT2}. */
+        public final int subscription;
+
+        SimAccount(String accountType, String accountName, int subscription) {
+            this.accountType = accountType;
+            this.accountName = accountName;
+            this.subscription = subscription;
+        }
+    }
+
+    /**
+     * Result of {@link #classify}.
+     */
+    public static class Classification {
+        /** sim contacts, in the order of the ids given. */
+        public final LinkedHashMap<Long, SimAccount> simContacts = new LinkedHashMap<>();
+        /** the other contacts, in the order of the ids given. */
+        public final ArrayList<Long> otherContacts = new ArrayList<>();
+    }
+
+    public static Classification classify(ContentResolver resolver, List<Long> contactIds) {
+        HashMap<Long, SimAccount> simAccounts = new HashMap<>();
+        for (int start = 0; start < contactIds.size(); start += MAX_IDS_PER_QUERY) {
+            List<Long> chunk = contactIds.subList(start,
+                    Math.min(start + MAX_IDS_PER_QUERY, contactIds.size()));
+            Cursor cursor = resolver.query(RawContacts.CONTENT_URI,
+                    RAW_CONTACTS_ACCOUNT_PROJECTION, RawContacts.DELETED + "=0 AND "
+                    + RawContacts.CONTACT_ID + " IN (" + TextUtils.join(",", chunk) + ")",
+                    null, null);
+            if (cursor == null) {
+                continue;
+            }
+            try {
+                while (cursor.moveToNext()) {
+                    long contactId = cursor.getLong(0);
+                    String accountType = cursor.getString(1);
+                    String accountName = cursor.getString(2);
+                    int subscription = MoreContactUtils.getSubscription(accountType,
+                            accountName);
+                    // a contact joined with a sim raw contact is handled as a sim contact.
+                    if ((subscription == SimContactsConstants.SLOT1
+                            || subscription == SimContactsConstants.SLOT2)
+                            && !simAccounts.containsKey(contactId)) {
+                        simAccounts.put(contactId,
+                                new SimAccount(accountType, accountName, subscription));
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        Classification classification = new Classification();
+        for (Long contactId : contactIds) {
+            SimAccount simAccount = simAccounts.get(contactId);
+            if (simAccount != null) {
+                classification.simContacts.put(contactId, simAccount);
+            } else {
+                classification.otherContacts.add(contactId);
+            }
+        }
+        return classification;
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.contacts.util;
+
+import android.content.ContentValues;
+import android.os.CancellationSignal;
+import android.util.Log;
+
+import com.android.contacts.common.SimContactsOperation;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Deletes contacts in two pipelined stages: one worker per subscription deletes the sim
+ * contacts from their card, while the calling thread deletes the local rows of the contacts
+ * ready so far in bulk. A bulk delete is then bound by the slower stage, not by the sum of
+ * both.
+ *
+ * Cancelling only stops the sim stage. The contacts already deleted from their card are still
+ * deleted from the provider, otherwise they would stay listed without their sim record.
+ */
+public class SimDeletePipeline {
+    private static final String TAG = "SimDeletePipeline";
+
+    // How long the committer waits for the sim workers before checking they are done.
+    private static final long POLL_MILLIS = 100;
+
+    /**
+     * Receives the progress of each stage. Both count all the contacts given to {@link #run},
+     * and may be called from any thread.
+     */
+    public interface Listener {
+        /**
+         * @param done contacts past the sim stage. Contacts not stored on a sim pass it at once.
+         */
+        void onSimProgress(int done, int total);
+
+        /**
+         * @param done contacts deleted from the provider, or dropped because deleting them
+         * from their card failed.
+         */
+        void onProviderProgress(int done, int total);
+    }
+
+    /**
+     * Outcome of {@link #run}.
+     */
+    public static class Result {
+        /** sim contacts whose card delete failed, their local rows are kept. */
+        public final int simFailed;
+        /** the result of each provider delete, in order. */
+        public final List<BulkDeleter.ChunkResult> chunks;
+
+        Result(int simFailed, List<BulkDeleter.ChunkResult> chunks) {
+            this.simFailed = simFailed;
+            this.chunks = chunks;
+        }
+    }
+
+    private final SimContactsOperation mSimContactsOperation;
+    private final SimCapacityCache mSimCapacities;
+    private final BulkDeleter mDeleter;
+
+    /**
+     * @param simCapacities is told about each record deleted from a card.
+     * @param deleter deletes the local rows by contact id.
+     */
+    public SimDeletePipeline(SimContactsOperation simContactsOperation,
+            SimCapacityCache simCapacities, BulkDeleter deleter) {
+        mSimContactsOperation = simContactsOperation;
+        mSimCapacities = simCapacities;
+        mDeleter = deleter;
+    }
+
+    /**
+     * delete the classified contacts, stopping early when the signal is cancelled. Returns
+     * once both stages have stopped and every contact deleted from its card is deleted from
+     * the provider.
+     */
+    public Result run(SimContactsClassifier.Classification classification,
+            final Listener listener, final CancellationSignal signal) {
+        final int total = classification.otherContacts.size()
+                + classification.simContacts.size();
+        // contacts ready for the provider stage.
+        final LinkedBlockingQueue<Long> ready =
+                new LinkedBlockingQueue<>(classification.otherContacts);
+        final AtomicInteger simDone = new AtomicInteger(classification.otherContacts.size());
+        final AtomicInteger simFailed = new AtomicInteger();
+        final AtomicInteger runningWorkers = new AtomicInteger();
+        // contacts deleted from their card, they are committed even when cancelled.
+        final Set<Long> simDeleted = Collections.newSetFromMap(
+                new ConcurrentHashMap<Long, Boolean>());
+
+        LinkedHashMap<Integer, ArrayList<Long>> bySubscription = new LinkedHashMap<>();
+        for (Map.Entry<Long, SimContactsClassifier.SimAccount> entry
+                : classification.simContacts.entrySet()) {
+            int subscription = entry.getValue().subscription;
+            ArrayList<Long> ids = bySubscription.get(subscription);
+            if (ids == null) {
+                ids = new ArrayList<>();
+                bySubscription.put(subscription, ids);
+            }
+            ids.add(entry.getKey());
+        }
+
+        for (Map.Entry<Integer, ArrayList<Long>> entry : bySubscription.entrySet()) {
+            final int subscription = entry.getKey();
+            final ArrayList<Long> ids = entry.getValue();
+            runningWorkers.incrementAndGet();
+            Thread worker = new Thread("SimDelete-" + subscription) {
+                @Override
+                public void run() {
+                    try {
+                        for (Long id : ids) {
+                            if (isCanceled(signal)) {
+                                break;
+                            }
+                            ContentValues values = mSimContactsOperation.getSimAccountValues(id);
+                            if (mSimContactsOperation.delete(values, subscription) != 0) {
+                                mSimCapacities.onRecordDeleted(subscription);
+                                simDeleted.add(id);
+                                ready.add(id);
+                            } else {
+                                simFailed.incrementAndGet();
+                            }
+                            if (listener != null) {
+                                listener.onSimProgress(simDone.incrementAndGet(), total);
+                            }
+                        }
+                    } finally {
+                        runningWorkers.decrementAndGet();
+                    }
+                }
+            };
+            worker.start();
+        }
+        if (listener != null) {
+            listener.onSimProgress(simDone.get(), total);
+        }
+
+        ArrayList<BulkDeleter.ChunkResult> chunks = new ArrayList<>();
+        ArrayList<Long> batch = new ArrayList<>();
+        int committed = 0;
+        boolean interrupted = false;
+        // the workers stop at the next contact once cancelled, the loop ends when they did.
+        while (true) {
+            // read before polling, so no id queued by a finished worker is missed.
+            boolean simStageDone = runningWorkers.get() == 0;
+            Long first;
+            try {
+                first = simStageDone ? ready.poll()
+                        : ready.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Log.w(TAG, "Interrupted while waiting for the sim stage");
+                interrupted = true;
+                continue;
+            }
+            if (first == null) {
+                if (simStageDone) {
+                    break;
+                }
+                continue;
+            }
+            batch.add(first);
+            ready.drainTo(batch, BulkDeleter.MAX_CHUNK_SIZE - 1);
+            if (isCanceled(signal)) {
+                // only the contacts gone from their card still have to go.
+                batch.retainAll(simDeleted);
+                if (batch.isEmpty()) {
+                    continue;
+                }
+            }
+
+            final int base = committed;
+            // not cancellable, the whole batch is needed once its sim records are deleted.
+            chunks.addAll(mDeleter.delete(batch, new BulkDeleter.Listener() {
+                @Override
+                public void onProgress(int handled, int batchSize) {
+                    if (listener != null) {
+                        listener.onProviderProgress(base + handled + simFailed.get(),
+                                total);
+                    }
+                }
+            }, null));
+            committed += batch.size();
+            batch.clear();
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (listener != null && !isCanceled(signal)) {
+            listener.onProviderProgress(committed + simFailed.get(), total);
+        }
+
+        return new Result(simFailed.get(), chunks);
+    }
+
+    private static boolean isCanceled(CancellationSignal signal) {
+        return signal != null && signal.isCanceled();
+    }
+}
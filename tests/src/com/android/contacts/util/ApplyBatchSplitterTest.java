@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.contacts.util;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.provider.ContactsContract.AggregationExceptions;
+import android.provider.ContactsContract.CommonDataKinds.Note;
+import android.provider.ContactsContract.Data;
+import android.provider.ContactsContract.RawContacts;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.contacts.common.compat.CompatUtils;
+import com.android.contacts.common.model.CPOWrapper;
+
+import java.util.ArrayList;
+
+/**
+ * Test cases for {@link ApplyBatchSplitter}.
+ *
+ * adb shell am instrument -w -e class com.android.contacts.util.ApplyBatchSplitterTest \
+ *   com.android.contacts.tests/android.test.InstrumentationTestRunner
+ */
+@SmallTest
+public class ApplyBatchSplitterTest extends AndroidTestCase {
+
+    public void testSplitsLargeOperations() {
+        final ArrayList<CPOWrapper> operations = new ArrayList<>();
+        final char[] note = new char[ApplyBatchSplitter.MAX_BATCH_BYTES / 4];
+        for (int i = 0; i < 4; i++) {
+            operations.add(newNoteUpdate(i, new String(note)));
+        }
+        final ApplyBatchSplitter splitter = new ApplyBatchSplitter();
+        final int first = splitter.nextBatchSize(operations, 0);
+        assertTrue(first >= 1 && first < operations.size());
+    }
+
+    public void testKeepsDiffThatFits() {
+        final ArrayList<CPOWrapper> operations = new ArrayList<>();
+        for (int i = 0; i < ApplyBatchSplitter.MIN_BATCH_SIZE * 2; i++) {
+            operations.add(newNoteUpdate(i, "note"));
+        }
+        final ApplyBatchSplitter splitter = new ApplyBatchSplitter();
+        for (int i = 0; i < 10; i++) {
+            splitter.onBatchApplied(ApplyBatchSplitter.TARGET_BATCH_MILLIS * 2);
+        }
+        assertEquals(operations.size(), splitter.nextBatchSize(operations, 0));
+    }
+
+    public void testSplitsAfterRawContactInsertWhenPrefixTooLarge() {
+        final ArrayList<CPOWrapper> operations = new ArrayList<>();
+        operations.add(newRawContactInsert());
+        final char[] note = new char[ApplyBatchSplitter.MAX_BATCH_BYTES / 4];
+        for (int i = 0; i < 4; i++) {
+            operations.add(newNoteInsert(0, new String(note)));
+        }
+        final ApplyBatchSplitter splitter = new ApplyBatchSplitter();
+        assertEquals(1, splitter.nextBatchSize(operations, 0));
+
+        final ContentProviderResult[] results = newRawContactResults(operations.size(), 42);
+        final ArrayList<ContentProviderOperation> batch =
+                splitter.nextBatch(operations, 1, results);
+        final ContentValues values = batch.get(0).resolveValueBackReferences(null, 0);
+        assertEquals(42L, (long) values.getAsLong(Data.RAW_CONTACT_ID));
+    }
+
+    public void testResolvesAggregationModeUpdateOfSplitInsert() {
+        final ArrayList<CPOWrapper> operations = new ArrayList<>();
+        operations.add(newRawContactInsert());
+        final char[] note = new char[ApplyBatchSplitter.MAX_BATCH_BYTES / 4];
+        operations.add(newNoteInsert(0, new String(note)));
+        operations.add(newNoteInsert(0, new String(note)));
+        // as added by RawContactDelta after the data of an inserted raw contact.
+        operations.add(new CPOWrapper(ContentProviderOperation.newUpdate(RawContacts.CONTENT_URI)
+                .withValue(RawContacts.AGGREGATION_MODE, RawContacts.AGGREGATION_MODE_DEFAULT)
+                .withSelection(RawContacts._ID + "=?", new String[1])
+                .withSelectionBackReference(0, 0)
+                .build(), CompatUtils.TYPE_UPDATE));
+        assertEquals(4, ApplyBatchSplitter.getBackReferencedPrefix(operations));
+
+        final ApplyBatchSplitter splitter = new ApplyBatchSplitter();
+        assertEquals(1, splitter.nextBatchSize(operations, 0));
+        final ContentProviderResult[] results = newRawContactResults(operations.size(), 42);
+        int offset = 1;
+        ContentProviderOperation update = null;
+        while (offset < operations.size()) {
+            final ArrayList<ContentProviderOperation> batch =
+                    splitter.nextBatch(operations, offset, results);
+            for (int i = 0; i < batch.size(); i++) {
+                if (offset + i == 3) {
+                    update = batch.get(i);
+                }
+                results[offset + i] = new ContentProviderResult(
+                        ContentUris.withAppendedId(Data.CONTENT_URI, 100 + offset + i));
+            }
+            offset += batch.size();
+        }
+        assertNotNull(update);
+        final String[] selectionArgs = update.resolveSelectionArgsBackReferences(null, 0);
+        assertEquals(1, selectionArgs.length);
+        assertEquals("42", selectionArgs[0]);
+    }
+
+    public void testKeepsBackReferencedPrefix() {
+        final ArrayList<CPOWrapper> operations = new ArrayList<>();
+        operations.add(newRawContactInsert());
+        operations.add(newNoteInsert(0, "note"));
+        operations.add(new CPOWrapper(
+                ContentProviderOperation.newUpdate(AggregationExceptions.CONTENT_URI)
+                .withValueBackReference(AggregationExceptions.RAW_CONTACT_ID1, 0).build(),
+                CompatUtils.TYPE_UPDATE));
+        operations.add(newNoteUpdate(1, "note"));
+        assertEquals(3, ApplyBatchSplitter.getBackReferencedPrefix(operations));
+    }
+
+    public void testNoPrefixWithoutInsert() {
+        final ArrayList<CPOWrapper> operations = new ArrayList<>();
+        operations.add(newNoteUpdate(1, "note"));
+        assertEquals(0, ApplyBatchSplitter.getBackReferencedPrefix(operations));
+    }
+
+    public void testBatchSizeFollowsLatency() {
+        assertEquals(100, ApplyBatchSplitter.nextBatchSize(200,
+                ApplyBatchSplitter.TARGET_BATCH_MILLIS + 1));
+        assertEquals(ApplyBatchSplitter.MAX_BATCH_SIZE,
+                ApplyBatchSplitter.nextBatchSize(ApplyBatchSplitter.MAX_BATCH_SIZE, 10));
+        assertEquals(ApplyBatchSplitter.MIN_BATCH_SIZE,
+                ApplyBatchSplitter.nextBatchSize(ApplyBatchSplitter.MIN_BATCH_SIZE, 10000));
+    }
+
+    private static ContentProviderResult[] newRawContactResults(int size, long rawContactId) {
+        final ContentProviderResult[] results = new ContentProviderResult[size];
+        results[0] = new ContentProviderResult(
+                ContentUris.withAppendedId(RawContacts.CONTENT_URI, rawContactId));
+        return results;
+    }
+
+    private static CPOWrapper newRawContactInsert() {
+        return new CPOWrapper(ContentProviderOperation.newInsert(RawContacts.CONTENT_URI)
+                .build(), CompatUtils.TYPE_INSERT);
+    }
+
+    private static CPOWrapper newNoteInsert(int rawContactIndex, String note) {
+        return new CPOWrapper(ContentProviderOperation.newInsert(Data.CONTENT_URI)
+                .withValueBackReference(Data.RAW_CONTACT_ID, rawContactIndex)
+                .withValue(Note.NOTE, note)
+                .build(), CompatUtils.TYPE_INSERT);
+    }
+
+    private static CPOWrapper newNoteUpdate(long dataId, String note) {
+        return new CPOWrapper(ContentProviderOperation.newUpdate(Data.CONTENT_URI)
+                .withSelection(Data._ID + "=?", new String[] {String.valueOf(dataId)})
+                .withValue(Note.NOTE, note)
+                .build(), CompatUtils.TYPE_UPDATE);
+    }
+}
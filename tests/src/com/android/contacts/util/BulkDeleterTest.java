@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.contacts.util;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * Test cases for {@link BulkDeleter}.
+ *
+ * adb shell am instrument -w -e class com.android.contacts.util.BulkDeleterTest \
+ *   com.android.contacts.tests/android.test.InstrumentationTestRunner
+ */
+@SmallTest
+public class BulkDeleterTest extends AndroidTestCase {
+
+    public void testChunkGrowsWhenFast() {
+        assertEquals(200, BulkDeleter.nextChunkSize(100, 10));
+        assertEquals(BulkDeleter.MAX_CHUNK_SIZE,
+                BulkDeleter.nextChunkSize(BulkDeleter.MAX_CHUNK_SIZE, 10));
+    }
+
+    public void testChunkShrinksWhenSlow() {
+        assertEquals(50, BulkDeleter.nextChunkSize(100, BulkDeleter.TARGET_CHUNK_MILLIS + 1));
+        assertEquals(BulkDeleter.MIN_CHUNK_SIZE,
+                BulkDeleter.nextChunkSize(BulkDeleter.MIN_CHUNK_SIZE, 10000));
+    }
+
+    public void testChunkKeptNearTarget() {
+        assertEquals(100, BulkDeleter.nextChunkSize(100, BulkDeleter.TARGET_CHUNK_MILLIS));
+    }
+}
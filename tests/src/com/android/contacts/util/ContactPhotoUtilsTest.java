@@ -46,4 +46,21 @@ public class ContactPhotoUtilsTest extends AndroidTestCase {
     assertTrue(
         ContactPhotoUtils.savePhotoFromUriToUri(getContext(), internal, tempUri, true));
   }
+
+  public void testScaledFileUriDataPathFails() {
+    String filePath =
+        "file:///data/data/com.android.contacts/shared_prefs/com.android.contacts.xml";
+
+    assertFalse(ContactPhotoUtils.saveScaledPhotoFromUriToUri(
+        getContext(), Uri.parse(filePath), tempUri, 720, false));
+  }
+
+  public void testSampleSizeKeepsLargerSideAboveMax() {
+    // 12 MP camera photo
+    assertEquals(4, ContactPhotoUtils.getSampleSize(4000, 3000, 720));
+    assertEquals(4, ContactPhotoUtils.getSampleSize(3000, 4000, 720));
+    assertEquals(1, ContactPhotoUtils.getSampleSize(1000, 800, 720));
+    assertEquals(1, ContactPhotoUtils.getSampleSize(500, 500, 720));
+    assertEquals(2, ContactPhotoUtils.getSampleSize(1440, 1440, 720));
+  }
 }
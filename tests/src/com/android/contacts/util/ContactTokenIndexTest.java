@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.contacts.util;
+
+import android.database.MatrixCursor;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.Arrays;
+
+/**
+ * Test cases for {@link ContactTokenIndex}.
+ *
+ * adb shell am instrument -w -e class com.android.contacts.util.ContactTokenIndexTest \
+ *   com.android.contacts.tests/android.test.InstrumentationTestRunner
+ */
+@SmallTest
+public class ContactTokenIndexTest extends AndroidTestCase {
+
+    private ContactTokenIndex mIndex;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        final MatrixCursor cursor = new MatrixCursor(new String[] {"name", "number"});
+        cursor.addRow(new Object[] {"John Smith", "(650) 555-1234"});
+        cursor.addRow(new Object[] {"Jane Doe", null});
+        cursor.addRow(new Object[] {"Bob Johnson", "650 555 9876"});
+        mIndex = new ContactTokenIndex(cursor, new int[] {0, 1});
+        cursor.close();
+    }
+
+    public void testWordPrefix() {
+        assertTrue(Arrays.equals(new int[] {0, 2}, mIndex.match("joh", null)));
+        assertTrue(Arrays.equals(new int[] {0}, mIndex.match("JOHN sm", null)));
+        assertTrue(Arrays.equals(new int[] {}, mIndex.match("ohn", null)));
+    }
+
+    public void testDigitsInNumber() {
+        assertTrue(Arrays.equals(new int[] {0}, mIndex.match("5551234", null)));
+        assertTrue(Arrays.equals(new int[] {0, 2}, mIndex.match("555", null)));
+    }
+
+    public void testCandidates() {
+        assertTrue(Arrays.equals(new int[] {2}, mIndex.match("555", new int[] {1, 2})));
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.contacts.util;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * Test cases for {@link FuzzyNameMatcher}.
+ *
+ * adb shell am instrument -w -e class com.android.contacts.util.FuzzyNameMatcherTest \
+ *   com.android.contacts.tests/android.test.InstrumentationTestRunner
+ */
+@SmallTest
+public class FuzzyNameMatcherTest extends AndroidTestCase {
+    private FuzzyNameMatcher mMatcher;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mMatcher = new FuzzyNameMatcher();
+    }
+
+    public void testNormalizeStripsDiacriticsAndSpacing() {
+        assertEquals(mMatcher.normalize("José  Smith"), mMatcher.normalize("Jose Smith"));
+    }
+
+    public void testNormalizeIgnoresTokenOrder() {
+        assertEquals(mMatcher.normalize("John Smith"), mMatcher.normalize("Smith, John"));
+    }
+
+    public void testNormalizeExpandsNicknames() {
+        assertEquals(mMatcher.normalize("Bob Jones"), mMatcher.normalize("Robert Jones"));
+    }
+
+    public void testNormalizeKeepsSurnames() {
+        assertFalse(mMatcher.normalize("Andrew Drew").equals(
+                mMatcher.normalize("Andrew Andrew")));
+        assertEquals(mMatcher.normalize("John Smith"), mMatcher.normalize("John Smith Jr."));
+    }
+
+    public void testNormalizeEmpty() {
+        assertNull(mMatcher.normalize(""));
+        assertNull(mMatcher.normalize(" , "));
+    }
+
+    public void testBlockKeyIsSurname() {
+        assertEquals("smith", mMatcher.blockKey(mMatcher.normalize("John Smith")));
+        assertEquals(mMatcher.blockKey(mMatcher.normalize("Catherine Zeta")),
+                mMatcher.blockKey(mMatcher.normalize("Katherine Zeta")));
+    }
+
+    public void testBoundedDistance() {
+        assertEquals(0, FuzzyNameMatcher.boundedDistance("smith", "smith", 2));
+        assertEquals(1, FuzzyNameMatcher.boundedDistance("smith", "smyth", 2));
+        assertEquals(1, FuzzyNameMatcher.boundedDistance("jonathan", "jonathon", 2));
+        assertEquals(-1, FuzzyNameMatcher.boundedDistance("smith", "jones", 2));
+        assertEquals(-1, FuzzyNameMatcher.boundedDistance("a", "abcd", 2));
+    }
+
+    public void testSimilarity() {
+        String lhs = mMatcher.normalize("Catherine Zeta");
+        String rhs = mMatcher.normalize("Katherine Zeta");
+        assertTrue(mMatcher.isMatch(mMatcher.similarity(lhs, rhs)));
+        assertFalse(mMatcher.isMatch(mMatcher.similarity(lhs, mMatcher.normalize("Carl Zeta"))));
+        assertEquals(1f, mMatcher.similarity(lhs, lhs));
+    }
+
+    public void testSimilarityNeedsSameSurname() {
+        assertFalse(mMatcher.isMatch(mMatcher.similarity(mMatcher.normalize("John Smith"),
+                mMatcher.normalize("Joan Smith"))));
+        assertFalse(mMatcher.isMatch(mMatcher.similarity(mMatcher.normalize("John Smith"),
+                mMatcher.normalize("John Smyth"))));
+    }
+}
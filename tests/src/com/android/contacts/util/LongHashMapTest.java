@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.contacts.util;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.Arrays;
+
+/**
+ * Test cases for {@link LongHashMap}.
+ *
+ * adb shell am instrument -w -e class com.android.contacts.util.LongHashMapTest \
+ *   com.android.contacts.tests/android.test.InstrumentationTestRunner
+ */
+@SmallTest
+public class LongHashMapTest extends AndroidTestCase {
+
+    public void testPutGetRemove() {
+        final LongHashMap<String> map = new LongHashMap<>();
+        assertTrue(map.put(5, "a"));
+        assertFalse(map.put(5, "b"));
+        assertEquals("b", map.get(5));
+        assertTrue(map.containsKey(5));
+        assertNull(map.get(6));
+        assertTrue(map.remove(5));
+        assertFalse(map.remove(5));
+        assertTrue(map.isEmpty());
+        assertFalse(map.containsKey(-1));
+    }
+
+    public void testKeepsPutOrder() {
+        final LongHashMap<String> map = new LongHashMap<>();
+        map.put(30, "a");
+        map.put(10, "b");
+        map.put(20, "c");
+        map.remove(10);
+        map.put(10, "d");
+        map.put(30, "e");
+        assertTrue(Arrays.equals(new long[] {30, 20, 10}, map.keys()));
+    }
+
+    public void testGrowCompactAndCopy() {
+        final LongHashMap<Long> map = new LongHashMap<>();
+        for (long i = 0; i < 1000; i++) {
+            map.put(i, i);
+        }
+        for (long i = 0; i < 1000; i += 2) {
+            map.remove(i);
+        }
+        for (long i = 1000; i < 1500; i++) {
+            map.put(i, i);
+        }
+        final LongHashMap<Long> copy = new LongHashMap<>(map);
+        copy.remove(1);
+        assertEquals(1000, map.size());
+        final long[] keys = map.keys();
+        assertEquals(1, keys[0]);
+        assertEquals(1499, keys[keys.length - 1]);
+        for (long i = 0; i < 1500; i++) {
+            assertEquals(i % 2 == 1 || i >= 1000 ? (Long) i : null, map.get(i));
+        }
+        assertFalse(copy.containsKey(1));
+    }
+}
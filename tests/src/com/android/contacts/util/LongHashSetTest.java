@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.contacts.util;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.Arrays;
+
+/**
+ * Test cases for {@link LongHashSet}.
+ *
+ * adb shell am instrument -w -e class com.android.contacts.util.LongHashSetTest \
+ *   com.android.contacts.tests/android.test.InstrumentationTestRunner
+ */
+@SmallTest
+public class LongHashSetTest extends AndroidTestCase {
+
+    public void testAddRemove() {
+        final LongHashSet set = new LongHashSet();
+        assertTrue(set.add(5));
+        assertFalse(set.add(5));
+        assertTrue(set.contains(5));
+        assertFalse(set.contains(6));
+        assertTrue(set.remove(5));
+        assertFalse(set.remove(5));
+        assertTrue(set.isEmpty());
+    }
+
+    public void testNegativeValues() {
+        final LongHashSet set = new LongHashSet();
+        set.add(1);
+        assertFalse(set.contains(-1));
+        assertFalse(set.remove(-1));
+        assertEquals(1, set.size());
+        try {
+            set.add(-1);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    public void testGrowAndRemoveKeepsOthers() {
+        final LongHashSet set = new LongHashSet();
+        for (long i = 0; i < 1000; i++) {
+            set.add(i);
+        }
+        for (long i = 0; i < 1000; i += 2) {
+            set.remove(i);
+        }
+        assertEquals(500, set.size());
+        for (long i = 0; i < 1000; i++) {
+            assertEquals(i % 2 == 1, set.contains(i));
+        }
+    }
+
+    public void testCopyIsIndependent() {
+        final LongHashSet set = new LongHashSet();
+        set.add(1);
+        final LongHashSet copy = new LongHashSet(set);
+        copy.add(2);
+        set.remove(1);
+        assertFalse(set.contains(2));
+        assertTrue(copy.contains(1));
+        final long[] values = copy.toArray();
+        Arrays.sort(values);
+        assertTrue(Arrays.equals(new long[] {1, 2}, values));
+    }
+}
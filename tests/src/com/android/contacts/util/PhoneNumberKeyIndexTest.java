@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ *       copyright notice, this list of conditions and the following
+ *       disclaimer in the documentation and/or other materials provided
+ *       with the distribution.
+ *     * Neither the name of The Linux Foundation nor the names of its
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.contacts.util;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * Test cases for {@link PhoneNumberKeyIndex}.
+ *
+ * adb shell am instrument -w -e class com.android.contacts.util.PhoneNumberKeyIndexTest \
+ *   com.android.contacts.tests/android.test.InstrumentationTestRunner
+ */
+@SmallTest
+public class PhoneNumberKeyIndexTest extends AndroidTestCase {
+
+    public void testFormattingIgnored() {
+        final PhoneNumberKeyIndex index = new PhoneNumberKeyIndex();
+        assertTrue(index.add("(650) 555-1234"));
+        assertFalse(index.add("650 555 1234"));
+        assertTrue(index.contains("6505551234"));
+        assertEquals(1, index.size());
+    }
+
+    public void testLocalAndInternationalFormsShareKey() {
+        assertEquals(PhoneNumberKeyIndex.toKey("555-1234"),
+                PhoneNumberKeyIndex.toKey("+1 650 555 1234"));
+        final PhoneNumberKeyIndex index = new PhoneNumberKeyIndex();
+        index.add("+1 650 555 1234");
+        assertTrue(index.contains("555-1234"));
+    }
+
+    public void testDifferentNumbers() {
+        final PhoneNumberKeyIndex index = new PhoneNumberKeyIndex();
+        index.add("650 555 1234");
+        assertFalse(index.contains("650 555 4321"));
+    }
+
+    public void testNumbersWithoutDigits() {
+        assertNull(PhoneNumberKeyIndex.toKey(null));
+        assertNull(PhoneNumberKeyIndex.toKey("()"));
+        final PhoneNumberKeyIndex index = new PhoneNumberKeyIndex();
+        assertTrue(index.add("()"));
+        assertTrue(index.contains("()"));
+        assertFalse(index.contains("( )"));
+    }
+}